@@ -0,0 +1,101 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Realistic comment requests for the benchmarks, from a one liner up to a
+ * 64 KB essay
+ *
+ * @author swissel
+ */
+final class CommentFixtures {
+
+    private static final String PARAGRAPH = "Thanks for the write-up. I tried the approach "
+            + "with Vert.x 4 and it works nicely, the only thing I had to change was the port "
+            + "configuration. Code: `if (a < b && b > c) { run(); }` - see "
+            + "[the docs](https://vertx.io/docs/?a=1&b=2) for details. Grüße 👍\n\n";
+
+    /**
+     * @param size approximate body length in chars
+     * @return Markdown comment body of that size
+     */
+    static String body(final int size) {
+        final StringBuilder b = new StringBuilder(size + PARAGRAPH.length());
+        while (b.length() < size) {
+            b.append(PARAGRAPH);
+        }
+        b.setLength(size);
+        return b.toString();
+    }
+
+    /**
+     * @param size approximate body length in chars
+     * @return the JSON the browser posts
+     */
+    static JsonObject comment(final int size) {
+        return new JsonObject()
+                .put("Commentor", "Jane Doe")
+                .put("eMail", "jane.doe@example.com")
+                .put("webSite", "https://example.com/jane")
+                .put("Body", body(size))
+                .put("captcha", "03AGdBq25SxXT-pmSeBXjzScW-EiocHwwpwqJRCBI7XsSTq")
+                .put("parentId", "2023/07/vertx-and-the-comment-service");
+    }
+
+    /**
+     * @param size approximate body length in chars
+     * @return the raw request body
+     */
+    static Buffer requestBody(final int size) {
+        return comment(size).toBuffer();
+    }
+
+    /**
+     * @return headers as a current browser sends them
+     */
+    static MultiMap headers() {
+        return MultiMap.caseInsensitiveMultiMap()
+                .add("Host", "comments.wissel.net")
+                .add("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 "
+                        + "Firefox/115.0")
+                .add("Accept", "application/json")
+                .add("Accept-Language", "en-US,en;q=0.5")
+                .add("Accept-Encoding", "gzip, deflate, br")
+                .add("Referer", "https://wissel.net/blog/2023/07/vertx-and-the-comment-service.html")
+                .add("Content-Type", "application/json")
+                .add("X-Requested-With", "XMLHttpRequest")
+                .add("Origin", "https://wissel.net")
+                .add("Connection", "keep-alive")
+                .add("Sec-Fetch-Dest", "empty")
+                .add("Sec-Fetch-Mode", "cors")
+                .add("Sec-Fetch-Site", "same-site")
+                .add("Content-Length", "1234");
+    }
+
+    private CommentFixtures() {
+        // Static methods only
+    }
+}
@@ -0,0 +1,82 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Request body to stored JSON: the tree, data binding and pretty printing
+ * newComment used to do against the streaming {@link CommentDecoder} with
+ * compact output. Validation is the same work for both and left out
+ *
+ * @author swissel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecodeBenchmark {
+
+    @Param({"256", "4096", "65536"})
+    public int bodySize;
+
+    private Buffer requestBody;
+    private JsonObject parameters;
+
+    @Setup
+    public void setup() {
+        this.requestBody = CommentFixtures.requestBody(this.bodySize);
+        this.parameters = CommentService.addParametersFromHeader(CommentFixtures.headers(),
+                "203.0.113.7");
+    }
+
+    /* asJsonObject, mapTo, encodePrettily */
+    @Benchmark
+    public String treeConversion(final Blackhole blackhole) {
+        final JsonObject comment = this.requestBody.toJsonObject();
+        comment.put("parameters", this.parameters.copy());
+        comment.put("markdown", true);
+        blackhole.consume(comment.mapTo(BlogComment.class));
+        return comment.encodePrettily();
+    }
+
+    /* CommentDecoder, toJson, encode */
+    @Benchmark
+    public String streamingDecode(final Blackhole blackhole) throws InvalidContentException {
+        final BlogComment comment = CommentDecoder.decode(this.requestBody);
+        this.parameters.forEach(entry -> comment.parameters.put(entry.getKey(),
+                String.valueOf(entry.getValue())));
+        comment.markdown = true;
+        blackhole.consume(comment);
+        return comment.toJson().encode();
+    }
+}
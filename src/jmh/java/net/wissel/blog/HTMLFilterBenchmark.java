@@ -0,0 +1,89 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Single pass HTMLFilter against the stream based original on typical
+ * comment bodies
+ *
+ * @author swissel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HTMLFilterBenchmark {
+
+    /* Plain prose, the most common comment */
+    private static final String PLAIN = "Thanks for the write-up. I tried the approach with "
+            + "Vert.x 4 and it works nicely, the only thing I had to change was the port "
+            + "configuration in the environment. Looking forward to the next post on this! ";
+    /* Markdown with code and a link */
+    private static final String MARKUP = "Small fix: `if (a < b && b > c)` should read "
+            + "`a <= b`. See [the docs](https://vertx.io/docs/?a=1&b=2) and \"Quoted text\". ";
+    /* Non latin text with emoji, needs surrogate pairs */
+    private static final String EMOJI = "Danke für den Beitrag 👍 非常感谢 🚀 — très utile! ";
+
+    @Param({"plain", "markup", "emoji"})
+    public String kind;
+
+    @Param({"1", "20"})
+    public int paragraphs;
+
+    private String body;
+
+    @Setup
+    public void setup() {
+        final String paragraph = "plain".equals(this.kind) ? PLAIN
+                : "markup".equals(this.kind) ? MARKUP : EMOJI;
+        this.body = paragraph.repeat(this.paragraphs);
+    }
+
+    @Benchmark
+    public String filterLegacy() {
+        return LegacyHTMLFilter.filter(this.body);
+    }
+
+    @Benchmark
+    public String filterSinglePass() {
+        return HTMLFilter.filter(this.body);
+    }
+
+    @Benchmark
+    public String stripLegacy() {
+        return LegacyHTMLFilter.strip(this.body);
+    }
+
+    @Benchmark
+    public String stripSinglePass() {
+        return HTMLFilter.strip(this.body);
+    }
+}
@@ -0,0 +1,144 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Cost of each step a comment takes in CommentService.newComment and
+ * CommentStore before it leaves the JVM. Run with -prof gc (the profile
+ * default) to see allocation per operation next to the throughput
+ *
+ * @author swissel
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IngestBenchmark {
+
+    @Param({"256", "4096", "65536"})
+    public int bodySize;
+
+    private Buffer requestBody;
+    private MultiMap headers;
+    private BlogComment blogComment;
+    private JsonObject storedMessage;
+    private CommentEnvelope envelope;
+    private final CommentEnvelope.Codec envelopeCodec = new CommentEnvelope.Codec();
+
+    @Setup
+    public void setup() throws InvalidContentException {
+        this.requestBody = CommentFixtures.requestBody(this.bodySize);
+        this.headers = CommentFixtures.headers();
+        this.blogComment = this.decodeWithParameters();
+        this.blogComment.checkForMandatoryFields(null);
+        this.storedMessage = this.blogComment.toJson()
+                .put(Parameters.ID_COMMENT, UUID.randomUUID().toString())
+                .put(Parameters.CREATED, "July 14, 2023 10:15:00 AM")
+                .put("branch", "comments-abcde");
+        this.envelope = CommentEnvelope.of(this.storedMessage.copy());
+    }
+
+    /* CommentDecoder.decode(ctx.body().buffer()) */
+    @Benchmark
+    public BlogComment decode() throws InvalidContentException {
+        return CommentDecoder.decode(this.requestBody);
+    }
+
+    @Benchmark
+    public JsonObject addParametersFromHeader() {
+        return CommentService.addParametersFromHeader(this.headers, "203.0.113.7");
+    }
+
+    @Benchmark
+    public BlogComment checkForMandatoryFields() throws InvalidContentException {
+        this.blogComment.checkForMandatoryFields(null);
+        return this.blogComment;
+    }
+
+    /* What goes into the envelope and the journal */
+    @Benchmark
+    public JsonObject toJson() {
+        return this.blogComment.toJson();
+    }
+
+    /* What ResultMessage.end writes to the response */
+    @Benchmark
+    public String resultMessage() {
+        return new ResultMessage(Parameters.SUCCESS_MESSAGE, 200).toString();
+    }
+
+    /* File name and content CommentStore sends to the sink */
+    @Benchmark
+    public String storeEncoding() {
+        return this.envelope.toJson()
+                .put(Parameters.ID_REPOSITORYPATH,
+                        CommentStore.getMessagePath(this.envelope.getComment()))
+                .encode();
+    }
+
+    /* One event bus hop as JsonObject: the default codec copies the tree */
+    @Benchmark
+    public JsonObject eventBusHopJson() {
+        return this.storedMessage.copy();
+    }
+
+    /* One event bus hop as envelope, local delivery passes the reference */
+    @Benchmark
+    public CommentEnvelope eventBusHopEnvelope() {
+        return this.envelopeCodec.transform(this.envelope.withBranch("comments-abcde"));
+    }
+
+    /* All of the above in sequence */
+    @Benchmark
+    public String newComment() throws InvalidContentException {
+        final BlogComment incoming = this.decodeWithParameters();
+        incoming.checkForMandatoryFields(null);
+        final CommentEnvelope comment = CommentEnvelope.of(incoming.toJson());
+        return new ResultMessage(Parameters.SUCCESS_MESSAGE, 200).toString()
+                + comment.toJson()
+                        .put(Parameters.ID_REPOSITORYPATH,
+                                CommentStore.getMessagePath(comment.getComment()))
+                        .encode();
+    }
+
+    private BlogComment decodeWithParameters() throws InvalidContentException {
+        final BlogComment comment = CommentDecoder.decode(this.requestBody);
+        CommentService.addParametersFromHeader(this.headers, "203.0.113.7")
+                .forEach(entry -> comment.parameters.put(entry.getKey(),
+                        String.valueOf(entry.getValue())));
+        comment.markdown = true;
+        return comment;
+    }
+}
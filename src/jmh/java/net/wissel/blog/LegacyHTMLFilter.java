@@ -0,0 +1,118 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The stream based HTMLFilter as it was before the single pass rewrite, kept
+ * as baseline for {@link HTMLFilterBenchmark}. The INFO log of filtered
+ * messages is left out, it would only measure the logger.
+ *
+ * The original mapped with char.class::cast, which throws a
+ * ClassCastException for every code point. Here the intended boxing cast is
+ * used, so there is something to measure.
+ *
+ * @author swissel
+ */
+final class LegacyHTMLFilter {
+
+	private static final Character OPEN_TAG = Character.valueOf('<');
+	private static final Character CLOSE_TAG = Character.valueOf('>');
+	private static final Character AMPERSAND = Character.valueOf('&');
+	private static final Character SPACE = Character.valueOf(' ');
+	private static final Character SEMICOLON = Character.valueOf(';');
+	private static final Character CR = Character.valueOf('\r');
+	private static final Character LF = Character.valueOf('\n');
+	private static final Character QUOTE = Character.valueOf('"');
+
+	private static final Map<Character, String> FILTER_CHARS = new HashMap<>();
+
+	static {
+		FILTER_CHARS.put(OPEN_TAG, "&lt;");
+		FILTER_CHARS.put(CLOSE_TAG, "&gt;");
+		FILTER_CHARS.put(AMPERSAND, "&amp;");
+		FILTER_CHARS.put(QUOTE, "&quot;");
+	}
+
+	static String filter(String message) {
+
+		if (message == null) {
+			return (null);
+		}
+		final AtomicBoolean didFilter = new AtomicBoolean(false);
+		final StringBuilder result = new StringBuilder(message.length() + 50);
+
+		message.codePoints().mapToObj(c -> Character.valueOf((char) c)).filter(c -> {
+			final boolean isFilterChar = FILTER_CHARS.containsKey(c);
+			if (isFilterChar) {
+				result.append(FILTER_CHARS.get(c));
+				didFilter.set(true);
+			}
+			return !isFilterChar;
+		}).forEach(result::append);
+
+		return (result.toString());
+
+	}
+
+	static String strip(String message) {
+
+		if (message == null) {
+			return (null);
+		}
+
+		final AtomicBoolean ampersandMode = new AtomicBoolean(false);
+		final AtomicBoolean tagMode = new AtomicBoolean(false);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final StringBuilder result = new StringBuilder(message.length());
+
+		message.codePoints().mapToObj(c -> Character.valueOf((char) c)).filter(c -> {
+			final boolean stopit = ampersandMode.get();
+			final boolean isAmpersandMode = stopit && !(c.equals(SEMICOLON) || c.equals(SPACE));
+			ampersandMode.set(isAmpersandMode);
+			return !stopit;
+		}).filter(c -> {
+			final boolean stopit = tagMode.get();
+			final boolean isTagMode = stopit && !c.equals(CLOSE_TAG);
+			tagMode.set(isTagMode);
+			return !stopit;
+		}).filter(c -> {
+			final boolean startAmpersand = c.equals(AMPERSAND);
+			ampersandMode.set(startAmpersand);
+			return !startAmpersand;
+		}).filter(c -> {
+			final boolean startTagMode = c.equals(OPEN_TAG);
+			tagMode.set(startTagMode);
+			return !startTagMode;
+		}).filter(c -> !done.getAndSet(c.equals(LF) || c.equals(CR))).forEach(result::append);
+
+		return result.toString();
+
+	}
+
+	private LegacyHTMLFilter() {
+		// Static methods only
+	}
+}
@@ -0,0 +1,285 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+/**
+ * End-to-end load test: starts the {@link StandIn} servers, points the whole
+ * pipeline at them and posts comments at fixed rates, open model, no matter
+ * how fast the service answers. Reports the POST latency and the time from
+ * the POST until the pull request for the comment arrived at the Bitbucket
+ * stand-in.
+ *
+ * Run with mvn -Ploadtest test-compile exec:exec, options as system
+ * properties: loadtest.rates (comments per second, comma separated steps),
+ * loadtest.duration (s per step), loadtest.drain (max s to wait for open pull
+ * requests after a step) and the standin.* settings of {@link StandIn}. Any
+ * pipeline setting can be given as system property too
+ *
+ * @author swissel
+ */
+public final class LoadGenerator {
+
+    private static final Pattern MARKER = Pattern.compile("load-(\\d+)");
+    private static final long SEND_INTERVAL = 10L;
+    private static final String[] TOPICS = {"the event bus", "back pressure", "worker verticles",
+        "the journal", "batching commits", "Markdown rendering", "HTTP/2", "the retry wheel"};
+
+    /**
+     * @param args ignored, see the class comment for options
+     * @throws Exception when the setup fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.setUp();
+            for (final String rate : System.getProperty("loadtest.rates", "5,20,50").split(",")) {
+                generator.runStep(Integer.parseInt(rate.trim()),
+                        Long.getLong("loadtest.duration", 30L),
+                        Long.getLong("loadtest.drain", 60L));
+            }
+        } finally {
+            generator.standIns.forEach(System.out::println);
+            System.exit(0);
+        }
+    }
+
+    /* Latencies in ns of one step */
+    private static final class Step {
+        final List<Long> posts = new ArrayList<>();
+        final List<Long> endToEnd = new ArrayList<>();
+        final Map<Integer, Integer> statusCodes = new TreeMap<>();
+
+        synchronized void post(final int status, final long nanos) {
+            this.statusCodes.merge(status, 1, Integer::sum);
+            this.posts.add(nanos);
+        }
+
+        synchronized void pullRequest(final long nanos) {
+            this.endToEnd.add(nanos);
+        }
+
+        synchronized int pullRequests() {
+            return this.endToEnd.size();
+        }
+    }
+
+    private final Vertx vertx = Vertx.vertx();
+    private final List<StandIn> standIns = new ArrayList<>();
+    /* marker -> nanoTime of the POST, until its pull request arrives */
+    private final Map<String, Long> open = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private WebClient client;
+    private int port;
+    private volatile Step step = new Step();
+
+    private LoadGenerator() {
+        // Use main
+    }
+
+    private void setUp() throws Exception {
+        final Future<StandIn> oauth = StandIn.oauth(this.vertx);
+        final Future<StandIn> bitbucket = StandIn.bitbucket(this.vertx, this::pullRequestArrived);
+        final Future<StandIn> pushover = StandIn.pushover(this.vertx);
+        final Future<StandIn> webhook = StandIn.webhook(this.vertx);
+        final Future<StandIn> ntfy = StandIn.ntfy(this.vertx);
+        final Future<StandIn> smtp = StandIn.smtp(this.vertx);
+        Future.all(List.of(oauth, bitbucket, pushover, webhook, ntfy, smtp))
+                .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        this.standIns.add(oauth.result());
+        this.standIns.add(bitbucket.result());
+        this.standIns.add(pushover.result());
+        this.standIns.add(webhook.result());
+        this.standIns.add(ntfy.result());
+        this.standIns.add(smtp.result());
+        this.standIns.forEach(s -> System.out.printf("Stand-in %s at %s: %s%n", s.name, s.url(),
+                s.behaviour));
+
+        this.port = Integer.parseInt(defaultProperty("PORT", String.valueOf(freePort())));
+        defaultProperty("OauthURL", oauth.result().url());
+        defaultProperty("BitbucketApi", bitbucket.result().url());
+        defaultProperty("PushoverApi", pushover.result().url());
+        defaultProperty("JournalDir",
+                Files.createTempDirectory("loadtest-journal").toString());
+        defaultProperty("RepositoryURL", "loadtest/comments");
+        defaultProperty("ClientToken", "loadtest");
+        defaultProperty("ClientSecret", "loadtest");
+        defaultProperty("PushUser", "loadtest");
+        defaultProperty("PushToken", "loadtest");
+        defaultProperty("NotifyWebhookURL", webhook.result().url() + "/hook");
+        defaultProperty("NtfyURL", ntfy.result().url() + "/comments");
+        defaultProperty("SmtpHost", "127.0.0.1");
+        defaultProperty("SmtpPort", String.valueOf(smtp.result().port()));
+        defaultProperty("MailTo", "loadtest@example.com");
+        // One client IP sends everything, admission control would stop it cold
+        defaultProperty("RateLimitPerMinute", "100000000");
+        defaultProperty("RateLimitBurst", "100000");
+        defaultProperty("MaxInFlight", "100000");
+
+        CommentService.main(new String[0]);
+        this.client = WebClient.create(this.vertx,
+                new WebClientOptions().setMaxPoolSize(256).setKeepAlive(true));
+        this.awaitService();
+    }
+
+    private void runStep(final int rate, final long duration, final long drain)
+            throws InterruptedException {
+        final Step current = new Step();
+        this.step = current;
+        this.open.clear();
+        final long total = rate * duration;
+        final long begin = System.nanoTime();
+        final AtomicLong sent = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        System.out.printf("%nStep: %d comments/s for %ds%n", rate, duration);
+
+        // Sends whatever is due since the start, so slow answers don't slow us
+        this.vertx.setPeriodic(SEND_INTERVAL, id -> {
+            final long due = Math.min(total,
+                    (System.nanoTime() - begin) * rate / TimeUnit.SECONDS.toNanos(1));
+            while (sent.get() < due) {
+                sent.incrementAndGet();
+                this.postComment(current);
+            }
+            if (sent.get() >= total) {
+                this.vertx.cancelTimer(id);
+                done.countDown();
+            }
+        });
+        done.await();
+
+        final long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+        while (current.pullRequests() < total && System.nanoTime() < drainUntil) {
+            Thread.sleep(200L);
+        }
+        this.report(current, total);
+    }
+
+    private void postComment(final Step current) {
+        final long number = this.sequence.incrementAndGet();
+        final String marker = "load-" + number;
+        final JsonObject comment = new JsonObject()
+                .put("Commentor", "Load Tester " + (number % 50))
+                .put("eMail", "tester" + (number % 50) + "@example.com")
+                .put("Body", "Comment " + marker + " on " + TOPICS[(int) (number % TOPICS.length)]
+                        + ": I tried what you described and it worked, thanks for sharing.")
+                .put("parentId", "loadtest/post-" + (number % 20));
+        final long start = System.nanoTime();
+        this.open.put(marker, start);
+        this.client.post(this.port, "127.0.0.1", "/blogcomments/load")
+                .putHeader("Origin", "http://localhost")
+                .sendJsonObject(comment, res -> {
+                    current.post(res.succeeded() ? res.result().statusCode() : 0,
+                            System.nanoTime() - start);
+                    if (res.failed() || res.result().statusCode() >= 300) {
+                        this.open.remove(marker);
+                    }
+                });
+    }
+
+    private void pullRequestArrived(final String branch, final List<String> bodies) {
+        final long now = System.nanoTime();
+        final Step current = this.step;
+        bodies.forEach(body -> {
+            final Matcher m = MARKER.matcher(body);
+            final Long start = m.find() ? this.open.remove(m.group()) : null;
+            if (start != null) {
+                current.pullRequest(now - start);
+            }
+        });
+    }
+
+    private void report(final Step current, final long total) {
+        synchronized (current) {
+            System.out.printf("POST status codes: %s%n", current.statusCodes);
+            System.out.printf("POST          %s%n", percentiles(current.posts));
+            System.out.printf("Comment to PR %s%n", percentiles(current.endToEnd));
+            System.out.printf("Pull requests for %d of %d comments, %d still open%n",
+                    current.endToEnd.size(), total, this.open.size());
+        }
+    }
+
+    private static String percentiles(final List<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return "no samples";
+        }
+        final long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+                sorted.length, at(sorted, 0.5), at(sorted, 0.9), at(sorted, 0.99),
+                at(sorted, 0.999), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double at(final long[] sorted, final double quantile) {
+        final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+    private void awaitService() throws InterruptedException {
+        for (int i = 0; i < 300; i++) {
+            final CountDownLatch answered = new CountDownLatch(1);
+            final AtomicLong status = new AtomicLong();
+            this.client.get(this.port, "127.0.0.1", "/").send(res -> {
+                status.set(res.succeeded() ? res.result().statusCode() : 0);
+                answered.countDown();
+            });
+            answered.await(1, TimeUnit.SECONDS);
+            if (status.get() > 0) {
+                return;
+            }
+            Thread.sleep(100L);
+        }
+        throw new IllegalStateException("CommentService didn't come up on port " + this.port);
+    }
+
+    private static String defaultProperty(final String key, final String value) {
+        if (System.getProperty(key) == null && System.getenv(key) == null) {
+            System.setProperty(key, value);
+        }
+        return System.getProperty(key, System.getenv(key));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
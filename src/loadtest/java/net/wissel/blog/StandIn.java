@@ -0,0 +1,362 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.parsetools.RecordParser;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.handler.BodyHandler;
+
+/**
+ * In-process replacement for one of the remote APIs the pipeline talks to:
+ * the OAuth token endpoint, the Bitbucket REST API, Pushover, a webhook, ntfy
+ * or a SMTP server. Answers after
+ * a configurable latency and fails or throttles a configurable share of the
+ * requests, see {@link Behaviour}
+ *
+ * @author swissel
+ */
+final class StandIn {
+
+    /**
+     * How a stand-in misbehaves, read from system properties
+     * standin.[name].latency (ms), .jitter (ms), .errorRate (0-1),
+     * .throttleRate (0-1, answered with 429), .retryAfter (s) and .lostRate
+     * (0-1, processed but answered with 504 as if the reply got lost)
+     */
+    static final class Behaviour {
+        final long latency;
+        final long jitter;
+        final double errorRate;
+        final double throttleRate;
+        final long retryAfter;
+        final double lostRate;
+
+        Behaviour(final long latency, final long jitter, final double errorRate,
+                final double throttleRate, final long retryAfter, final double lostRate) {
+            this.latency = latency;
+            this.jitter = jitter;
+            this.errorRate = errorRate;
+            this.throttleRate = throttleRate;
+            this.retryAfter = retryAfter;
+            this.lostRate = lostRate;
+        }
+
+        static Behaviour fromProperties(final String name, final long defaultLatency) {
+            final String prefix = "standin." + name + ".";
+            return new Behaviour(
+                    Long.getLong(prefix + "latency", defaultLatency),
+                    Long.getLong(prefix + "jitter", defaultLatency / 2),
+                    Double.parseDouble(System.getProperty(prefix + "errorRate", "0")),
+                    Double.parseDouble(System.getProperty(prefix + "throttleRate", "0")),
+                    Long.getLong(prefix + "retryAfter", 1L),
+                    Double.parseDouble(System.getProperty(prefix + "lostRate", "0")));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency %d±%dms, errors %.1f%%, 429 %.1f%% (Retry-After %ds),"
+                    + " lost %.1f%%", this.latency, this.jitter, this.errorRate * 100,
+                    this.throttleRate * 100, this.retryAfter, this.lostRate * 100);
+        }
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @return token endpoint handing out a fixed token
+     */
+    static Future<StandIn> oauth(final Vertx vertx) {
+        final StandIn standIn = new StandIn(vertx, "oauth", 40L);
+        standIn.router.post(OauthHelper.TOKEN_PATH).handler(standIn.wrap(ctx -> ctx.json(
+                new JsonObject().put(OauthHelper.TOKEN_NAME, "stand-in-token")
+                        .put("expires_in", 3600))));
+        return standIn.listen();
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @param onPullRequest gets the branch and the comment bodies committed
+     *        to it, once a pull request for the branch was accepted
+     * @return Bitbucket API with the src and pullrequests endpoints, plus the
+     *         branch and pull request lookups used before retries
+     */
+    static Future<StandIn> bitbucket(final Vertx vertx,
+            final BiConsumer<String, List<String>> onPullRequest) {
+        final StandIn standIn = new StandIn(vertx, "bitbucket", 150L);
+        final Map<String, List<String>> branches = new ConcurrentHashMap<>();
+        final Set<String> committed = ConcurrentHashMap.newKeySet();
+        final Set<String> pulled = ConcurrentHashMap.newKeySet();
+        standIn.router.post("/2.0/repositories/*").handler(BodyHandler.create());
+        standIn.router.post("/2.0/repositories/:owner/:repo/src").handler(standIn.wrap(ctx -> {
+            final List<String> bodies = new ArrayList<>();
+            ctx.request().formAttributes().forEach(field -> {
+                if (field.getKey().startsWith("/src/")) {
+                    bodies.add(new JsonObject(field.getValue()).getString("Body", ""));
+                }
+            });
+            final String branch = ctx.request().getFormAttribute("branch");
+            if (!committed.add(branch)) {
+                standIn.duplicates.incrementAndGet();
+            }
+            branches.put(branch, bodies);
+            ctx.response().setStatusCode(201).end();
+        }));
+        standIn.router.post("/2.0/repositories/:owner/:repo/pullrequests/")
+                .handler(standIn.wrap(ctx -> {
+                    final String branch = ctx.body().asJsonObject().getJsonObject("source")
+                            .getJsonObject("branch").getString("name");
+                    if (pulled.contains(branch)) {
+                        standIn.duplicates.incrementAndGet();
+                    } else {
+                        final List<String> bodies = branches.remove(branch);
+                        if (bodies == null) {
+                            ctx.response().setStatusCode(404).end();
+                            return;
+                        }
+                        pulled.add(branch);
+                        onPullRequest.accept(branch, bodies);
+                    }
+                    ctx.response().setStatusCode(201);
+                    ctx.json(new JsonObject().put("id", standIn.requests.get()));
+                }));
+        standIn.router.get("/2.0/repositories/:owner/:repo/refs/branches/:branch")
+                .handler(standIn.wrap(ctx -> {
+                    final String branch = ctx.pathParam("branch");
+                    if (committed.contains(branch)) {
+                        ctx.json(new JsonObject().put("name", branch));
+                    } else {
+                        ctx.response().setStatusCode(404).end();
+                    }
+                }));
+        standIn.router.get("/2.0/repositories/:owner/:repo/pullrequests")
+                .handler(standIn.wrap(ctx -> {
+                    // Only the source.branch.name="..." query the sink sends
+                    final String query = ctx.request().getParam("q", "");
+                    final int open = query.indexOf('"');
+                    final String branch = open < 0 ? ""
+                            : query.substring(open + 1, query.lastIndexOf('"'));
+                    final JsonArray values = new JsonArray();
+                    if (pulled.contains(branch)) {
+                        values.add(new JsonObject().put("id", branch.hashCode()));
+                    }
+                    ctx.json(new JsonObject().put("values", values));
+                }));
+        return standIn.listen();
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @return Pushover message endpoint
+     */
+    static Future<StandIn> pushover(final Vertx vertx) {
+        final StandIn standIn = new StandIn(vertx, "pushover", 80L);
+        standIn.router.post(Parameters.HTTP_PUSHAPI).handler(standIn.wrap(ctx -> ctx.json(
+                new JsonObject().put("status", 1).put("request", UUID.randomUUID().toString()))));
+        return standIn.listen();
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @return webhook accepting posts on /hook
+     */
+    static Future<StandIn> webhook(final Vertx vertx) {
+        final StandIn standIn = new StandIn(vertx, "webhook", 50L);
+        standIn.router.post("/hook").handler(standIn.wrap(ctx ->
+                ctx.response().setStatusCode(204).end()));
+        return standIn.listen();
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @return ntfy server accepting JSON messages for any topic on /
+     */
+    static Future<StandIn> ntfy(final Vertx vertx) {
+        final StandIn standIn = new StandIn(vertx, "ntfy", 50L);
+        standIn.router.post("/").handler(BodyHandler.create());
+        standIn.router.post("/").handler(standIn.wrap(ctx -> ctx.json(
+                new JsonObject().put("id", UUID.randomUUID().toString())
+                        .put("topic", ctx.body().asJsonObject().getString("topic")))));
+        return standIn.listen();
+    }
+
+    /**
+     * @param vertx where the stand-in runs
+     * @return SMTP server, answers every mail after the latency, with 451 for
+     *         errors and 452 for throttling
+     */
+    static Future<StandIn> smtp(final Vertx vertx) {
+        final StandIn standIn = new StandIn(vertx, "smtp", 100L);
+        standIn.scheme = "smtp";
+        return vertx.createNetServer().connectHandler(standIn::smtpSession)
+                .listen(0, "127.0.0.1")
+                .map(server -> {
+                    standIn.port = server.actualPort();
+                    return standIn;
+                });
+    }
+
+    final String name;
+    final Behaviour behaviour;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong throttled = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    final AtomicLong duplicates = new AtomicLong();
+    private final Vertx vertx;
+    private final Router router;
+    private int port = -1;
+    private String scheme = "http";
+
+    private StandIn(final Vertx vertx, final String name, final long defaultLatency) {
+        this.vertx = vertx;
+        this.name = name;
+        this.behaviour = Behaviour.fromProperties(name, defaultLatency);
+        this.router = Router.router(vertx);
+    }
+
+    /**
+     * @return URL the pipeline gets configured with
+     */
+    String url() {
+        return this.scheme + "://127.0.0.1:" + this.port;
+    }
+
+    /**
+     * @return port the stand-in listens on
+     */
+    int port() {
+        return this.port;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-9s %7d requests, %5d errors, %5d throttled, %5d lost,"
+                + " %5d duplicate writes", this.name, this.requests.get(), this.errors.get(),
+                this.throttled.get(), this.lost.get(), this.duplicates.get());
+    }
+
+    private Future<StandIn> listen() {
+        return this.vertx.createHttpServer().requestHandler(this.router).listen(0, "127.0.0.1")
+                .map(server -> {
+                    this.port = server.actualPort();
+                    return this;
+                });
+    }
+
+    /* Delays, fails or throttles before the real answer */
+    private Handler<RoutingContext> wrap(final Handler<RoutingContext> answer) {
+        return ctx -> {
+            this.requests.incrementAndGet();
+            final double roll = ThreadLocalRandom.current().nextDouble();
+            this.vertx.setTimer(this.nextDelay(), id -> {
+                if (roll < this.behaviour.throttleRate) {
+                    this.throttled.incrementAndGet();
+                    ctx.response().setStatusCode(429)
+                            .putHeader("Retry-After", String.valueOf(this.behaviour.retryAfter))
+                            .end();
+                } else if (roll < this.behaviour.throttleRate + this.behaviour.errorRate) {
+                    this.errors.incrementAndGet();
+                    ctx.response().setStatusCode(503).end();
+                } else if (roll < this.behaviour.throttleRate + this.behaviour.errorRate
+                        + this.behaviour.lostRate) {
+                    this.lost.incrementAndGet();
+                    ctx.addHeadersEndHandler(v -> ctx.response().setStatusCode(504));
+                    answer.handle(ctx);
+                } else {
+                    answer.handle(ctx);
+                }
+            });
+        };
+    }
+
+    private long nextDelay() {
+        return Math.max(1L, this.behaviour.latency + (this.behaviour.jitter > 0
+                ? ThreadLocalRandom.current().nextLong(-this.behaviour.jitter,
+                        this.behaviour.jitter + 1)
+                : 0L));
+    }
+
+    /* Just enough SMTP for the mail client: no AUTH, no STARTTLS */
+    private void smtpSession(final NetSocket socket) {
+        final AtomicBoolean inData = new AtomicBoolean(false);
+        socket.handler(RecordParser.newDelimited("\r\n", line -> {
+            final String command = line.toString();
+            if (inData.get()) {
+                if (".".equals(command)) {
+                    inData.set(false);
+                    this.answerMail(socket);
+                }
+                return;
+            }
+            final String verb = command.length() < 4 ? command
+                    : command.substring(0, 4).toUpperCase(Locale.ROOT);
+            switch (verb) {
+                case "EHLO":
+                    socket.write("250-stand-in\r\n250 8BITMIME\r\n");
+                    break;
+                case "DATA":
+                    inData.set(true);
+                    socket.write("354 End data with <CR><LF>.<CR><LF>\r\n");
+                    break;
+                case "QUIT":
+                    socket.write("221 Bye\r\n").onComplete(v -> socket.close());
+                    break;
+                default:
+                    socket.write("250 OK\r\n");
+            }
+        }));
+        socket.write("220 stand-in ESMTP\r\n");
+    }
+
+    private void answerMail(final NetSocket socket) {
+        this.requests.incrementAndGet();
+        final double roll = ThreadLocalRandom.current().nextDouble();
+        this.vertx.setTimer(this.nextDelay(), id -> {
+            if (roll < this.behaviour.throttleRate) {
+                this.throttled.incrementAndGet();
+                socket.write("452 4.3.1 Too many messages, try later\r\n");
+            } else if (roll < this.behaviour.throttleRate + this.behaviour.errorRate) {
+                this.errors.incrementAndGet();
+                socket.write("451 4.3.0 Try again later\r\n");
+            } else {
+                socket.write("250 2.0.0 Queued\r\n");
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Keeps the Bitbucket access token around until shortly before it expires,
+ * refreshes it in the background and makes sure concurrent callers share one
+ * token request instead of each doing their own round trip
+ *
+ * @author swissel
+ */
+public final class AccessTokenCache {
+
+    /* Token is considered stale that long before it actually expires */
+    private static final long EXPIRY_MARGIN = 30_000L;
+    /* Background refresh happens that long before expiry */
+    private static final long REFRESH_AHEAD = 300_000L;
+    /* Used when the IdP doesn't tell us how long the token lives */
+    private static final long DEFAULT_EXPIRES_IN = 3600L;
+    /* Wait time before another background attempt after a failed refresh */
+    private static final long REFRESH_RETRY = 30_000L;
+
+    private static final Logger LOGGER = LogManager.getLogger(AccessTokenCache.class);
+    private static final Map<Vertx, AccessTokenCache> CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * One cache per Vert.x instance, shared by all verticles
+     *
+     * @param vertx the Vert.x instance
+     * @return the cache
+     */
+    public static AccessTokenCache forVertx(final Vertx vertx) {
+        return CACHES.computeIfAbsent(vertx, AccessTokenCache::new);
+    }
+
+    private final Vertx vertx;
+    private final WebClient client;
+    private String accessToken = null;
+    private long expiresAt = 0L;
+    private Future<String> inFlight = null;
+    private long refreshTimer = -1L;
+
+    private AccessTokenCache(final Vertx vertx) {
+        this.vertx = vertx;
+        this.client = HttpClients.forVertx(vertx).client(Config.INSTANCE.getOauthEndpoint());
+    }
+
+    /**
+     * Returns the cached token or joins the one request currently fetching it.
+     * Callbacks are delivered on the context of the caller
+     *
+     * @return Future with the access token
+     */
+    public Future<String> getAccessToken() {
+        final Future<String> source;
+        synchronized (this) {
+            if (this.accessToken != null
+                    && System.currentTimeMillis() < this.expiresAt - EXPIRY_MARGIN) {
+                return Future.succeededFuture(this.accessToken);
+            }
+            source = this.fetchToken();
+        }
+        final Context callerContext = Vertx.currentContext();
+        if (callerContext == null) {
+            return source;
+        }
+        final Promise<String> result = Promise.promise();
+        source.onComplete(ar -> callerContext.runOnContext(v -> result.handle(ar)));
+        return result.future();
+    }
+
+    /**
+     * Drops the token when Bitbucket rejected it, the next caller fetches a
+     * new one. A token that got replaced meanwhile stays
+     *
+     * @param token the rejected token
+     */
+    public synchronized void invalidate(final String token) {
+        if (token != null && token.equals(this.accessToken)) {
+            this.accessToken = null;
+            this.expiresAt = 0L;
+            LOGGER.info("Access token got rejected, fetching a new one");
+        }
+    }
+
+    /* Must be called holding the monitor */
+    private Future<String> fetchToken() {
+        if (this.inFlight == null) {
+            final Future<JsonObject> request = OauthHelper.requestToken(this.client);
+            final Future<String> token =
+                    request.map(authJson -> authJson.getString(OauthHelper.TOKEN_NAME));
+            // Set before the callback, a request completing right away clears it again
+            this.inFlight = token;
+            request.onComplete(this::tokenArrived);
+            return token;
+        }
+        return this.inFlight;
+    }
+
+    private synchronized void tokenArrived(final AsyncResult<JsonObject> ar) {
+        this.inFlight = null;
+        if (ar.failed()) {
+            if (this.accessToken != null && System.currentTimeMillis() < this.expiresAt) {
+                // Old token is still good, try again a little later
+                this.scheduleRefresh(REFRESH_RETRY);
+            }
+            return;
+        }
+        final long expiresIn = ar.result().getLong("expires_in", DEFAULT_EXPIRES_IN);
+        final long lifeTime = expiresIn * 1000L;
+        this.accessToken = ar.result().getString(OauthHelper.TOKEN_NAME);
+        this.expiresAt = System.currentTimeMillis() + lifeTime;
+        this.scheduleRefresh(Math.max(lifeTime - REFRESH_AHEAD, lifeTime / 2));
+        LOGGER.debug("Access token cached for {}s", expiresIn);
+    }
+
+    /* Must be called holding the monitor */
+    private void scheduleRefresh(final long delay) {
+        if (this.refreshTimer >= 0) {
+            this.vertx.cancelTimer(this.refreshTimer);
+        }
+        this.refreshTimer = this.vertx.setTimer(Math.max(1L, delay), id -> {
+            synchronized (this) {
+                this.refreshTimer = -1L;
+                this.fetchToken();
+            }
+        });
+    }
+}
@@ -0,0 +1,150 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Decides if a comment POST gets processed at all, before its body is read:
+ * a token bucket per client IP, a limit of comments in flight across all web
+ * listener instances and a cap on the announced body size. Answers 429 or 413
+ * otherwise, and 503 while the {@link IngestBacklog} is full
+ *
+ * @author swissel
+ */
+public final class AdmissionControl implements Handler<RoutingContext> {
+
+    /* Buckets not touched for that long get dropped */
+    private static final long IDLE_EVICTION = TimeUnit.MINUTES.toNanos(10);
+    private static final long EVICTION_INTERVAL = 60_000L;
+    /* Seconds a client should wait when the backlog is full */
+    private static final String BACKLOG_RETRY_AFTER = "60";
+
+    private static final Logger LOGGER = LogManager.getLogger(AdmissionControl.class);
+    private static AdmissionControl shared = null;
+
+    /**
+     * One admission control for all web listener instances
+     *
+     * @param vertx the Vert.x instance, runs the idle eviction
+     * @return the shared instance
+     */
+    public static synchronized AdmissionControl shared(final Vertx vertx) {
+        if (shared == null) {
+            shared = new AdmissionControl(Config.INSTANCE.getRateLimitPerMinute(),
+                    Config.INSTANCE.getRateLimitBurst(), Config.INSTANCE.getMaxInFlight(),
+                    Config.INSTANCE.getMaxBodySize());
+            vertx.setPeriodic(EVICTION_INTERVAL, id -> shared.evictIdle());
+        }
+        return shared;
+    }
+
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final double tokensPerNano;
+    private final double burst;
+    private final int maxInFlight;
+    private final long maxBodySize;
+
+    private AdmissionControl(final long perMinute, final long burst, final int maxInFlight,
+            final long maxBodySize) {
+        this.tokensPerNano = (double) perMinute / TimeUnit.MINUTES.toNanos(1);
+        this.burst = Math.max(1L, burst);
+        this.maxInFlight = maxInFlight;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * @return the body limit to configure on the BodyHandler behind us, it
+     *         catches chunked bodies without a Content-Length
+     */
+    public long getMaxBodySize() {
+        return this.maxBodySize;
+    }
+
+    @Override
+    public void handle(final RoutingContext ctx) {
+        final HttpServerResponse response = ctx.response();
+        final String contentLength = ctx.request().getHeader("Content-Length");
+        if (contentLength != null && this.tooLarge(contentLength)) {
+            Metrics.INSTANCE.admissionRejected(Metrics.REJECT_BODY_SIZE);
+            response.putHeader("Connection", "close");
+            ResultMessage.end(response, "Your comment is too long", 413);
+            return;
+        }
+
+        if (IngestBacklog.shared().isFull()) {
+            Metrics.INSTANCE.admissionRejected(Metrics.REJECT_BACKLOG);
+            response.putHeader("Retry-After", BACKLOG_RETRY_AFTER);
+            ResultMessage.end(response, Parameters.BUSY_MESSAGE, 503);
+            return;
+        }
+
+        final long now = System.nanoTime();
+        final String clientIP = ctx.request().remoteAddress().host();
+        final long wait = this.buckets
+                .computeIfAbsent(clientIP, ip -> new TokenBucket(this.burst, now))
+                .tryAcquire(now, this.tokensPerNano, this.burst);
+        if (wait > 0) {
+            Metrics.INSTANCE.admissionRejected(Metrics.REJECT_RATE);
+            response.putHeader("Retry-After",
+                    String.valueOf(Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(wait))));
+            ResultMessage.end(response, "Slow down, too many comments", 429);
+            return;
+        }
+
+        if (this.inFlight.incrementAndGet() > this.maxInFlight) {
+            this.inFlight.decrementAndGet();
+            Metrics.INSTANCE.admissionRejected(Metrics.REJECT_IN_FLIGHT);
+            response.putHeader("Retry-After", "5");
+            ResultMessage.end(response, "We are busy, please try again shortly", 429);
+            return;
+        }
+        ctx.addEndHandler(v -> this.inFlight.decrementAndGet());
+        ctx.next();
+    }
+
+    private boolean tooLarge(final String contentLength) {
+        try {
+            return Long.parseLong(contentLength.trim()) > this.maxBodySize;
+        } catch (final NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private void evictIdle() {
+        final long cutoff = System.nanoTime() - IDLE_EVICTION;
+        final int before = this.buckets.size();
+        this.buckets.values().removeIf(bucket -> bucket.getLastSeen() < cutoff);
+        if (before != this.buckets.size()) {
+            LOGGER.debug("Evicted {} idle rate limit buckets", before - this.buckets.size());
+        }
+    }
+}
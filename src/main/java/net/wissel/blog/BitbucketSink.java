@@ -0,0 +1,200 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+
+/**
+ * Commits comments through the Bitbucket REST API and opens pull requests
+ * there. Token request and API call together go through one
+ * {@link CircuitBreaker}, an unhealthy Bitbucket fails fast. A 401 drops the
+ * cached token and the call gets one more try with a fresh one
+ *
+ * @author swissel
+ */
+public class BitbucketSink implements CommentSink {
+
+    private static final String BRANCH = "branch";
+    /* A pull request in any of these means we opened it before */
+    private static final String[] PULL_REQUEST_STATES = {"OPEN", "MERGED", "DECLINED",
+            "SUPERSEDED"};
+
+    private final Vertx vertx;
+    private final WebClient client;
+    private final Endpoint api = Config.INSTANCE.getBitbucketApi();
+    private final CircuitBreaker breaker = new CircuitBreaker("bitbucket",
+            Config.INSTANCE.getBreakerWindow(), Config.INSTANCE.getBreakerErrorPercent(),
+            Config.INSTANCE.getBreakerOpenTime() * 1000L);
+
+    BitbucketSink(final Vertx vertx) {
+        this.vertx = vertx;
+        this.client = HttpClients.forVertx(vertx).client(this.api);
+    }
+
+    @Override
+    public Future<Void> commit(final String branch, final String author, final String message,
+            final Map<String, String> files) {
+        // HTTP Form format as used by Bitbucket API, one field per file
+        final MultiMap form = MultiMap.caseInsensitiveMultiMap();
+        form.set("author", author);
+        form.set("message", message);
+        form.set(BRANCH, branch);
+        files.forEach(form::set);
+        final String target = "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL() + "/src";
+        return this.breaker.call(() -> this.withToken(accessToken -> {
+            final Promise<Void> result = Promise.promise();
+            final long start = System.nanoTime();
+            this.client.post(this.api.getPort(), this.api.getHost(), target)
+                    .ssl(this.api.isSsl())
+                    .putHeader("Content-Type", "application/x-www-form-urlencoded")
+                    .putHeader("Authorization", "Bearer " + accessToken)
+                    .sendForm(form, res -> this.complete(Metrics.STAGE_COMMIT, start,
+                            res, result));
+            return result.future();
+        }));
+    }
+
+    @Override
+    public Future<Void> openPullRequest(final String branch, final String title) {
+        final JsonObject source = new JsonObject()
+                .put(BRANCH, new JsonObject().put("name", branch))
+                .put("repository",
+                        new JsonObject().put("full_name", Config.INSTANCE.getRepositoryURL()));
+        final JsonObject destination = new JsonObject()
+                .put(BRANCH, new JsonObject().put("name", "master"));
+        final JsonObject body = new JsonObject()
+                .put("title", title)
+                .put("source", source)
+                .put("destination", destination)
+                .put("close_source_branch", true);
+        final String target =
+                "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL() + "/pullrequests/";
+        return this.breaker.call(() -> this.withToken(accessToken -> {
+            final Promise<Void> result = Promise.promise();
+            final long start = System.nanoTime();
+            this.client.post(this.api.getPort(), this.api.getHost(), target)
+                    .ssl(this.api.isSsl())
+                    .putHeader("Content-Type", "application/json")
+                    .putHeader("Authorization", "Bearer " + accessToken)
+                    .sendJson(body, res -> this.complete(Metrics.STAGE_PULLREQUEST,
+                            start, res, result));
+            return result.future();
+        }));
+    }
+
+    @Override
+    public Future<Boolean> hasBranch(final String branch) {
+        final String target = "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL()
+                + "/refs/branches/" + branch;
+        return this.exists(this.client.get(this.api.getPort(), this.api.getHost(), target),
+                response -> true);
+    }
+
+    @Override
+    public Future<Boolean> hasPullRequest(final String branch) {
+        final String target =
+                "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL() + "/pullrequests";
+        final HttpRequest<Buffer> request =
+                this.client.get(this.api.getPort(), this.api.getHost(), target)
+                        .addQueryParam("q", "source.branch.name=\"" + branch + "\"")
+                        .addQueryParam("fields", "values.id");
+        for (final String state : PULL_REQUEST_STATES) {
+            request.addQueryParam("state", state);
+        }
+        return this.exists(request, response -> {
+            final JsonObject page = response.bodyAsJsonObject();
+            final JsonArray values = page == null ? null : page.getJsonArray("values");
+            return values != null && !values.isEmpty();
+        });
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return this.breaker.isAvailable();
+    }
+
+    /* GET through the breaker, a 404 means no */
+    private Future<Boolean> exists(final HttpRequest<Buffer> request,
+            final Predicate<HttpResponse<Buffer>> found) {
+        return this.breaker.call(() -> this.withToken(accessToken -> {
+            final Promise<Boolean> result = Promise.promise();
+            final long start = System.nanoTime();
+            request.ssl(this.api.isSsl())
+                    .putHeader("Authorization", "Bearer " + accessToken)
+                    .send(res -> {
+                        if (res.succeeded() && res.result().statusCode() == 404) {
+                            // An answer, not an error
+                            Metrics.INSTANCE.bitbucketCall(Metrics.STAGE_RECONCILE,
+                                    System.nanoTime() - start, 200);
+                            result.complete(false);
+                            return;
+                        }
+                        final Promise<Void> checked = Promise.promise();
+                        this.complete(Metrics.STAGE_RECONCILE, start, res, checked);
+                        checked.future().map(v -> found.test(res.result()))
+                                .onComplete(result);
+                    });
+            return result.future();
+        }));
+    }
+
+    /* Runs the call with the cached token, once more with a fresh one after a 401 */
+    private <T> Future<T> withToken(final Function<String, Future<T>> call) {
+        final AccessTokenCache tokens = AccessTokenCache.forVertx(this.vertx);
+        return tokens.getAccessToken().compose(token -> call.apply(token).recover(err -> {
+            if (err instanceof SinkException && ((SinkException) err).getStatusCode() == 401) {
+                tokens.invalidate(token);
+                return tokens.getAccessToken().compose(call);
+            }
+            return Future.failedFuture(err);
+        }));
+    }
+
+    private void complete(final String stage, final long start,
+            final AsyncResult<HttpResponse<Buffer>> res,
+            final Promise<Void> result) {
+        Metrics.INSTANCE.bitbucketCall(stage, System.nanoTime() - start,
+                res.failed() ? 0 : res.result().statusCode());
+        if (res.failed()) {
+            result.fail(res.cause());
+        } else if (res.result().statusCode() >= 300) {
+            result.fail(new SinkException("Bitbucket answered " + res.result().statusCode(),
+                    res.result().statusCode(),
+                    RetryScheduler.parseRetryAfter(res.result().getHeader("Retry-After"))));
+        } else {
+            result.complete();
+        }
+    }
+}
@@ -22,10 +22,11 @@
 package net.wissel.blog;
 
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 
 @JsonIgnoreProperties
 public class BlogComment {
@@ -37,7 +38,7 @@ public class BlogComment {
 	public String parentId;
 	public Date created = new Date();
 	public boolean markdown = false;
-	public final Map<String, String> parameters = new HashMap<>();
+	public final Map<String, String> parameters = new LinkedHashMap<>();
 
 	/**
 	 * We want: a message, a name and an eMail
@@ -85,4 +86,30 @@ public class BlogComment {
 			throw new InvalidContentException(problems.encodePrettily());
 		}
 	}
+
+	/**
+	 * The comment as it travels through the pipeline, built from the fields
+	 * without another round through Jackson
+	 *
+	 * @return JSON with the set fields, created is added by the pipeline
+	 */
+	public JsonObject toJson() {
+		final Map<String, Object> json = new LinkedHashMap<>();
+		putIfSet(json, "Commentor", this.Commentor);
+		putIfSet(json, "eMail", this.eMail);
+		putIfSet(json, "webSite", this.webSite);
+		putIfSet(json, "Body", this.Body);
+		putIfSet(json, "captcha", this.captcha);
+		putIfSet(json, "parentId", this.parentId);
+		json.put("markdown", this.markdown);
+		json.put("parameters", new JsonObject(new LinkedHashMap<String, Object>(this.parameters)));
+		return new JsonObject(json);
+	}
+
+	private static void putIfSet(final Map<String, Object> json, final String key,
+			final String value) {
+		if (value != null) {
+			json.put(key, value);
+		}
+	}
 }
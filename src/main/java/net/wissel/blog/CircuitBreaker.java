@@ -0,0 +1,239 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Future;
+
+/**
+ * Stops calling a remote that keeps failing. Outcomes get counted in one
+ * second buckets over a rolling window; when enough calls in the window failed
+ * the breaker opens and fails calls right away. After the open time a single
+ * probe goes through (half open), a few successful probes in a row close the
+ * breaker again, a failed one opens it for twice as long.
+ *
+ * Thread safe, the store and the pull request verticle share one breaker.
+ *
+ * @author swissel
+ */
+public final class CircuitBreaker {
+
+    /* Calls needed in the window before the error rate counts */
+    private static final int MIN_CALLS = 10;
+    /* Successful probes in a row that close the breaker */
+    private static final int PROBES_TO_CLOSE = 3;
+    /* Upper limit for the open time doubling on failed probes */
+    private static final int MAX_BACKOFF_SHIFT = 4;
+
+    private static final Logger LOGGER = LogManager.getLogger(CircuitBreaker.class);
+
+    /**
+     * Breaker states, the ordinal is what the metrics show
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * A call the breaker didn't let through, nothing was sent to the remote
+     */
+    public static final class OpenException extends SinkException {
+
+        private static final long serialVersionUID = 1L;
+
+        OpenException(final String name, final long retryAfter) {
+            super("Circuit " + name + " is open", 503, retryAfter);
+        }
+    }
+
+    private final String name;
+    private final int errorPercent;
+    private final long openTime;
+    private final long[] bucketSecond;
+    private final int[] bucketCalls;
+    private final int[] bucketFailures;
+    private State state = State.CLOSED;
+    private long openUntil = 0L;
+    private int openCount = 0;
+    private boolean probeInFlight = false;
+    private int probeSuccesses = 0;
+
+    /**
+     * @param name shows up in logs and metrics
+     * @param windowSeconds length of the rolling window
+     * @param errorPercent failed calls in percent that open the breaker
+     * @param openTime ms to wait before the first probe
+     */
+    public CircuitBreaker(final String name, final int windowSeconds, final int errorPercent,
+            final long openTime) {
+        this.name = name;
+        this.errorPercent = errorPercent;
+        this.openTime = openTime;
+        this.bucketSecond = new long[windowSeconds];
+        this.bucketCalls = new int[windowSeconds];
+        this.bucketFailures = new int[windowSeconds];
+        Metrics.INSTANCE.circuitBreaker(name, this);
+    }
+
+    /**
+     * Runs the call unless the breaker is open. Network errors, 429 and 5xx
+     * count as failure, other answers tell us the remote is alive
+     *
+     * @param <T> result type
+     * @param call starts the remote call
+     * @return the outcome of the call or an {@link OpenException}
+     */
+    public <T> Future<T> call(final Supplier<Future<T>> call) {
+        final long wait = this.tryAcquire();
+        if (wait > 0) {
+            return Future.failedFuture(new OpenException(this.name, wait));
+        }
+        final boolean probe = wait < 0;
+        Future<T> started;
+        try {
+            started = call.get();
+        } catch (final RuntimeException e) {
+            // Still has to be recorded, a probe would stay in flight forever
+            started = Future.failedFuture(e);
+        }
+        return started
+                .onComplete(ar -> this.record(ar.failed() && isFailure(ar.cause()), probe));
+    }
+
+    /**
+     * @return current state, an open breaker past its open time still reports
+     *         open until the next call probes
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return true when a call would go through right now
+     */
+    public synchronized boolean isAvailable() {
+        switch (this.state) {
+            case OPEN:
+                return System.currentTimeMillis() >= this.openUntil;
+            case HALF_OPEN:
+                return !this.probeInFlight;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean isFailure(final Throwable cause) {
+        if (!(cause instanceof SinkException)) {
+            return true;
+        }
+        final int status = ((SinkException) cause).getStatusCode();
+        return status == 0 || status == 429 || status >= 500;
+    }
+
+    /* @return 0 when the call may go ahead, -1 when it goes as probe, otherwise ms to wait */
+    private synchronized long tryAcquire() {
+        final long now = System.currentTimeMillis();
+        if (this.state == State.OPEN) {
+            if (now < this.openUntil) {
+                return this.openUntil - now;
+            }
+            this.transition(State.HALF_OPEN);
+            this.probeSuccesses = 0;
+        }
+        if (this.state == State.HALF_OPEN) {
+            if (this.probeInFlight) {
+                // Lets the probe report back first
+                return 1000L;
+            }
+            this.probeInFlight = true;
+            return -1L;
+        }
+        return 0L;
+    }
+
+    private synchronized void record(final boolean failed, final boolean probe) {
+        final long now = System.currentTimeMillis();
+        final int index = this.bucket(now);
+        this.bucketCalls[index]++;
+        if (failed) {
+            this.bucketFailures[index]++;
+        }
+
+        if (probe && this.state == State.HALF_OPEN) {
+            this.probeInFlight = false;
+            if (failed) {
+                this.open(now);
+            } else if (++this.probeSuccesses >= PROBES_TO_CLOSE) {
+                this.openCount = 0;
+                this.resetWindow();
+                this.transition(State.CLOSED);
+            }
+        } else if (this.state == State.CLOSED && failed) {
+            int calls = 0;
+            int failures = 0;
+            final long oldest = now / 1000L - this.bucketSecond.length;
+            for (int i = 0; i < this.bucketSecond.length; i++) {
+                if (this.bucketSecond[i] > oldest) {
+                    calls += this.bucketCalls[i];
+                    failures += this.bucketFailures[i];
+                }
+            }
+            if (calls >= MIN_CALLS && failures * 100 >= calls * this.errorPercent) {
+                this.open(now);
+            }
+        }
+    }
+
+    /* Bucket for the current second, reset when it held an older second */
+    private int bucket(final long now) {
+        final long second = now / 1000L;
+        final int index = (int) (second % this.bucketSecond.length);
+        if (this.bucketSecond[index] != second) {
+            this.bucketSecond[index] = second;
+            this.bucketCalls[index] = 0;
+            this.bucketFailures[index] = 0;
+        }
+        return index;
+    }
+
+    private void resetWindow() {
+        for (int i = 0; i < this.bucketSecond.length; i++) {
+            this.bucketSecond[i] = 0L;
+        }
+    }
+
+    private void open(final long now) {
+        final int shift = Math.min(this.openCount, MAX_BACKOFF_SHIFT);
+        this.openCount++;
+        this.openUntil = now + (this.openTime << shift);
+        this.transition(State.OPEN);
+    }
+
+    private void transition(final State next) {
+        if (this.state != next) {
+            LOGGER.warn("Circuit {} {} -> {}", this.name, this.state, next);
+            this.state = next;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonFactoryBuilder;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Reads a posted comment in one pass over the request body, straight into a
+ * {@link BlogComment}: no JSON tree, no data binding. Only the fields of a
+ * comment are accepted, each with a length limit that is checked before the
+ * value becomes a String
+ *
+ * @author swissel
+ */
+public final class CommentDecoder {
+
+    static final int MAX_NAME = 200;
+    static final int MAX_EMAIL = 254;
+    static final int MAX_URL = 2048;
+    static final int MAX_BODY = 65_536;
+    static final int MAX_CAPTCHA = 4096;
+    static final int MAX_PARENT_ID = 512;
+
+    /* Thread safe once configured, parsers recycle their buffers per thread */
+    private static final JsonFactory FACTORY = new JsonFactoryBuilder()
+            .streamReadConstraints(StreamReadConstraints.builder()
+                    .maxStringLength(MAX_BODY * 4)
+                    .maxNestingDepth(2)
+                    .build())
+            .build();
+
+    private CommentDecoder() {
+        // Static methods only
+    }
+
+    /**
+     * @param body the request body, UTF-8 JSON
+     * @return the comment, not yet validated beyond length and field names
+     * @throws InvalidContentException when the body isn't a JSON object with
+     *         comment fields only, or a field is too long
+     */
+    public static BlogComment decode(final Buffer body) throws InvalidContentException {
+        if (body == null || body.length() == 0) {
+            throw new InvalidContentException("Sorry, your comment was empty");
+        }
+        final BlogComment comment = new BlogComment();
+        try (JsonParser parser = createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new InvalidContentException("Sorry, that doesn't look like a comment");
+            }
+            String field;
+            while ((field = parser.nextFieldName()) != null) {
+                final JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "Commentor":
+                        comment.Commentor = text(parser, value, field, MAX_NAME);
+                        break;
+                    case "eMail":
+                        comment.eMail = text(parser, value, field, MAX_EMAIL);
+                        break;
+                    case "webSite":
+                        comment.webSite = text(parser, value, field, MAX_URL);
+                        break;
+                    case "Body":
+                        comment.Body = text(parser, value, field, MAX_BODY);
+                        break;
+                    case "captcha":
+                        comment.captcha = text(parser, value, field, MAX_CAPTCHA);
+                        break;
+                    case "parentId":
+                        comment.parentId = text(parser, value, field, MAX_PARENT_ID);
+                        break;
+                    default:
+                        throw new InvalidContentException(
+                                "Sorry, comments don't have a field " + abbreviate(field));
+                }
+            }
+            if (parser.nextToken() != null) {
+                throw new InvalidContentException("Sorry, that doesn't look like a comment");
+            }
+        } catch (final IOException e) {
+            throw new InvalidContentException("Sorry, that doesn't look like a comment");
+        }
+        return comment;
+    }
+
+    private static JsonParser createParser(final Buffer body) throws IOException {
+        final ByteBuf buf = body.getByteBuf();
+        if (buf.hasArray()) {
+            return FACTORY.createParser(buf.array(), buf.arrayOffset() + buf.readerIndex(),
+                    buf.readableBytes());
+        }
+        return FACTORY.createParser((InputStream) new ByteBufInputStream(buf));
+    }
+
+    /* A string or null, length checked before the String gets built */
+    private static String text(final JsonParser parser, final JsonToken value,
+            final String field, final int maxLength) throws IOException, InvalidContentException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value != JsonToken.VALUE_STRING) {
+            throw new InvalidContentException("Sorry, " + field + " needs to be text");
+        }
+        if (parser.getTextLength() > maxLength) {
+            throw new InvalidContentException(
+                    "Sorry, " + field + " is limited to " + maxLength + " characters");
+        }
+        return parser.getText();
+    }
+
+    private static String abbreviate(final String field) {
+        return field.length() > 40 ? field.substring(0, 40) + "..." : field;
+    }
+}
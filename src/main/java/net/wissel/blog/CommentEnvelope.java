@@ -0,0 +1,290 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * What travels between the pipeline verticles: one comment, or all comments
+ * committed on one branch, plus where they are in the pipeline. Immutable,
+ * every change returns a new envelope sharing the comments, so the event bus
+ * can hand the same instance to the consumer instead of copying the JSON on
+ * every hop, see {@link #registerCodec(EventBus)}
+ *
+ * @author swissel
+ */
+public final class CommentEnvelope {
+
+    public static final String BRANCH = "branch";
+    public static final String FAILURE = "Failure";
+
+    private static final String COMMENTS = "comments";
+    private static final String ATTEMPT = "attempt";
+
+    /**
+     * Local codec: in-process delivery passes the reference. The wire format
+     * is only there for completeness, the pipeline runs in one JVM
+     */
+    static final class Codec implements MessageCodec<CommentEnvelope, CommentEnvelope> {
+
+        static final String NAME = "comment-envelope";
+
+        @Override
+        public void encodeToWire(final Buffer buffer, final CommentEnvelope envelope) {
+            final Buffer encoded = envelope.toWire().toBuffer();
+            buffer.appendInt(encoded.length());
+            buffer.appendBuffer(encoded);
+        }
+
+        @Override
+        public CommentEnvelope decodeFromWire(final int pos, final Buffer buffer) {
+            final int length = buffer.getInt(pos);
+            return fromWire(new JsonObject(buffer.slice(pos + 4, pos + 4 + length)));
+        }
+
+        @Override
+        public CommentEnvelope transform(final CommentEnvelope envelope) {
+            return envelope;
+        }
+
+        @Override
+        public String name() {
+            return NAME;
+        }
+
+        @Override
+        public byte systemCodecID() {
+            return -1;
+        }
+    }
+
+    /**
+     * Makes envelopes travel by reference, call once per Vert.x instance
+     *
+     * @param eb the event bus
+     */
+    public static void registerCodec(final EventBus eb) {
+        eb.registerDefaultCodec(CommentEnvelope.class, new Codec());
+    }
+
+    /**
+     * Wraps a comment, adding id and creation date when missing. The envelope
+     * takes the JSON over, don't change it afterwards
+     *
+     * @param comment the comment as accepted by the web listener
+     * @return envelope for the comment
+     */
+    public static CommentEnvelope of(final JsonObject comment) {
+        if (!comment.containsKey(Parameters.CREATED)) {
+            comment.put(Parameters.CREATED,
+                    new SimpleDateFormat(Parameters.IMPORT_DATE_FORMAT, Locale.US)
+                            .format(new Date()));
+        }
+        if (!comment.containsKey(Parameters.ID_COMMENT)) {
+            comment.put(Parameters.ID_COMMENT, UUID.randomUUID().toString());
+        }
+        return new CommentEnvelope(List.of(freeze(comment)), comment.getString(BRANCH), 0,
+                null);
+    }
+
+    /**
+     * @param comments envelopes committed together
+     * @param branch where they got committed
+     * @return one envelope for all of them
+     */
+    public static CommentEnvelope batch(final List<CommentEnvelope> comments,
+            final String branch) {
+        return new CommentEnvelope(comments.stream()
+                .flatMap(envelope -> envelope.comments.stream())
+                .collect(Collectors.toUnmodifiableList()), branch, 0, null);
+    }
+
+    /* Read-only view on the JSON, nested objects included */
+    private static JsonObject freeze(final JsonObject json) {
+        final Map<String, Object> map = json.getMap();
+        map.replaceAll((key, value) -> value instanceof JsonObject
+                ? freeze((JsonObject) value)
+                : value);
+        return new JsonObject(Collections.unmodifiableMap(map));
+    }
+
+    private static CommentEnvelope fromWire(final JsonObject json) {
+        return new CommentEnvelope(json.getJsonArray(COMMENTS).stream()
+                .map(comment -> freeze((JsonObject) comment))
+                .collect(Collectors.toUnmodifiableList()),
+                json.getString(BRANCH), json.getInteger(ATTEMPT, 0), json.getString(FAILURE));
+    }
+
+    private final List<JsonObject> comments;
+    private final String branch;
+    private final int attempt;
+    private final String failure;
+
+    private CommentEnvelope(final List<JsonObject> comments, final String branch,
+            final int attempt, final String failure) {
+        this.comments = comments;
+        this.branch = branch;
+        this.attempt = attempt;
+        this.failure = failure;
+    }
+
+    /**
+     * @return the (first) comment, read-only
+     */
+    public JsonObject getComment() {
+        return this.comments.get(0);
+    }
+
+    /**
+     * @return all comments in the envelope, read-only
+     */
+    public List<JsonObject> getComments() {
+        return this.comments;
+    }
+
+    public String getCommentId() {
+        return this.getComment().getString(Parameters.ID_COMMENT);
+    }
+
+    public List<String> getCommentIds() {
+        return this.comments.stream().map(c -> c.getString(Parameters.ID_COMMENT))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return distinct names of the commentors, comma separated
+     */
+    public String getCommentors() {
+        return this.distinct("Commentor");
+    }
+
+    /**
+     * @return distinct mail addresses, comma separated
+     */
+    public String getEmails() {
+        return this.distinct("eMail");
+    }
+
+    /**
+     * @return title for commit and pull request
+     */
+    public String getTitle() {
+        return this.comments.size() == 1
+                ? "Comment from " + this.getComment().getString("Commentor", "Anonymous")
+                : this.comments.size() + " comments from " + this.getCommentors();
+    }
+
+    /**
+     * @return branch the comments were committed to, null before
+     */
+    public String getBranch() {
+        return this.branch;
+    }
+
+    /**
+     * @return number of failed attempts of the current pipeline stage
+     */
+    public int getAttempt() {
+        return this.attempt;
+    }
+
+    /**
+     * @return why we gave up on the comments, null while all is well
+     */
+    public String getFailure() {
+        return this.failure;
+    }
+
+    /**
+     * @return one envelope per comment on the same branch, attempts start over
+     */
+    public List<CommentEnvelope> split() {
+        return this.comments.stream()
+                .map(comment -> new CommentEnvelope(List.of(comment), this.branch, 0,
+                        this.failure))
+                .collect(Collectors.toUnmodifiableList());
+    }
+
+    /**
+     * @param committedTo branch the comments were committed to
+     * @return envelope for the next stage, attempts start over
+     */
+    public CommentEnvelope withBranch(final String committedTo) {
+        return new CommentEnvelope(this.comments, committedTo, 0, this.failure);
+    }
+
+    /**
+     * @param failedAttempts attempts of the current stage so far
+     * @return envelope to retry
+     */
+    public CommentEnvelope withAttempt(final int failedAttempts) {
+        return new CommentEnvelope(this.comments, this.branch, failedAttempts, this.failure);
+    }
+
+    /**
+     * @param reason why we gave up
+     * @return envelope for the failure notification
+     */
+    public CommentEnvelope withFailure(final String reason) {
+        return new CommentEnvelope(this.comments, this.branch, this.attempt, reason);
+    }
+
+    /**
+     * The (first) comment as journal and repository store it: all its fields
+     * plus the branch. The top level is a fresh object, free to modify
+     *
+     * @return JSON of the comment
+     */
+    public JsonObject toJson() {
+        final JsonObject json = new JsonObject(new LinkedHashMap<>(this.getComment().getMap()));
+        if (this.branch != null) {
+            json.put(BRANCH, this.branch);
+        }
+        return json;
+    }
+
+    private JsonObject toWire() {
+        return new JsonObject()
+                .put(COMMENTS, new JsonArray(this.comments))
+                .put(BRANCH, this.branch)
+                .put(ATTEMPT, this.attempt)
+                .put(FAILURE, this.failure);
+    }
+
+    private String distinct(final String key) {
+        return this.comments.stream().map(c -> c.getString(key)).distinct()
+                .collect(Collectors.joining(", "));
+    }
+}
@@ -0,0 +1,449 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Published comments by post, read from src/comments/yyyy/MM/*.json in a
+ * local checkout of the blog repository. Only the public fields get indexed,
+ * eMail and request parameters never make it in.
+ *
+ * The index is an append-only file of [length][crc32][json] records, memory
+ * mapped, plus an in-memory list of record offsets per post. A periodic scan
+ * only lists month directories whose modification time changed, so new files
+ * get picked up without rescanning the repository. Pages get encoded once and
+ * kept in an LRU cache with their ETag until the post gets a new comment
+ *
+ * @author swissel
+ */
+public final class CommentIndex {
+
+    /* One page of comments, ready to send */
+    public static final class Page {
+        private final Buffer body;
+        private final String etag;
+        private final long version;
+
+        Page(final Buffer body, final String etag, final long version) {
+            this.body = body;
+            this.etag = etag;
+            this.version = version;
+        }
+
+        /**
+         * @return JSON document, don't modify
+         */
+        public Buffer getBody() {
+            return this.body;
+        }
+
+        /**
+         * @return quoted strong ETag of the body
+         */
+        public String getEtag() {
+            return this.etag;
+        }
+    }
+
+    private static final String INDEX_FILE = "comment-index.dat";
+    private static final int INITIAL_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 8;
+    private static final long SCAN_INTERVAL = 30_000L;
+    private static final long MTIME_SETTLE = 2_000L;
+    private static final int CACHED_PAGES = 1024;
+    public static final int DEFAULT_LIMIT = 20;
+    public static final int MAX_LIMIT = 100;
+    private static final String[] PUBLIC_FIELDS = {Parameters.ID_COMMENT, "parentId",
+            "Commentor", "webSite", "Body", Parameters.CREATED, "markdown"};
+
+    private static final Logger LOGGER = LogManager.getLogger(CommentIndex.class);
+    private static CommentIndex shared = null;
+    private static boolean created = false;
+
+    /**
+     * Opens the index for all web listener instances and starts scanning the
+     * repository
+     *
+     * @param vertx runs the scans
+     * @return the index, null when no BlogRepoPath is configured
+     */
+    public static synchronized CommentIndex shared(final Vertx vertx) {
+        if (!created) {
+            created = true;
+            final String repo = Config.INSTANCE.getBlogRepoPath();
+            if (repo == null) {
+                return null;
+            }
+            try {
+                shared = new CommentIndex(Path.of(repo),
+                        Path.of(Config.INSTANCE.getJournalDir(), INDEX_FILE));
+                vertx.executeBlocking(promise -> {
+                    shared.scan();
+                    promise.complete();
+                }, false);
+                vertx.setPeriodic(SCAN_INTERVAL, id -> vertx.executeBlocking(promise -> {
+                    shared.scan();
+                    promise.complete();
+                }, false));
+            } catch (final IOException e) {
+                LOGGER.error("Comment index not available", e);
+            }
+        }
+        return shared;
+    }
+
+    /* Position of one comment in the index file */
+    private static final class Entry {
+        final long created;
+        final int offset;
+
+        Entry(final long created, final int offset) {
+            this.created = created;
+            this.offset = offset;
+        }
+
+        boolean after(final long otherCreated, final int otherOffset) {
+            return this.created > otherCreated
+                    || this.created == otherCreated && this.offset > otherOffset;
+        }
+    }
+
+    private final Path commentDir;
+    private final FileChannel channel;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /* Guarded by lock */
+    private final Map<String, List<Entry>> byParent = new HashMap<>();
+    private final Map<String, Long> versions = new HashMap<>();
+    private MappedByteBuffer map;
+    private int writePosition = 0;
+    /* Only touched by the scan */
+    private final Set<String> indexedFiles = new HashSet<>();
+    private final Map<Path, Long> monthModified = new HashMap<>();
+    private final Map<String, Page> pages = new LinkedHashMap<>(CACHED_PAGES, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Page> eldest) {
+            return this.size() > CACHED_PAGES;
+        }
+    };
+
+    private CommentIndex(final Path repository, final Path indexFile) throws IOException {
+        this.commentDir = repository.resolve("src").resolve("comments");
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        this.channel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(INITIAL_SIZE, this.channel.size()));
+        this.load();
+    }
+
+    /**
+     * One page of comments of a post, oldest first
+     *
+     * @param parentId the post
+     * @param cursor from the previous page, null for the first one
+     * @param limit comments per page
+     * @return the page, a post without comments gets an empty one
+     */
+    public Page page(final String parentId, final String cursor, final int limit) {
+        // Clamped before it goes into the key, ?limit=101 and up are one page
+        final int pageSize = Math.max(1, Math.min(limit, MAX_LIMIT));
+        final String key = parentId + '\n' + cursor + '\n' + pageSize;
+        this.lock.readLock().lock();
+        try {
+            final long version = this.versions.getOrDefault(parentId, 0L);
+            synchronized (this.pages) {
+                final Page cached = this.pages.get(key);
+                if (cached != null && cached.version == version) {
+                    return cached;
+                }
+            }
+            final Page page = this.render(parentId, cursor, pageSize, version);
+            // Made up post ids get their empty page rendered, not cached
+            if (this.byParent.containsKey(parentId)) {
+                synchronized (this.pages) {
+                    this.pages.put(key, page);
+                }
+            }
+            return page;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /* Holding the read lock */
+    private Page render(final String parentId, final String cursor, final int limit,
+            final long version) {
+        final List<Entry> entries = this.byParent.getOrDefault(parentId, List.of());
+        int start = 0;
+        if (cursor != null) {
+            final long[] position = decodeCursor(cursor);
+            // Entries are sorted, find the first one after the cursor
+            int low = 0;
+            int high = entries.size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (entries.get(mid).after(position[0], (int) position[1])) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            start = low;
+        }
+        final int end = Math.min(entries.size(), start + limit);
+        final JsonArray comments = new JsonArray();
+        for (int i = start; i < end; i++) {
+            comments.add(this.readRecord(entries.get(i).offset).getJsonObject("comment"));
+        }
+        final JsonObject result = new JsonObject()
+                .put("parentId", parentId)
+                .put("comments", comments);
+        if (end < entries.size()) {
+            final Entry last = entries.get(end - 1);
+            result.put("next", encodeCursor(last.created, last.offset));
+        }
+        final Buffer body = result.toBuffer();
+        return new Page(body, etagOf(body.getBytes()), version);
+    }
+
+    /**
+     * Picks up comment files not yet in the index, only looks into month
+     * directories that changed since the last scan
+     */
+    synchronized void scan() {
+        if (!Files.isDirectory(this.commentDir)) {
+            return;
+        }
+        int added = 0;
+        try {
+            for (final Path year : listDirectories(this.commentDir)) {
+                for (final Path month : listDirectories(year)) {
+                    final long modified = Files.getLastModifiedTime(month).toMillis();
+                    final Long known = this.monthModified.get(month);
+                    if (known != null && known == modified) {
+                        continue;
+                    }
+                    added += this.scanMonth(month);
+                    // A file landing in the same clock tick as our listing would be missed
+                    if (System.currentTimeMillis() - modified > MTIME_SETTLE) {
+                        this.monthModified.put(month, modified);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOGGER.error("Comment scan failed in {}", this.commentDir, e);
+        }
+        if (added > 0) {
+            LOGGER.info("{} comments added to the index", added);
+        }
+    }
+
+    private int scanMonth(final Path month) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(month)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(".json"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        int added = 0;
+        for (final Path file : files) {
+            final String name = this.commentDir.relativize(file).toString().replace('\\', '/');
+            if (this.indexedFiles.contains(name)) {
+                continue;
+            }
+            try {
+                final JsonObject source = new JsonObject(Files.readString(file));
+                final String parentId = source.getString("parentId");
+                if (parentId != null) {
+                    final JsonObject comment = new JsonObject();
+                    for (final String field : PUBLIC_FIELDS) {
+                        if (source.containsKey(field)) {
+                            comment.put(field, source.getValue(field));
+                        }
+                    }
+                    this.append(new JsonObject()
+                            .put("file", name)
+                            .put("parentId", parentId)
+                            .put(Parameters.CREATED, createdMillis(source, file))
+                            .put("comment", comment));
+                    added++;
+                }
+            } catch (final IOException | RuntimeException e) {
+                LOGGER.warn("Skipping comment file {}: {}", name, e.getMessage());
+            }
+            this.indexedFiles.add(name);
+        }
+        return added;
+    }
+
+    private void append(final JsonObject record) throws IOException {
+        final byte[] bytes = record.toBuffer().getBytes();
+        this.lock.writeLock().lock();
+        try {
+            if (this.writePosition + RECORD_HEADER + bytes.length > this.map.capacity()) {
+                this.map.force();
+                this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.max(this.map.capacity() * 2L,
+                                this.writePosition + RECORD_HEADER + bytes.length));
+            }
+            final int offset = this.writePosition;
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            this.map.putInt(offset, bytes.length);
+            this.map.putInt(offset + 4, (int) crc.getValue());
+            this.map.put(offset + RECORD_HEADER, bytes);
+            this.writePosition = offset + RECORD_HEADER + bytes.length;
+            this.track(record.getString("parentId"), record.getLong(Parameters.CREATED), offset);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /* Holding the write lock, keeps the list sorted by creation */
+    private void track(final String parentId, final long createdAt, final int offset) {
+        final List<Entry> entries = this.byParent.computeIfAbsent(parentId, p -> new ArrayList<>());
+        int position = entries.size();
+        while (position > 0 && entries.get(position - 1).created > createdAt) {
+            position--;
+        }
+        entries.add(position, new Entry(createdAt, offset));
+        this.versions.merge(parentId, 1L, Long::sum);
+    }
+
+    private void load() {
+        final CRC32 crc = new CRC32();
+        int position = 0;
+        while (position + RECORD_HEADER <= this.map.capacity()) {
+            final int length = this.map.getInt(position);
+            final int checksum = this.map.getInt(position + 4);
+            if (length <= 0 || position + RECORD_HEADER + length > this.map.capacity()) {
+                break;
+            }
+            final byte[] bytes = new byte[length];
+            this.map.get(position + RECORD_HEADER, bytes);
+            crc.reset();
+            crc.update(bytes);
+            if ((int) crc.getValue() != checksum) {
+                LOGGER.warn("Comment index damaged at {}, rest gets rebuilt", position);
+                break;
+            }
+            final JsonObject record = new JsonObject(new String(bytes, StandardCharsets.UTF_8));
+            this.indexedFiles.add(record.getString("file"));
+            this.track(record.getString("parentId"), record.getLong(Parameters.CREATED),
+                    position);
+            position += RECORD_HEADER + length;
+        }
+        this.writePosition = position;
+        LOGGER.info("Comment index loaded with {} comments on {} posts", this.indexedFiles.size(),
+                this.byParent.size());
+    }
+
+    /* Holding a lock */
+    private JsonObject readRecord(final int offset) {
+        final byte[] bytes = new byte[this.map.getInt(offset)];
+        this.map.get(offset + RECORD_HEADER, bytes);
+        return new JsonObject(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private static List<Path> listDirectories(final Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /* Comment date if we can read it, otherwise when the file was written */
+    private static long createdMillis(final JsonObject source, final Path file)
+            throws IOException {
+        final Object created = source.getValue(Parameters.CREATED);
+        if (created instanceof Number) {
+            return ((Number) created).longValue();
+        }
+        if (created instanceof String) {
+            try {
+                return new SimpleDateFormat(Parameters.IMPORT_DATE_FORMAT, Locale.US)
+                        .parse((String) created).getTime();
+            } catch (final ParseException e) {
+                // Legacy format, fall through
+            }
+        }
+        return Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private static String encodeCursor(final long createdAt, final int offset) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((createdAt + ":" + offset).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static long[] decodeCursor(final String cursor) {
+        try {
+            final String[] parts = new String(Base64.getUrlDecoder().decode(cursor),
+                    StandardCharsets.US_ASCII).split(":");
+            return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (final RuntimeException e) {
+            // Unreadable cursors start from the beginning
+            return new long[] {Long.MIN_VALUE, -1L};
+        }
+    }
+
+    private static String etagOf(final byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
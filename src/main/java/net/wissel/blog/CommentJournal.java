@@ -0,0 +1,341 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Append-only journal of accepted comments and their pipeline state, so a
+ * restart doesn't lose what we already told the user we received.
+ *
+ * Records live in memory-mapped segment files as [length][crc32][json]. Appends
+ * are acknowledged after the segment has been forced to disk, several appends
+ * share one force (group commit). When a segment is full the still open
+ * comments are copied into a fresh segment and the old ones get deleted.
+ *
+ * Runs as worker verticle, file access is blocking.
+ *
+ * @author swissel
+ */
+public class CommentJournal extends AbstractVerticle {
+
+    /* Comment was accepted by the web listener */
+    public static final String STATE_ACCEPTED = "accepted";
+    /* Comment got its branch, the commit may or may not have happened */
+    public static final String STATE_COMMITTING = "committing";
+    /* Comment was committed to the repository, pull request pending */
+    public static final String STATE_STORED = "stored";
+    /* Pull request was created, nothing left to do */
+    public static final String STATE_DONE = "done";
+    /* We gave up on the comment */
+    public static final String STATE_FAILED = "failed";
+
+    public static final String STATE = "state";
+    public static final String COMMENT = "comment";
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int RECORD_HEADER = 8;
+    /* Max wait before a group commit */
+    private static final long FLUSH_INTERVAL = 5L;
+    /* Max appends waiting for one group commit */
+    private static final int GROUP_SIZE = 64;
+
+    /**
+     * Convenience for the pipeline verticles to record a state change. Most
+     * callers fire and forget, those that must not run ahead of the journal
+     * wait for the future
+     *
+     * @param eb the event bus
+     * @param commentId the comment
+     * @param state the new state
+     * @param comment the comment if replay needs it in that state, can be null
+     * @return completes once the record is on disk
+     */
+    public static Future<Void> record(final EventBus eb, final String commentId,
+            final String state, final JsonObject comment) {
+        final JsonObject entry = new JsonObject()
+                .put(Parameters.ID_COMMENT, commentId)
+                .put(STATE, state);
+        if (comment != null) {
+            entry.put(COMMENT, comment);
+        }
+        return eb.request(Parameters.MESSAGE_JOURNAL, entry).mapEmpty();
+    }
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+    /* Latest record of every comment not yet done, in arrival order */
+    private final Map<String, byte[]> liveRecords = new LinkedHashMap<>();
+    private final List<Message<JsonObject>> pendingAcks = new ArrayList<>();
+    private final Path journalDir;
+    private long segmentNumber = 0L;
+    private FileChannel segmentChannel = null;
+    private MappedByteBuffer segment = null;
+    private long flushTimer = -1L;
+
+    /**
+     * Journal in JournalDir
+     */
+    public CommentJournal() {
+        this(Path.of(Config.INSTANCE.getJournalDir()));
+    }
+
+    /**
+     * @param journalDir where the segments live
+     */
+    CommentJournal(final Path journalDir) {
+        this.journalDir = journalDir;
+    }
+
+    /**
+     * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
+     */
+    @Override
+    public void start(final Promise<Void> startFuture) {
+        try {
+            Files.createDirectories(this.journalDir);
+            final List<Path> oldSegments = this.listSegments();
+            oldSegments.forEach(this::readSegment);
+            // Compacts whatever we found into a fresh segment
+            this.rollSegment(oldSegments, 0);
+        } catch (final IOException e) {
+            this.logger.error("Journal not available in {}", this.journalDir, e);
+            startFuture.fail(e);
+            return;
+        }
+
+        this.getVertx().eventBus().consumer(Parameters.MESSAGE_JOURNAL, this::append);
+        this.replay();
+        this.logger.info("Verticle {} deployed", this.getClass().getName());
+        startFuture.complete();
+    }
+
+    /**
+     * @see io.vertx.core.AbstractVerticle#stop(io.vertx.core.Promise)
+     */
+    @Override
+    public void stop(final Promise<Void> stopFuture) {
+        this.flush();
+        this.closeSegment();
+        stopFuture.complete();
+    }
+
+    private void append(final Message<JsonObject> incoming) {
+        final JsonObject entry = incoming.body();
+        final String commentId = entry.getString(Parameters.ID_COMMENT);
+        final String state = entry.getString(STATE);
+        if (commentId == null || state == null) {
+            incoming.fail(400, "commentId and state are required");
+            return;
+        }
+        final byte[] record = entry.toBuffer().getBytes();
+        try {
+            if (this.segment.remaining() < RECORD_HEADER + record.length) {
+                this.flush();
+                this.rollSegment(this.listSegments(), RECORD_HEADER + record.length);
+            }
+            this.writeRecord(record);
+        } catch (final IOException e) {
+            this.logger.error("Journal write failed for {}", commentId, e);
+            incoming.fail(500, e.getMessage());
+            return;
+        }
+        this.track(commentId, state, record);
+
+        this.pendingAcks.add(incoming);
+        if (this.pendingAcks.size() >= GROUP_SIZE) {
+            this.flush();
+        } else if (this.flushTimer < 0) {
+            this.flushTimer = this.getVertx().setTimer(FLUSH_INTERVAL, id -> this.flush());
+        }
+    }
+
+    private void track(final String commentId, final String state, final byte[] record) {
+        if (STATE_DONE.equals(state) || STATE_FAILED.equals(state)) {
+            this.liveRecords.remove(commentId);
+        } else {
+            this.liveRecords.put(commentId, record);
+        }
+    }
+
+    /* Group commit: one force for all appends since the last one */
+    private void flush() {
+        if (this.flushTimer >= 0) {
+            this.getVertx().cancelTimer(this.flushTimer);
+            this.flushTimer = -1L;
+        }
+        if (this.pendingAcks.isEmpty()) {
+            return;
+        }
+        this.segment.force();
+        this.pendingAcks.forEach(m -> m.reply(m.body().getString(Parameters.ID_COMMENT)));
+        this.pendingAcks.clear();
+    }
+
+    private void writeRecord(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        this.segment.putInt(record.length);
+        this.segment.putInt((int) crc.getValue());
+        this.segment.put(record);
+    }
+
+    /**
+     * Starts a new segment holding all live records and room for the next
+     * one, then removes the segments it replaces
+     */
+    private void rollSegment(final List<Path> replaced, final int incoming) throws IOException {
+        this.closeSegment();
+        this.segmentNumber++;
+        final Path next = this.journalDir
+                .resolve(String.format("%s%010d%s", SEGMENT_PREFIX, this.segmentNumber,
+                        SEGMENT_SUFFIX));
+        final int needed = this.liveRecords.values().stream()
+                .mapToInt(r -> r.length + RECORD_HEADER).sum() + incoming;
+        final int size = Math.max(SEGMENT_SIZE, needed * 2);
+        this.segmentChannel = FileChannel.open(next, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segment = this.segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.liveRecords.values().forEach(this::writeRecord);
+        this.segment.force();
+
+        for (final Path old : replaced) {
+            if (!old.equals(next)) {
+                Files.deleteIfExists(old);
+            }
+        }
+        this.logger.debug("Journal segment {} started with {} open comments", next,
+                this.liveRecords.size());
+    }
+
+    private void closeSegment() {
+        if (this.segmentChannel != null) {
+            try {
+                this.segment.force();
+                this.segmentChannel.close();
+            } catch (final IOException e) {
+                this.logger.error(e);
+            }
+            this.segmentChannel = null;
+            this.segment = null;
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(this.journalDir)) {
+            return files.filter(p -> {
+                final String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void readSegment(final Path segmentFile) {
+        final String name = segmentFile.getFileName().toString();
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            this.segmentNumber = Math.max(this.segmentNumber, Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final CRC32 crc = new CRC32();
+            while (buffer.remaining() >= RECORD_HEADER) {
+                final int length = buffer.getInt();
+                final int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                final byte[] record = new byte[length];
+                buffer.get(record);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    // Torn write at the end of the segment
+                    this.logger.warn("Journal segment {} damaged, skipping remainder", name);
+                    break;
+                }
+                final JsonObject entry =
+                        new JsonObject(new String(record, StandardCharsets.UTF_8));
+                this.track(entry.getString(Parameters.ID_COMMENT), entry.getString(STATE),
+                        record);
+            }
+        } catch (final IOException | RuntimeException e) {
+            this.logger.error("Could not read journal segment {}", name, e);
+        }
+    }
+
+    /**
+     * Puts everything not done back into the pipeline where it left off
+     */
+    private void replay() {
+        if (this.liveRecords.isEmpty()) {
+            return;
+        }
+        final EventBus eb = this.getVertx().eventBus();
+        final Map<String, List<CommentEnvelope>> committingByBranch = new LinkedHashMap<>();
+        final Map<String, List<CommentEnvelope>> storedByBranch = new LinkedHashMap<>();
+        this.liveRecords.values().forEach(record -> {
+            final JsonObject entry = new JsonObject(new String(record, StandardCharsets.UTF_8));
+            final JsonObject comment = entry.getJsonObject(COMMENT);
+            if (comment == null) {
+                return;
+            }
+            final CommentEnvelope envelope = CommentEnvelope.of(comment);
+            final String state = entry.getString(STATE);
+            final String branch = envelope.getBranch() == null ? "unknown" : envelope.getBranch();
+            if (STATE_STORED.equals(state)) {
+                storedByBranch.computeIfAbsent(branch, b -> new ArrayList<>()).add(envelope);
+            } else if (STATE_COMMITTING.equals(state)) {
+                committingByBranch.computeIfAbsent(branch, b -> new ArrayList<>()).add(envelope);
+            } else {
+                eb.send(Parameters.MESSAGE_NEW_COMMENT, envelope);
+            }
+        });
+        // Counted as retry, so the stores check what made it before the restart
+        committingByBranch.forEach((branch, comments) -> eb.send(Parameters.MESSAGE_NEW_COMMENT,
+                CommentEnvelope.batch(comments, branch).withAttempt(1)));
+        storedByBranch.forEach((branch, comments) -> eb.send(Parameters.MESSAGE_PULLREQUEST,
+                CommentEnvelope.batch(comments, branch).withAttempt(1)));
+        this.logger.info("Journal replayed {} open comments", this.liveRecords.size());
+    }
+}
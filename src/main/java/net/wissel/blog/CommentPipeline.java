@@ -0,0 +1,71 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+
+/**
+ * Deploys the comment pipeline: one instance each of the verticles talking to
+ * the outside world, so nothing gets committed twice, and as many web
+ * listeners as configured. The web listeners share the port, Vert.x spreads
+ * the connections across their event loops
+ *
+ * @author swissel
+ */
+public class CommentPipeline extends AbstractVerticle {
+
+    private final Logger logger = LogManager.getLogger(this.getClass());
+
+    /**
+     * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
+     */
+    @Override
+    public void start(final Promise<Void> startFuture) {
+        // Use v4 only
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        WebfingerUsers.load();
+        WebfingerUsers.watch(this.getVertx());
+        // Starts indexing published comments, if configured
+        CommentIndex.shared(this.getVertx());
+        Metrics.INSTANCE.trackEventBus(this.getVertx());
+        // Comments travel between the verticles by reference
+        CommentEnvelope.registerCodec(this.getVertx().eventBus());
+        final int instances = Config.INSTANCE.getHttpInstances();
+        this.getVertx().deployVerticle("net.wissel.blog.CommentPush")
+                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentPullRequest"))
+                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentStore"))
+                // Journal last, it replays open comments to the verticles above
+                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentJournal",
+                        new DeploymentOptions().setWorker(true)))
+                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentService",
+                        new DeploymentOptions().setInstances(instances)))
+                .onFailure(startFuture::fail)
+                .onSuccess(v -> {
+                    this.logger.info("Web listener running in {} instances", instances);
+                    startFuture.complete();
+                });
+    }
+}
@@ -21,32 +21,27 @@
  */
 package net.wissel.blog;
 
-import java.util.LinkedList;
-import java.util.Queue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 
 /**
- * Creates a new Pull Request for a just posted comment
+ * Creates a new Pull Request for a just posted comment. Retries ask the sink
+ * for an existing pull request from the branch first, so a request that got
+ * through despite an error isn't opened twice
  *
  * @author swissel
  */
 public class CommentPullRequest extends AbstractVerticle {
 
-    private static final String RETRY_COUNT = "retryCount";
-    private static final String EMAIL = "eMail";
-    private static final String BRANCH = "branch";
+    private static final int MAX_RETRIES = 10;
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
-    private WebClient client = null;
-    private final Queue<JsonObject> retryMessages = new LinkedList<>();
+    private RetryScheduler<CommentEnvelope> retryMessages;
 
     /**
      * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
@@ -56,84 +51,64 @@ public class CommentPullRequest extends AbstractVerticle {
 
         final EventBus eb = this.getVertx().eventBus();
         eb.consumer(Parameters.MESSAGE_PULLREQUEST, this::processNewMessages);
-        // For messages not going through - retry after 30 seconds
-        this.getVertx().setPeriodic(30000L, this::retryHandler);
+        // For messages not going through - retry after 5s, 10s, 20s ... max 10 min
+        this.retryMessages =
+                new RetryScheduler<>(this.getVertx(), 5000L, 600000L, this::acceptMessage);
+        Metrics.INSTANCE.consuming(Parameters.MESSAGE_PULLREQUEST);
+        Metrics.INSTANCE.retryQueue(Metrics.STAGE_PULLREQUEST, this.retryMessages);
         logger.info("Verticle {} deployed", this.getClass().getName());
         startFuture.complete();
     }
 
-    private void createPullRequest(final JsonObject message, final String accessToken) {
-
-        // Compose pull request data
-        final JsonObject source = new JsonObject();
-        source.put(BRANCH, new JsonObject().put("name", message.getString(BRANCH, "unknown")));
-        source.put("repository",
-                new JsonObject().put("full_name", Config.INSTANCE.getRepositoryURL()));
-
-        final JsonObject destination = new JsonObject();
-        destination.put(BRANCH, new JsonObject().put("name", "master"));
-
-        // Final assembly
-        final JsonObject body = new JsonObject();
-        body.put("title", "Comment from " + message.getString("Commentor", "Anonymous"));
-        body.put("source", source);
-        body.put("destination", destination);
-        body.put("close_source_branch", true);
-
-        final WebClient wc = this.getWebClient();
-        final String target =
-                "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL() + "/pullrequests/";
-
-        wc.post(443, "api.bitbucket.org", target).ssl(true)
-                .putHeader("Content-Type", "application/json")
-                .putHeader("Authorization", "Bearer " + accessToken).sendJson(body, res -> {
-                    if (res.failed()) {
-                        this.logger.error(body.encode(), res.cause());
-                        this.retryMessages.offer(message);
-                    } else {
-                        this.logger.info("Pullrequest deployed");
-                    }
-                });
+    private void journal(final CommentEnvelope message, final String state) {
+        message.getCommentIds().forEach(commentId -> CommentJournal
+                .record(this.getVertx().eventBus(), commentId, state, null));
     }
 
-    private WebClient getWebClient() {
-        if (this.client == null) {
-            final WebClientOptions options =
-                    new WebClientOptions().setUserAgent("CommentService 1.1").setSsl(true)
-                            .setKeepAlive(true);
-            this.client = WebClient.create(this.vertx, options);
-        }
-        return this.client;
+    private void processNewMessages(final Message<CommentEnvelope> incoming) {
+        this.acceptMessage(incoming.body());
     }
 
-    private void processNewMessages(final Message<JsonObject> incoming) {
-        final JsonObject message = incoming.body();
-
-        OauthHelper.getAccessToken(this.getVertx())
-                .onFailure(err -> this.logger.error(err.getMessage(), err))
-                .onSuccess(accessToken -> this.createPullRequest(message, accessToken));
+    private void acceptMessage(final CommentEnvelope message) {
+        final String branch = message.getBranch() == null ? "unknown" : message.getBranch();
+        final CommentSink sink = CommentSinks.forVertx(this.getVertx());
+        // A retry checks first, the last attempt might have worked after all
+        final Future<Boolean> opened = message.getAttempt() == 0
+                ? Future.succeededFuture(false)
+                : sink.hasPullRequest(branch).onSuccess(
+                        found -> Metrics.INSTANCE.reconciled(Metrics.STAGE_PULLREQUEST, found));
+        opened.compose(found -> found ? Future.<Void>succeededFuture()
+                : sink.openPullRequest(branch, message.getTitle()))
+                .onFailure(err -> {
+                    if (err instanceof CircuitBreaker.OpenException) {
+                        // Not attempted, waits for the breaker without using up a retry
+                        this.retryMessages.schedule(message, Math.max(1, message.getAttempt()),
+                                SinkException.retryAfterOf(err));
+                        return;
+                    }
+                    this.logger.error("Pull request failed: {}", err.getMessage());
+                    this.retry(message, SinkException.retryAfterOf(err));
+                })
+                .onSuccess(v -> {
+                    this.journal(message, CommentJournal.STATE_DONE);
+                    this.logger.info("Pullrequest deployed");
+                });
     }
 
-    private void retryHandler(final Long interval) {
-        final EventBus eb = this.getVertx().eventBus();
-        while (!this.retryMessages.isEmpty()) {
-            final JsonObject candidate = this.retryMessages.poll();
-            if (candidate != null) {
-                final int retryCount = candidate.getInteger(RETRY_COUNT, 0) + 1;
-                candidate.put(RETRY_COUNT, retryCount);
-                if (retryCount > 10) {
-                    this.logger.error("Pull request Retry count exceeded from user: {}",
-                            candidate.getString(EMAIL, "n/a"));
-                    this.getVertx().eventBus().publish(Parameters.MESSAGE_PUSH_COMMENT,
-                            candidate.put("Failure",
-                                    "Pull request Retry count exceeded from user: "
-                                            + candidate.getString(EMAIL, "n/a")));
-                } else {
-                    // Put them back on the bus
-                    this.logger.info("Retry from user: {}", candidate.getString(EMAIL, "n/a"));
-                    eb.publish(Parameters.MESSAGE_PULLREQUEST, candidate);
-                }
-            }
+    private void retry(final CommentEnvelope candidate, final long retryAfter) {
+        final int retryCount = candidate.getAttempt() + 1;
+        if (retryCount > MAX_RETRIES) {
+            this.logger.error("Pull request Retry count exceeded from user: {}",
+                    candidate.getEmails());
+            Metrics.INSTANCE.retryExhausted(Metrics.STAGE_PULLREQUEST);
+            this.journal(candidate, CommentJournal.STATE_FAILED);
+            this.getVertx().eventBus().send(Parameters.MESSAGE_PUSH_COMMENT,
+                    candidate.withFailure("Pull request Retry count exceeded from user: "
+                            + candidate.getEmails()));
+        } else {
+            this.logger.info("Retry from user: {}", candidate.getEmails());
+            this.retryMessages.schedule(candidate.withAttempt(retryCount), retryCount,
+                    retryAfter);
         }
     }
 }
@@ -32,74 +32,52 @@
  */
 package net.wissel.blog;
 
+import java.util.List;
+import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 
 /**
- * Notifies on new comments via Push
+ * Notifies on new comments via Push, webhook, ntfy or mail. Every configured
+ * {@link Notifier} gets its own {@link NotificationChannel}, so a slow channel
+ * never holds up the others
  *
  * @author swissel
  */
 public class CommentPush extends AbstractVerticle {
 
   private final Logger logger = LogManager.getLogger(this.getClass());
-  private WebClient client = null;
+  private List<NotificationChannel> channels = List.of();
 
   /**
    * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
    */
   @Override
   public void start(final Promise<Void> startFuture) {
-    // We only bother if we have configuration values
-    if ((Config.INSTANCE.getPushToken() != null) && (Config.INSTANCE.getPushUser() != null)) {
+    final Config config = Config.INSTANCE;
+    this.channels = Notifiers.create(this.getVertx()).stream()
+        .map(notifier -> new NotificationChannel(this.getVertx(), notifier,
+            config.getNotifyQueueSize(), config.getNotifyConcurrency(),
+            config.getNotifyTimeout()))
+        .collect(Collectors.toList());
+    // We only bother if we have configured channels
+    if (!this.channels.isEmpty()) {
       final EventBus eb = this.getVertx().eventBus();
       eb.consumer(Parameters.MESSAGE_PUSH_COMMENT, this::processNewMessages);
+      Metrics.INSTANCE.consuming(Parameters.MESSAGE_PUSH_COMMENT);
     }
-    logger.info("Verticle {} deployed", this.getClass().getName());
+    logger.info("Verticle {} deployed with {} notification channels", this.getClass().getName(),
+        this.channels.size());
     startFuture.complete();
 
   }
 
-  private WebClient getWebClient() {
-    if (this.client == null) {
-      final WebClientOptions options =
-          new WebClientOptions().setUserAgent("CommentService 1.0").setSsl(true)
-              .setKeepAlive(true);
-      this.client = WebClient.create(this.vertx, options);
-    }
-    return this.client;
-  }
-
-  private void processNewMessages(final Message<JsonObject> incoming) {
-
-    final JsonObject message = incoming.body();
-    final JsonObject body = new JsonObject();
-
-    body.put("token", Config.INSTANCE.getPushToken());
-    body.put("user", Config.INSTANCE.getPushUser());
-    body.put("title", "Comment from " + message.getString("Commentor"));
-    body.put("url", "https://bitbucket.org/" + Config.INSTANCE.getRepositoryURL() + "/src");
-    body.put("url_title", "See in bitbucket");
-    final String payload = message.getString("Body");
-    body.put("message", payload.substring(0, Math.min(100, payload.length())));
-
-    final WebClient wc = this.getWebClient();
-    final String target = Parameters.HTTP_PUSHAPI;
-    wc.post(443, "api.pushover.net", target).ssl(true).putHeader("Content-Type", "application/json")
-        .sendJsonObject(body, res -> {
-          if (res.failed()) {
-            this.logger.error("Failed to send push notification", res.cause());
-          } else {
-            this.logger.info("PushOver notified");
-          }
-        });
-
+  private void processNewMessages(final Message<CommentEnvelope> incoming) {
+    final CommentEnvelope event = incoming.body();
+    this.channels.forEach(channel -> channel.add(event));
   }
 }
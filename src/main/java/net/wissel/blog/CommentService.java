@@ -21,27 +21,24 @@
  */
 package net.wissel.blog;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import io.prometheus.client.exporter.common.TextFormat;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Promise;
-import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
@@ -55,6 +52,12 @@ public class CommentService extends AbstractVerticle {
 
     private static String commentPath;
     private static final Logger LOGGER = LogManager.getLogger(CommentService.class);
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    /* Headers stored with a comment, for moderation. Everything else is noise */
+    private static final String[] KEPT_HEADERS = {Parameters.HTTP_USER_AGENT,
+            Parameters.HTTP_REFERER, "Origin", "Accept-Language", "X-Forwarded-For"};
+
+    private final CorsPreflight cors = CorsPreflight.fromConfig();
 
     /**
      * Convenience method to allow IDE Testing
@@ -63,24 +66,18 @@ public class CommentService extends AbstractVerticle {
      */
     public static void main(final String[] args) {
         CommentService.commentPath = args.length < 1 ? "/blogcomments/*" : args[0];
-        Runner.runVerticle(CommentService.class.getName(), true);
+        Runner.runVerticle(CommentPipeline.class.getName(), true);
     }
 
-    private final List<String> corsValues = new ArrayList<>();
-    private final JsonObject mastodonUsers = new JsonObject();
-
     /**
+     * Runs in as many instances as configured, see {@link CommentPipeline}
+     *
      * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
      */
     @Override
     public void start(final Promise<Void> startFuture) {
-        // Use v4 only
-        System.setProperty("java.net.preferIPv4Stack", "true");
-        this.loadCors();
-        this.getVertx().deployVerticle("net.wissel.blog.CommentPush")
-                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentPullRequest"))
-                .compose(v -> this.getVertx().deployVerticle("net.wissel.blog.CommentStore"))
-                .compose(v -> this.launchWebListener())
+        this.launchWebListener()
+                .compose(v -> this.launchMetricsListener())
                 .onFailure(startFuture::fail)
                 .onSuccess(startFuture::complete);
     }
@@ -90,27 +87,46 @@ public class CommentService extends AbstractVerticle {
         final Promise<Void> promise = Promise.promise();
         final int port = Config.INSTANCE.getPort();
 
-        final HttpServer server = this.vertx.createHttpServer();
+        final HttpServer server = this.vertx.createHttpServer(this.serverOptions());
         final Router router = Router.router(this.vertx);
 
-        router.route().handler(BodyHandler.create());
-        final Route allowCORS = router.route(HttpMethod.OPTIONS, CommentService.commentPath);
-        allowCORS.handler(ctx -> {
-            this.addCors(ctx);
-            ctx.response().end();
-        });
+        final Metrics metrics = Metrics.INSTANCE;
+        final AdmissionControl admission = AdmissionControl.shared(this.vertx);
+        // First route, preflights never reach a body handler
+        router.route(HttpMethod.OPTIONS, CommentService.commentPath)
+                .handler(metrics.routeTimer(Metrics.ROUTE_CORS))
+                .handler(this.cors::preflight);
 
+        // Admission gets its own route, Vert.x wants the BodyHandler first on a
+        // route. Rejects happen before the body gets read
+        router.route(HttpMethod.POST, CommentService.commentPath)
+                .consumes("application/json").produces("application/json")
+                .handler(metrics.routeTimer(Metrics.ROUTE_COMMENT))
+                .handler(this.cors::addHeaders)
+                .handler(admission);
         final Route incomingCommentRoute =
                 router.route(HttpMethod.POST, CommentService.commentPath)
                         .consumes("application/json").produces("application/json");
+        incomingCommentRoute.handler(BodyHandler.create()
+                .setBodyLimit(admission.getMaxBodySize())
+                .setHandleFileUploads(false));
         incomingCommentRoute.handler(this::newComment);
         incomingCommentRoute.failureHandler(this::commentFailure);
 
         this.addMastodonRoute(router);
 
-        router.route("/*").handler(StaticHandler.create());
+        // Public listener only with a token, otherwise /metrics is a 404
+        if (Config.INSTANCE.getMetricsPort() == 0 && Config.INSTANCE.getMetricsToken() != null) {
+            this.addMetricsRoute(router);
+        }
         router.route(HttpMethod.GET, CommentService.commentPath)
-                .handler(ctx -> ctx.end("The spoken TAO is not the eternal TAO"));
+                .handler(metrics.routeTimer(Metrics.ROUTE_COMMENT_GET))
+                .handler(this.cors::addHeaders)
+                .handler(this::readComments);
+        final StaticCache staticCache = StaticCache.shared();
+        router.route("/*")
+                .handler(metrics.routeTimer(Metrics.ROUTE_STATIC))
+                .handler(staticCache == null ? StaticHandler.create() : staticCache);
 
         server.requestHandler(router).listen(port).onFailure(err -> {
             LOGGER.error("Could not start HTTP server on port {}", port);
@@ -125,49 +141,76 @@ public class CommentService extends AbstractVerticle {
 
     }
 
-    private Optional<Path> getUserFilePath(final String fileName) {
-        try {
-            final File sourceFile = new File(fileName);
-            if (sourceFile.exists() && sourceFile.isFile()) {
-                return Optional.ofNullable(sourceFile.toPath());
-            }
-        } catch (final Exception e) {
-            LOGGER.error(e);
+    /**
+     * Management listener on MetricsPort, plain HTTP and nothing but /metrics.
+     * Shared by the instances like the web listener
+     */
+    private Future<Void> launchMetricsListener() {
+        final int port = Config.INSTANCE.getMetricsPort();
+        if (port == 0) {
+            return Future.succeededFuture();
         }
-        return Optional.empty();
+        final Router router = Router.router(this.vertx);
+        this.addMetricsRoute(router);
+        return this.vertx.createHttpServer().requestHandler(router).listen(port)
+                .onFailure(err -> LOGGER.error("Could not start metrics listener on port {}", port))
+                .onSuccess(s -> LOGGER.info("Metrics served on port {}", port))
+                .mapEmpty();
     }
 
-    private void addMastodonRoute(final Router router) {
-        final String routeURL = "/.well-known/webfinger";
-        final String dockerFileName = "/opt/activityPub/users.json";
-        final String localFileName = System.getenv("ACTIVITY_USERS");
+    private void addMetricsRoute(final Router router) {
+        final Metrics metrics = Metrics.INSTANCE;
+        final String token = Config.INSTANCE.getMetricsToken();
+        final byte[] expected = token == null ? null
+                : ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+        router.route(HttpMethod.GET, "/metrics")
+                .handler(metrics.routeTimer(Metrics.ROUTE_METRICS))
+                .handler(ctx -> {
+                    if (expected != null && !isAuthorized(ctx.request(), expected)) {
+                        ctx.response().setStatusCode(401)
+                                .putHeader("WWW-Authenticate", "Bearer")
+                                .end();
+                        return;
+                    }
+                    ctx.response()
+                            .putHeader(Parameters.HTTP_CONTENTTYPE, TextFormat.CONTENT_TYPE_004)
+                            .end(metrics.scrape());
+                });
+    }
 
-        Optional<Path> pathCandidate = getUserFilePath(dockerFileName);
-        if (!pathCandidate.isPresent()) {
-            pathCandidate = getUserFilePath(localFileName);
-        }
+    private static boolean isAuthorized(final HttpServerRequest request, final byte[] expected) {
+        final String authorization = request.getHeader("Authorization");
+        // Constant time, the answer doesn't tell how much of the token was right
+        return authorization != null && MessageDigest.isEqual(expected,
+                authorization.trim().getBytes(StandardCharsets.UTF_8));
+    }
 
-        if (pathCandidate.isPresent()) {
-            try {
-                final String raw = Files.readString(pathCandidate.get());
-                if (raw != null) {
-                    final JsonObject users = new JsonObject(raw);
-                    users.stream()
-                            .filter(entry -> entry.getValue() instanceof JsonObject)
-                            .forEach(entry -> this.mastodonUsers.put(entry.getKey(),
-                                    entry.getValue()));
-                    router.route(HttpMethod.GET, routeURL).handler(this::webfingerHandler);
-                    LOGGER.info("Webfinger config loaded from {}", pathCandidate.get());
-                } else {
-                    LOGGER.error("JSON file was empty");
-                }
-            } catch (final IOException e) {
-                LOGGER.error(e);
-            }
-        } else {
-            LOGGER.error("File {} not found, no webfinger URL loaded",
-                    pathCandidate.orElse(Path.of("unavailable")));
+    /**
+     * HTTP/2 over TLS via ALPN when a certificate is configured, Vert.x speaks
+     * cleartext h2c on the plain port anyway. Responses get compressed unless
+     * they already are, like the precompressed static files
+     */
+    private HttpServerOptions serverOptions() {
+        final HttpServerOptions options = new HttpServerOptions()
+                .setCompressionSupported(true)
+                .setCompressionLevel(6);
+        final String certPath = Config.INSTANCE.getTlsCertPath();
+        final String keyPath = Config.INSTANCE.getTlsKeyPath();
+        if (certPath != null && keyPath != null) {
+            options.setSsl(true)
+                    .setUseAlpn(true)
+                    .setPemKeyCertOptions(
+                            new PemKeyCertOptions().setCertPath(certPath).setKeyPath(keyPath));
         }
+        return options;
+    }
+
+    private void addMastodonRoute(final Router router) {
+        final String routeURL = "/.well-known/webfinger";
+        // Always there, users.json might show up later
+        router.route(HttpMethod.GET, routeURL)
+                .handler(Metrics.INSTANCE.routeTimer(Metrics.ROUTE_WEBFINGER))
+                .handler(this::webfingerHandler);
     }
 
     private void webfingerHandler(final RoutingContext ctx) {
@@ -183,38 +226,20 @@ public class CommentService extends AbstractVerticle {
             return;
         }
         final String user = split[1].toLowerCase();
-        if (!mastodonUsers.containsKey(user)) {
+        final WebfingerUsers.Webfinger webfinger = WebfingerUsers.current().get(user);
+        if (webfinger == null) {
             ResultMessage.end(ctx.response(), "No such user", 404);
             return;
         }
-        this.setReponseHeaders(ctx.response()).end(this.mastodonReply(user));
-    }
-
-    private Buffer mastodonReply(final String user) {
-        final JsonObject j = this.mastodonUsers.getJsonObject(user);
-        final String userid = j.getString("userid", "johndoe");
-        final String domain = j.getString("domain", "unknown");
-        final JsonObject result = new JsonObject();
-
-        result.put("subject", String.format("acct:%s@%s", userid, domain));
-        result.put("aliases", new JsonArray()
-                .add(String.format("https://:%s/@%s", domain, userid))
-                .add(String.format("https://:%s/users/%s", domain, userid)))
-                .put("links", new JsonArray()
-                        .add(new JsonObject()
-                                .put("rel", "http://webfinger.net/rel/profile-page")
-                                .put("type", "text/html")
-                                .put("href", String.format("https://%s/@%s", domain, userid)))
-                        .add(new JsonObject()
-                                .put("rel", "self")
-                                .put("type", "application/activity+json")
-                                .put("href", String.format("https://%s/users/%s", domain, userid)))
-                        .add(new JsonObject()
-                                .put("rel", "http://ostatus.org/schema/1.0/subscribe")
-                                .put("template", String.format(
-                                        "https://%s/authorize_interaction?uri={uri}", domain))));
-
-        return result.toBuffer();
+        final HttpServerResponse response =
+                this.setReponseHeaders(ctx.response()).putHeader("etag", webfinger.getEtag());
+        final String ifNoneMatch = ctx.request().getHeader("If-None-Match");
+        if (ifNoneMatch != null
+                && (ifNoneMatch.contains(webfinger.getEtag()) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatusCode(304).end();
+            return;
+        }
+        response.end(webfinger.getBody());
     }
 
     private HttpServerResponse setReponseHeaders(final HttpServerResponse response) {
@@ -228,21 +253,15 @@ public class CommentService extends AbstractVerticle {
         return response;
     }
 
-    private void addCors(final RoutingContext ctx) {
-        final HttpServerResponse response = ctx.response();
-        final String origin = ctx.request().getHeader("Origin");
-        if (origin != null && this.corsValues.contains(origin)) {
-            response.putHeader("Access-Control-Allow-Origin", origin);
-            response.putHeader("Access-Control-Allow-Methods", "OPTIONS, POST");
-            response.putHeader("Access-Control-Allow-Headers", "Content-Type");
-        }
-    }
-
-    private JsonObject addParametersFromHeader(final MultiMap headers, final String remoteHost) {
+    static JsonObject addParametersFromHeader(final MultiMap headers, final String remoteHost) {
         final JsonObject result = new JsonObject();
         result.put(Parameters.HTTP_CLIENTIP, remoteHost);
-        // We overwrite duplicate values here -> never mind for our purpose!
-        headers.entries().forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        for (final String name : KEPT_HEADERS) {
+            final String value = headers.get(name);
+            if (value != null) {
+                result.put(name, value);
+            }
+        }
         return result;
     }
 
@@ -255,13 +274,81 @@ public class CommentService extends AbstractVerticle {
         ResultMessage.end(ctx.response(), "Something went wrong", 500);
     }
 
-    private void loadCors() {
-        this.corsValues.add("http://localhost");
-        this.corsValues.add("https://wissel.net");
-        this.corsValues.add("https://www.wissel.net");
-        this.corsValues.add("https://stwissel.github.io");
-        this.corsValues.add("https://notessensei.com");
-        this.corsValues.add("https://www.notessensei.com");
+    /**
+     * Published comments of one post, a page at a time
+     *
+     * @param ctx Routing context
+     */
+    private void readComments(final RoutingContext ctx) {
+        final CommentIndex index = CommentIndex.shared(this.vertx);
+        final String prefix = CommentService.commentPath.endsWith("*")
+                ? CommentService.commentPath.substring(0, CommentService.commentPath.length() - 1)
+                : CommentService.commentPath;
+        final String path = ctx.normalizedPath();
+        final String parentId = path.length() > prefix.length()
+                ? URLDecoder.decode(path.substring(prefix.length()), StandardCharsets.UTF_8)
+                : "";
+        if (index == null || parentId.isBlank()) {
+            ctx.end("The spoken TAO is not the eternal TAO");
+            return;
+        }
+        int limit = CommentIndex.DEFAULT_LIMIT;
+        try {
+            final String limitParam = ctx.request().getParam("limit");
+            if (limitParam != null) {
+                limit = Math.max(1, Integer.parseInt(limitParam));
+            }
+        } catch (final NumberFormatException e) {
+            ResultMessage.end(ctx.response(), "limit needs to be a number", 400);
+            return;
+        }
+        final CommentIndex.Page page =
+                index.page(parentId, ctx.request().getParam("after"), limit);
+        final HttpServerResponse response = ctx.response()
+                .putHeader(Parameters.HTTP_CONTENTTYPE, Parameters.EXPECTED_CONTENT_TYPE)
+                .putHeader("cache-control", "public, max-age=60")
+                .putHeader("etag", page.getEtag());
+        final String ifNoneMatch = ctx.request().getHeader("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.contains(page.getEtag())) {
+            response.setStatusCode(304).end();
+            return;
+        }
+        response.end(page.getBody());
+    }
+
+    /**
+     * Claims the idempotency key and the content hash. A resubmission gets the
+     * success answer the first submission got, nothing gets published
+     *
+     * @return true when the response was sent
+     */
+    private boolean isDuplicate(final String idempotencyKey, final BlogComment blogComment,
+            final HttpServerResponse response) {
+        final DedupIndex dedup = DedupIndex.shared();
+        String duplicate = null;
+        final long contentKey =
+                DedupIndex.contentKey(blogComment.parentId, blogComment.eMail, blogComment.Body);
+        if (idempotencyKey != null && !idempotencyKey.isBlank()
+                && !dedup.claim(DedupIndex.idempotencyKey(idempotencyKey))) {
+            duplicate = Metrics.DUPLICATE_IDEMPOTENCY_KEY;
+        } else if (!dedup.claim(contentKey)) {
+            duplicate = Metrics.DUPLICATE_CONTENT;
+        }
+        if (duplicate == null) {
+            return false;
+        }
+        Metrics.INSTANCE.duplicate(duplicate);
+        ResultMessage.end(response, Parameters.SUCCESS_MESSAGE, 200);
+        return true;
+    }
+
+    private void releaseDedup(final String idempotencyKey, final BlogComment blogComment) {
+        final DedupIndex dedup = DedupIndex.shared();
+        if (idempotencyKey != null && !idempotencyKey.isBlank()) {
+            dedup.release(DedupIndex.idempotencyKey(idempotencyKey));
+        }
+        dedup.release(
+                DedupIndex.contentKey(blogComment.parentId, blogComment.eMail, blogComment.Body));
     }
 
     /**
@@ -272,20 +359,60 @@ public class CommentService extends AbstractVerticle {
     private void newComment(final RoutingContext ctx) {
         final HttpServerRequest request = ctx.request();
         final HttpServerResponse response = ctx.response();
-        this.addCors(ctx);
         final MultiMap headers = request.headers();
-        final JsonObject comment = ctx.body().asJsonObject();
-        comment.put("parameters",
-                this.addParametersFromHeader(headers, request.remoteAddress().host()));
         try {
+            // One pass over the body, unknown or oversized fields end here
+            final BlogComment blogComment = CommentDecoder.decode(ctx.body().buffer());
+            addParametersFromHeader(headers, request.remoteAddress().host())
+                    .forEach(entry -> blogComment.parameters.put(entry.getKey(),
+                            String.valueOf(entry.getValue())));
             // Incoming comments are Markdown, legacy might be HTML, so we flag it here
-            comment.put("markdown", true);
+            blogComment.markdown = true;
             // We check if we have everything
-            final BlogComment blogComment = comment.mapTo(BlogComment.class);
             blogComment.checkForMandatoryFields(Config.INSTANCE.getCaptchSecret());
+            final JsonObject comment = blogComment.toJson();
+            // Before the spam filter, a double click mustn't be quarantined or struck twice
+            if (this.isDuplicate(request.getHeader(IDEMPOTENCY_KEY), blogComment, response)) {
+                return;
+            }
+            final SpamFilter.Outcome verdict = SpamFilter.shared(this.vertx)
+                    .judge(blogComment, request.remoteAddress().host());
+            if (verdict == SpamFilter.Outcome.REJECT) {
+                // An edited resubmit gets judged again, an identical one too
+                this.releaseDedup(request.getHeader(IDEMPOTENCY_KEY), blogComment);
+                ResultMessage.end(response, "Sorry, your comment looks like spam", 400);
+                return;
+            }
+            if (verdict == SpamFilter.Outcome.QUARANTINE) {
+                // Looks like success to the sender, a human decides later
+                SpamFilter.shared(this.vertx).quarantine(comment);
+                ResultMessage.end(response, Parameters.SUCCESS_MESSAGE, 200);
+                return;
+            }
+            // Adds id and creation date, read-only from here on
+            final CommentEnvelope envelope = CommentEnvelope.of(comment);
+            final String commentId = envelope.getCommentId();
+            // Only confirm once the comment is safe on disk
             final EventBus eb = this.getVertx().eventBus();
-            eb.publish(Parameters.MESSAGE_NEW_COMMENT, comment);
-            ResultMessage.end(response, Parameters.SUCCESS_MESSAGE, 200);
+            eb.request(Parameters.MESSAGE_JOURNAL, new JsonObject()
+                    .put(Parameters.ID_COMMENT, commentId)
+                    .put(CommentJournal.STATE, CommentJournal.STATE_ACCEPTED)
+                    .put(CommentJournal.COMMENT, envelope.getComment()))
+                    .onFailure(err -> {
+                        LOGGER.error("Journal rejected comment {}", commentId, err);
+                        // The client will try again, that's no duplicate
+                        this.releaseDedup(request.getHeader(IDEMPOTENCY_KEY), blogComment);
+                        ResultMessage.end(response, Parameters.FAILURE_MESSAGE, 503);
+                    })
+                    .onSuccess(ack -> {
+                        eb.send(Parameters.MESSAGE_NEW_COMMENT, envelope);
+                        // Safe either way, but storage is behind or Bitbucket is down
+                        if (IngestBacklog.shared().isDelayed()) {
+                            ResultMessage.end(response, Parameters.DELAYED_MESSAGE, 202);
+                        } else {
+                            ResultMessage.end(response, Parameters.SUCCESS_MESSAGE, 200);
+                        }
+                    });
         } catch (final Exception e) {
             e.printStackTrace();
             ResultMessage.end(response, e.getMessage(), 400);
@@ -0,0 +1,84 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Map;
+import io.vertx.core.Future;
+
+/**
+ * Where accepted comments end up. A batch of comment files gets committed on
+ * its own branch, then a pull request asks for the branch to be merged.
+ * Failed futures carry a {@link SinkException} telling if and when to retry.
+ * Before a retry callers ask if the earlier attempt got through after all,
+ * branch names are derived from the comments so they can.
+ * Implementations get picked by {@link CommentSinks#forVertx}
+ *
+ * @author swissel
+ */
+public interface CommentSink {
+
+    /**
+     * Commits files on a new branch
+     *
+     * @param branch branch to create
+     * @param author commit author
+     * @param message commit message
+     * @param files repository path to file content
+     * @return completes when the commit is safe
+     */
+    Future<Void> commit(String branch, String author, String message, Map<String, String> files);
+
+    /**
+     * Asks for the branch to be merged into the main branch
+     *
+     * @param branch branch created by {@link #commit}
+     * @param title title of the request
+     * @return completes when the request exists
+     */
+    Future<Void> openPullRequest(String branch, String title);
+
+    /**
+     * Reconciliation before a commit retry
+     *
+     * @param branch branch of the commit
+     * @return true when the branch exists
+     */
+    Future<Boolean> hasBranch(String branch);
+
+    /**
+     * Reconciliation before a pull request retry
+     *
+     * @param branch source branch
+     * @return true when a pull request from the branch exists, in any state
+     */
+    Future<Boolean> hasPullRequest(String branch);
+
+    /**
+     * A sink behind an open circuit breaker fails calls right away, callers
+     * ask first instead of piling up failures
+     *
+     * @return true when a call would be attempted right now
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import io.vertx.core.Vertx;
+
+/**
+ * Picks the {@link CommentSink} configured in StorageBackend
+ *
+ * @author swissel
+ */
+public final class CommentSinks {
+
+    public static final String BITBUCKET = "bitbucket";
+    public static final String LOCAL = "local";
+
+    private static final Map<Vertx, CommentSink> SINKS = new ConcurrentHashMap<>();
+
+    /**
+     * One sink per Vert.x instance, shared by the store and pull request
+     * verticles
+     *
+     * @param vertx the Vert.x instance
+     * @return the sink
+     */
+    public static CommentSink forVertx(final Vertx vertx) {
+        return SINKS.computeIfAbsent(vertx, v -> LOCAL.equals(Config.INSTANCE.getStorageBackend())
+                ? new LocalGitSink(v)
+                : new BitbucketSink(v));
+    }
+
+    private CommentSinks() {
+        // Static methods only
+    }
+}
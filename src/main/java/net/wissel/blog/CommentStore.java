@@ -21,36 +21,71 @@
  */
 package net.wissel.blog;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
-import java.util.UUID;
+import java.util.Map;
+import java.util.stream.Collectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import io.vertx.core.AbstractVerticle;
-import io.vertx.core.MultiMap;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.eventbus.Message;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 
 /**
- * Saves received comments into Bitbucket
+ * Saves received comments through the configured {@link CommentSink}. With a
+ * batch window configured comments are collected and committed together on one
+ * branch, so a busy post results in one commit and one pull request instead of
+ * one per comment.
+ *
+ * Branch names come from the comment ids. Every attempt waits until the
+ * branch is journaled before the sink sees it, and a retry first asks the sink
+ * if the branch is already there, so a commit that went through despite an
+ * error or a crash doesn't get written twice.
+ *
+ * Calls into the sink are limited to IngestDrainRate per second. What can't go
+ * right away, or while the sink's circuit breaker is open, waits in a bounded
+ * queue; beyond IngestQueueSize comments in memory the rest goes to an
+ * {@link IngestSpill} on disk. The depth is published in the
+ * {@link IngestBacklog} the web listeners answer by
  *
  * @author swissel
  */
 public class CommentStore extends AbstractVerticle {
 
-    private static final String RETRY_COUNT = "retryCount";
+    private static final int MAX_RETRIES = 20;
+    /* Interval of the queue pump in ms */
+    private static final long PUMP_INTERVAL = 100L;
+    private static final String SPILL_FILE = "ingest-spill.jsonl";
 
-    WebClient client = null;
     private final Logger logger = LogManager.getLogger(this.getClass());
 
-    private final Queue<JsonObject> retryMessages = new LinkedList<>();
+    private RetryScheduler<CommentEnvelope> retryMessages;
+    private final List<CommentEnvelope> batch = new ArrayList<>();
+    /* Comments waiting for the sink, oldest first */
+    private final ArrayDeque<CommentEnvelope> pending = new ArrayDeque<>();
+    private CommentSink sink;
+    private IngestSpill spill;
+    private int queueSize;
+    private int callsPerTick;
+    /* Sink calls left in the current pump interval */
+    private int budget;
+    /* Comments inside running sink calls */
+    private int inFlight = 0;
+    private long batchTimer = -1L;
 
     /**
      * @see io.vertx.core.AbstractVerticle#start(io.vertx.core.Future)
@@ -59,9 +94,20 @@ public class CommentStore extends AbstractVerticle {
     public void start(final Promise<Void> startFuture) {
 
         final EventBus eb = this.getVertx().eventBus();
+        this.sink = CommentSinks.forVertx(this.getVertx());
+        this.spill = new IngestSpill(this.getVertx(),
+                Path.of(Config.INSTANCE.getJournalDir(), SPILL_FILE));
+        this.queueSize = Config.INSTANCE.getIngestQueueSize();
+        this.callsPerTick =
+                (int) Math.max(1L, Config.INSTANCE.getIngestDrainRate() * PUMP_INTERVAL / 1000L);
+        this.budget = this.callsPerTick;
         eb.consumer(Parameters.MESSAGE_NEW_COMMENT, this::processNewMessages);
-        // For messages not going through retry after 10 seconds
-        this.getVertx().setPeriodic(10000L, this::retryHandler);
+        // For messages not going through: retry after 2s, 4s, 8s ... max 5 min
+        this.retryMessages =
+                new RetryScheduler<>(this.getVertx(), 2000L, 300000L, this::retryDue);
+        this.getVertx().setPeriodic(PUMP_INTERVAL, this::pump);
+        Metrics.INSTANCE.consuming(Parameters.MESSAGE_NEW_COMMENT);
+        Metrics.INSTANCE.retryQueue(Metrics.STAGE_COMMIT, this.retryMessages);
         logger.info("Verticle {} deployed", this.getClass().getName());
         startFuture.complete();
 
@@ -72,108 +118,217 @@ public class CommentStore extends AbstractVerticle {
                 + ">";
     }
 
-    private String getDateYear() {
-        final Date today = new Date();
+    /* Folder from the creation date, so every attempt writes the same path */
+    static String getDateYear(final String created) {
+        Date date = new Date();
+        if (created != null) {
+            try {
+                date = new SimpleDateFormat(Parameters.IMPORT_DATE_FORMAT, Locale.US)
+                        .parse(created);
+            } catch (final ParseException e) {
+                // Today it is
+            }
+        }
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/");
-        return sdf.format(today);
+        return sdf.format(date);
     }
 
-    private String getMessage(final JsonObject message) {
-        return "Comment from " + message.getString("Commentor");
+    static String getMessagePath(final JsonObject message) {
+
+        return "/src/comments/" + getDateYear(message.getString(Parameters.CREATED))
+                + message.getString(Parameters.ID_COMMENT) + ".json";
+    }
+
+    /**
+     * @param messages comments committed together
+     * @return the same branch name for the same comments, every time
+     */
+    static String branchFor(final List<CommentEnvelope> messages) {
+        if (messages.size() == 1) {
+            return "comment-" + messages.get(0).getCommentId();
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            messages.stream().map(CommentEnvelope::getCommentId).sorted()
+                    .forEach(id -> digest.update((id + "\n").getBytes(StandardCharsets.UTF_8)));
+            return "comments-" + HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private String getMessagePath(final JsonObject message) {
+    /* Title plus one trailer per comment, identical on every attempt */
+    private static String getCommitMessage(final CommentEnvelope pullRequest) {
+        final StringBuilder message = new StringBuilder(pullRequest.getTitle()).append('\n');
+        pullRequest.getCommentIds()
+                .forEach(id -> message.append("\nComment-Id: ").append(id));
+        return message.toString();
+    }
 
-        return "/src/comments/" + this.getDateYear() + message.getString(Parameters.ID_COMMENT)
-                + ".json";
+    /* What goes into the repository and the journal for one comment */
+    private static JsonObject toStored(final CommentEnvelope comment) {
+        return comment.toJson()
+                .put(Parameters.ID_REPOSITORYPATH, getMessagePath(comment.getComment()));
     }
 
-    private WebClient getWebClient() {
-        if (this.client == null) {
-            final WebClientOptions options =
-                    new WebClientOptions().setUserAgent("CommentService 1.0.4").setSsl(true)
-                            .setKeepAlive(true);
-            this.client = WebClient.create(this.vertx, options);
+    private void processNewMessages(final Message<CommentEnvelope> incoming) {
+        final CommentEnvelope message = incoming.body();
+        if (this.pending.isEmpty() && this.spill.isEmpty() && this.budget > 0
+                && this.sink.isAvailable()) {
+            this.acceptMessage(message);
+        } else if (message.getBranch() != null
+                || this.spill.isEmpty() && this.inMemory() < this.queueSize) {
+            // Replayed batches were in memory before the restart, they don't spill
+            this.pending.add(message);
+        } else {
+            if (this.spill.isEmpty()) {
+                this.logger.warn("Ingest queue full, spilling to disk");
+            }
+            // Once spilling, everything new goes behind the spilled comments
+            this.spill.append(message.getComment());
         }
-        return this.client;
+        this.publishBacklog();
     }
 
-    private void processNewMessages(final Message<JsonObject> incoming) {
+    /* Retries were counted when they first came in, no capacity check */
+    private void retryDue(final CommentEnvelope message) {
+        if (this.sink.isAvailable()) {
+            this.acceptMessage(message);
+        } else {
+            this.pending.addFirst(message);
+        }
+    }
 
-        final JsonObject message = incoming.body();
-        if (!message.containsKey(Parameters.CREATED)) {
-            final SimpleDateFormat sdf =
-                    new SimpleDateFormat(Parameters.IMPORT_DATE_FORMAT, Locale.US);
-            message.put(Parameters.CREATED, sdf.format(new Date()));
+    /* Refills from disk and hands waiting comments to the sink at the drain rate */
+    private void pump(final Long timerId) {
+        this.budget = this.callsPerTick;
+        this.spill.flush();
+        if (!this.spill.isEmpty() && this.pending.size() < this.queueSize / 2) {
+            this.spill.take(this.queueSize / 2).onSuccess(comments -> {
+                comments.forEach(comment -> this.pending.add(CommentEnvelope.of(comment)));
+                this.publishBacklog();
+            });
+        }
+        while (this.budget > 0 && !this.pending.isEmpty() && this.sink.isAvailable()) {
+            this.acceptMessage(this.pending.poll());
         }
+        this.publishBacklog();
+    }
+
+    private int inMemory() {
+        return this.pending.size() + this.retryMessages.size() + this.batch.size()
+                + this.inFlight;
+    }
+
+    private void publishBacklog() {
+        IngestBacklog.shared().update(this.pending.size() + this.retryMessages.size(),
+                this.spill.size(), this.sink.isAvailable());
+    }
 
-        // ADD an id if needed
-        if (!message.containsKey(Parameters.ID_COMMENT)) {
-            message.put(Parameters.ID_COMMENT, UUID.randomUUID().toString());
+    private void acceptMessage(final CommentEnvelope message) {
+        if (message.getBranch() != null) {
+            // Attempted before, goes out again as it was
+            this.storeBatch(message);
+            return;
         }
+        this.logger.info("Processing {}", getMessagePath(message.getComment()));
 
-        this.logger.info("Processing {}", this.getMessagePath(message));
+        final long batchWindow = Config.INSTANCE.getCommentBatchWindow();
+        if (batchWindow <= 0) {
+            this.storeBatch(this.prepare(List.of(message)));
+            return;
+        }
+        this.batch.add(message);
+        if (this.batch.size() >= Config.INSTANCE.getCommentBatchSize()) {
+            this.flushBatch(null);
+        } else if (this.batchTimer < 0) {
+            this.batchTimer = this.getVertx().setTimer(batchWindow, this::flushBatch);
+        }
+    }
 
-        OauthHelper.getAccessToken(this.getVertx()).onFailure(err -> {
-            this.logger.error("Failed to get access Token: {}, {}", this.getMessagePath(message),
-                    err);
-            this.getVertx().eventBus().publish(Parameters.MESSAGE_PUSH_COMMENT,
-                    message.put("Failure", "Failed to get access token"));
-        }).onSuccess(accessToken -> this.storeMessageInBitbucket(message, accessToken));
+    private void flushBatch(final Long timerId) {
+        if (this.batchTimer >= 0) {
+            this.getVertx().cancelTimer(this.batchTimer);
+            this.batchTimer = -1L;
+        }
+        if (this.batch.isEmpty()) {
+            return;
+        }
+        final List<CommentEnvelope> messages = new ArrayList<>(this.batch);
+        this.batch.clear();
+        this.storeBatch(this.prepare(messages));
     }
 
-    private void retryHandler(final Long interval) {
-        final EventBus eb = this.getVertx().eventBus();
-        while (!this.retryMessages.isEmpty()) {
-            final JsonObject candidate = this.retryMessages.poll();
-            if (candidate != null) {
-                final int retryCount = (candidate.getInteger(RETRY_COUNT, 0) + 1);
-                candidate.put(RETRY_COUNT, retryCount);
-                if (retryCount > 20) {
-                    this.logger.error("Retry count exceeded: {}", this.getMessagePath(candidate));
-                    this.getVertx().eventBus().publish(Parameters.MESSAGE_PUSH_COMMENT,
-                            candidate.put("Failure", "Retry count exceeded"));
-
-                } else {
-                    // Put them back on the bus
-                    this.logger.info("Retry: {}", this.getMessagePath(candidate));
-                    eb.publish(Parameters.MESSAGE_NEW_COMMENT, candidate);
-
-                }
-            }
+    private void retry(final CommentEnvelope candidate, final long retryAfter) {
+        final int retryCount = candidate.getAttempt() + 1;
+        final String branch = candidate.getBranch();
+        if (retryCount > MAX_RETRIES) {
+            this.logger.error("Retry count exceeded: {}", branch);
+            Metrics.INSTANCE.retryExhausted(Metrics.STAGE_COMMIT);
+            final EventBus eb = this.getVertx().eventBus();
+            candidate.getCommentIds().forEach(commentId -> CommentJournal.record(eb, commentId,
+                    CommentJournal.STATE_FAILED, null));
+            eb.send(Parameters.MESSAGE_PUSH_COMMENT,
+                    candidate.withFailure("Retry count exceeded"));
+        } else {
+            this.logger.info("Retry {}: {}", retryCount, branch);
+            this.retryMessages.schedule(candidate.withAttempt(retryCount), retryCount,
+                    retryAfter);
         }
     }
 
-    private void storeMessageInBitbucket(final JsonObject message, final String accessToken) {
-
-        // Convert to HTTP Form format as used by Bitbucket API
-        final String commentBranch = "comments-" + UUID.randomUUID().toString().substring(0, 5);
-        // .or. Single Branch, so multiple comments can be approved in one go
-        // change commentBranch to "comments" for that
-        message.put("branch", commentBranch);
-        message.put(Parameters.ID_REPOSITORYPATH, this.getMessagePath(message));
-        final MultiMap form = MultiMap.caseInsensitiveMultiMap();
-        form.set("author", this.getAuthorEmail(message));
-        form.set("message", this.getMessage(message));
-        form.set("branch", commentBranch);
-        form.set(this.getMessagePath(message), message.encodePrettily());
-
-        final WebClient wc = this.getWebClient();
-        final String target = "/2.0/repositories/" + Config.INSTANCE.getRepositoryURL() + "/src";
-        wc.post(443, "api.bitbucket.org", target).ssl(true)
-                .putHeader("Content-Type", "application/x-www-form-urlencoded")
-                .putHeader("Authorization", "Bearer " + accessToken).sendForm(form, res -> {
-                    if (res.failed()) {
-                        this.logger.error(
-                                "Failed to send (will retry): {}, {}", this.getMessagePath(message),
-                                res.cause());
-                        this.retryMessages.offer(message);
-                    } else {
-                        this.getVertx().eventBus().publish(Parameters.MESSAGE_PUSH_COMMENT,
-                                message);
-                        this.getVertx().eventBus().publish(Parameters.MESSAGE_PULLREQUEST, message);
-                        this.logger.info("Posted to {}", this.getMessagePath(message));
+    /* Names the branch, storeBatch journals it before anything goes out */
+    private CommentEnvelope prepare(final List<CommentEnvelope> messages) {
+        return CommentEnvelope.batch(messages, branchFor(messages));
+    }
+
+    private void storeBatch(final CommentEnvelope pullRequest) {
+        final String commentBranch = pullRequest.getBranch();
+        final List<CommentEnvelope> stored = pullRequest.split();
+        final Map<String, String> files = new LinkedHashMap<>();
+        final Map<String, JsonObject> journalRecords = new LinkedHashMap<>();
+        stored.forEach(comment -> {
+            final JsonObject json = toStored(comment);
+            files.put(json.getString(Parameters.ID_REPOSITORYPATH), json.encode());
+            journalRecords.put(comment.getCommentId(), json);
+        });
+
+        this.budget--;
+        this.inFlight += stored.size();
+        // On disk before the sink sees it, so a replay after a crash reconciles first
+        final EventBus eb = this.getVertx().eventBus();
+        final Future<Void> journaled = Future.all(journalRecords.entrySet().stream()
+                .map(entry -> CommentJournal.record(eb, entry.getKey(),
+                        CommentJournal.STATE_COMMITTING, entry.getValue()))
+                .collect(Collectors.toList())).mapEmpty();
+        // A retry checks first, the last attempt might have worked after all
+        final Future<Boolean> committed = journaled.compose(v -> pullRequest.getAttempt() == 0
+                ? Future.succeededFuture(false)
+                : this.sink.hasBranch(commentBranch).onSuccess(
+                        found -> Metrics.INSTANCE.reconciled(Metrics.STAGE_COMMIT, found)));
+        committed.compose(found -> found ? Future.<Void>succeededFuture()
+                : this.sink.commit(commentBranch, this.getAuthorEmail(pullRequest.getComment()),
+                        getCommitMessage(pullRequest), files))
+                .onComplete(ar -> this.inFlight -= stored.size())
+                .onFailure(err -> {
+                    if (err instanceof CircuitBreaker.OpenException) {
+                        // Never left the house, back to the front of the queue
+                        this.pending.addFirst(pullRequest);
+                        return;
                     }
+                    this.logger.error("Failed to store (will retry): {}, {}", commentBranch,
+                            err.getMessage());
+                    this.retry(pullRequest, SinkException.retryAfterOf(err));
+                })
+                .onSuccess(v -> {
+                    journalRecords.forEach((commentId, json) -> CommentJournal.record(eb,
+                            commentId, CommentJournal.STATE_STORED, json));
+                    stored.forEach(message -> {
+                        eb.send(Parameters.MESSAGE_PUSH_COMMENT, message);
+                        this.logger.info("Posted to {}", getMessagePath(message.getComment()));
+                    });
+                    // One pull request for the whole batch
+                    eb.send(Parameters.MESSAGE_PULLREQUEST, pullRequest.withBranch(commentBranch));
                 });
     }
 
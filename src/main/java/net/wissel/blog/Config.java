@@ -21,11 +21,15 @@
  */
 package net.wissel.blog;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
- * Configuration settings from the environment
+ * Configuration settings from the environment, a system property of the same
+ * name wins over the environment variable
  * 
  * @author swissel
  *
@@ -42,60 +46,526 @@ public enum Config {
 	private static final String OAUTH_URL= "OauthURL";
 	private static final String PUSH_USER = "PushUser";
 	private static final String PUSH_TOKEN= "PushToken";
+	private static final String BATCH_WINDOW = "CommentBatchWindow";
+	private static final String BATCH_SIZE = "CommentBatchSize";
+	private static final String JOURNAL_DIR = "JournalDir";
+	private static final String HTTP_INSTANCES = "HttpInstances";
+	private static final String RATE_LIMIT = "RateLimitPerMinute";
+	private static final String RATE_BURST = "RateLimitBurst";
+	private static final String MAX_IN_FLIGHT = "MaxInFlight";
+	private static final String MAX_BODY_SIZE = "MaxBodySize";
+	private static final String CORS_ORIGINS = "CorsOrigins";
+	private static final String CORS_MAX_AGE = "CorsMaxAge";
+	private static final String TLS_CERT = "TlsCertPath";
+	private static final String TLS_KEY = "TlsKeyPath";
+	private static final String DEDUP_WINDOW = "DedupWindow";
+	private static final String DEDUP_CAPACITY = "DedupCapacity";
+	private static final String SPAM_RULES = "SpamRules";
+	private static final String SPAM_QUARANTINE = "SpamQuarantine";
+	private static final String BLOG_REPO_PATH = "BlogRepoPath";
+	private static final String STORAGE_BACKEND = "StorageBackend";
+	private static final String LOCAL_REPO_PATH = "LocalRepoPath";
+	private static final String LOCAL_GIT_REMOTE = "LocalGitRemote";
+	private static final String LOCAL_PUSH_INTERVAL = "LocalPushInterval";
+	private static final String BITBUCKET_API = "BitbucketApi";
+	private static final String PUSHOVER_API = "PushoverApi";
+	private static final String BREAKER_ERROR_PERCENT = "BreakerErrorPercent";
+	private static final String BREAKER_WINDOW = "BreakerWindow";
+	private static final String BREAKER_OPEN_TIME = "BreakerOpenTime";
+	private static final String INGEST_QUEUE_SIZE = "IngestQueueSize";
+	private static final String INGEST_DELAYED_DEPTH = "IngestDelayedDepth";
+	private static final String INGEST_MAX_BACKLOG = "IngestMaxBacklog";
+	private static final String INGEST_DRAIN_RATE = "IngestDrainRate";
+	private static final String HTTP_POOL_SIZE = "HttpPoolSize";
+	private static final String HTTP_POOL_SIZES = "HttpPoolSizes";
+	private static final String HTTP_CONNECT_TIMEOUT = "HttpConnectTimeout";
+	private static final String HTTP_IDLE_TIMEOUT = "HttpIdleTimeout";
+	private static final String DNS_CACHE_TTL = "DnsCacheTtl";
+	private static final String PUSH_DIGEST_WINDOW = "PushDigestWindow";
+	private static final String PUSH_RATE = "PushRatePerHour";
+	private static final String PUSH_BURST = "PushBurst";
+	private static final String NOTIFY_WEBHOOK = "NotifyWebhookURL";
+	private static final String NTFY_URL = "NtfyURL";
+	private static final String NTFY_TOKEN = "NtfyToken";
+	private static final String SMTP_HOST = "SmtpHost";
+	private static final String SMTP_PORT = "SmtpPort";
+	private static final String SMTP_USER = "SmtpUser";
+	private static final String SMTP_PASSWORD = "SmtpPassword";
+	private static final String MAIL_FROM = "MailFrom";
+	private static final String MAIL_TO = "MailTo";
+	private static final String NOTIFY_QUEUE_SIZE = "NotifyQueueSize";
+	private static final String NOTIFY_CONCURRENCY = "NotifyConcurrency";
+	private static final String NOTIFY_TIMEOUT = "NotifyTimeout";
+	private static final String METRICS_PORT = "MetricsPort";
+	private static final String METRICS_TOKEN = "MetricsToken";
+
+	private static final String DEFAULT_CORS_ORIGINS = "http://localhost,https://wissel.net,"
+			+ "https://www.wissel.net,https://stwissel.github.io,https://notessensei.com,"
+			+ "https://www.notessensei.com";
 	
-	private boolean isInit = false;
 	private final Map<String, String> configValues = new HashMap<>();
+
+	/**
+	 * Reads everything once while the enum class initialises, so the getters
+	 * never need a lock: the JVM publishes the filled map to every thread
+	 */
+	Config() {
+		this.init();
+	}
 	
 	public String getClientSecret() {
-		init();
 		return this.configValues.get(CLIENT_SECRET);
 	}
 	
 	public String getClientToken() {
-		init();
 		return this.configValues.get(CLIENT_TOKEN);
 	}
 	
 	public String getCaptchSecret() {
-		init();
 		return this.configValues.get(CAPTCHA_SECRET);
 	}
 	
 	public int getPort() {
-		init();
 		return Integer.valueOf(this.configValues.get(PORT));
 	}
 	
 	public String getRepositoryURL() {
-		init();
 		return this.configValues.get(REPOSITORY_URL);
 	}
 	
 	public String getOauthURL() {
-		init();
 		return this.configValues.get(OAUTH_URL);
 	}
 	
+	/**
+	 * @return where access tokens come from, OauthURL as host or URL
+	 */
+	public Endpoint getOauthEndpoint() {
+		return Endpoint.parse(this.configValues.get(OAUTH_URL), "https://bitbucket.org");
+	}
+
+	/**
+	 * @return the Bitbucket REST API
+	 */
+	public Endpoint getBitbucketApi() {
+		return Endpoint.parse(this.configValues.get(BITBUCKET_API), "https://api.bitbucket.org");
+	}
+
+	/**
+	 * @return the Pushover API
+	 */
+	public Endpoint getPushoverApi() {
+		return Endpoint.parse(this.configValues.get(PUSHOVER_API), "https://api.pushover.net");
+	}
+
 	public String getPushToken() {
-		init();
 		return this.configValues.get(PUSH_TOKEN);
 	}
 
 	public String getPushUser() {
-		init();
 		return this.configValues.get(PUSH_USER);
 	}
+
+	/**
+	 * @return seconds later notifications are collected into one digest
+	 *         after a notification went out
+	 */
+	public long getPushDigestWindow() {
+		return Math.max(1L, this.getLong(PUSH_DIGEST_WINDOW, 60L));
+	}
+
+	/**
+	 * @return push notifications per hour once the burst is used up
+	 */
+	public long getPushRatePerHour() {
+		return Math.max(1L, this.getLong(PUSH_RATE, 30L));
+	}
+
+	/**
+	 * @return push notifications that may go out back to back
+	 */
+	public int getPushBurst() {
+		return (int) Math.max(1L, this.getLong(PUSH_BURST, 3L));
+	}
+
+	/**
+	 * @return where webhook notifications get posted, null when unset
+	 */
+	public Endpoint getNotifyWebhook() {
+		return this.getEndpoint(NOTIFY_WEBHOOK);
+	}
+
+	/**
+	 * @return ntfy topic URL, null when unset
+	 */
+	public Endpoint getNtfyTopic() {
+		return this.getEndpoint(NTFY_URL);
+	}
+
+	public String getNtfyToken() {
+		return this.configValues.get(NTFY_TOKEN);
+	}
+
+	public String getSmtpHost() {
+		return this.configValues.get(SMTP_HOST);
+	}
+
+	/**
+	 * @return SMTP port, 465 means TLS right away
+	 */
+	public int getSmtpPort() {
+		return (int) this.getLong(SMTP_PORT, 25L);
+	}
+
+	public String getSmtpUser() {
+		return this.configValues.get(SMTP_USER);
+	}
+
+	public String getSmtpPassword() {
+		return this.configValues.get(SMTP_PASSWORD);
+	}
+
+	/**
+	 * @return sender of notification mails
+	 */
+	public String getMailFrom() {
+		final String from = this.configValues.get(MAIL_FROM);
+		return from == null ? "comments@localhost" : from;
+	}
+
+	/**
+	 * @return recipient of notification mails, null when unset
+	 */
+	public String getMailTo() {
+		return this.configValues.get(MAIL_TO);
+	}
+
+	/**
+	 * @return notifications waiting for delivery per channel
+	 */
+	public int getNotifyQueueSize() {
+		return (int) Math.max(1L, this.getLong(NOTIFY_QUEUE_SIZE, 20L));
+	}
+
+	/**
+	 * @return notifications in flight per channel
+	 */
+	public int getNotifyConcurrency() {
+		return (int) Math.max(1L, this.getLong(NOTIFY_CONCURRENCY, 2L));
+	}
+
+	/**
+	 * @return ms a channel gets to deliver a notification
+	 */
+	public long getNotifyTimeout() {
+		return Math.max(1L, this.getLong(NOTIFY_TIMEOUT, 10000L));
+	}
 	
+	/**
+	 * @return milliseconds comments are collected before they get committed
+	 *         together, 0 commits every comment on its own
+	 */
+	public long getCommentBatchWindow() {
+		return this.getLong(BATCH_WINDOW, 0L);
+	}
+
+	/**
+	 * @return number of comments that triggers a batch commit before the
+	 *         window closes
+	 */
+	public int getCommentBatchSize() {
+		return (int) this.getLong(BATCH_SIZE, 25L);
+	}
+
+	/**
+	 * @return directory holding the comment journal segments
+	 */
+	public String getJournalDir() {
+		final String candidate = this.configValues.get(JOURNAL_DIR);
+		return (candidate == null || "".equals(candidate.trim())) ? "journal" : candidate;
+	}
+
+	/**
+	 * @return number of web listener instances, defaults to the core count
+	 */
+	public int getHttpInstances() {
+		final int instances = (int) this.getLong(HTTP_INSTANCES,
+				Runtime.getRuntime().availableProcessors());
+		return Math.max(1, instances);
+	}
+
+	/**
+	 * @return comments per minute a single client IP may post
+	 */
+	public long getRateLimitPerMinute() {
+		return this.getLong(RATE_LIMIT, 6L);
+	}
+
+	/**
+	 * @return comments a client IP may post in a quick burst
+	 */
+	public long getRateLimitBurst() {
+		return this.getLong(RATE_BURST, 3L);
+	}
+
+	/**
+	 * @return comment requests processed at the same time across all instances
+	 */
+	public int getMaxInFlight() {
+		return (int) this.getLong(MAX_IN_FLIGHT, 64L);
+	}
+
+	/**
+	 * @return max size of a comment request body in bytes
+	 */
+	public long getMaxBodySize() {
+		return this.getLong(MAX_BODY_SIZE, 128L * 1024L);
+	}
+
+	/**
+	 * @return origins allowed to post comments, comma separated in the
+	 *         environment
+	 */
+	public List<String> getCorsOrigins() {
+		final String candidate = this.configValues.get(CORS_ORIGINS);
+		final String origins = (candidate == null || "".equals(candidate.trim()))
+				? DEFAULT_CORS_ORIGINS : candidate;
+		return Arrays.stream(origins.split(","))
+				.map(String::trim)
+				.filter(origin -> !origin.isEmpty())
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return seconds browsers may cache a CORS preflight
+	 */
+	public long getCorsMaxAge() {
+		return this.getLong(CORS_MAX_AGE, 86400L);
+	}
+
+	/**
+	 * @return PEM certificate chain, TLS is off without it
+	 */
+	public String getTlsCertPath() {
+		return this.configValues.get(TLS_CERT);
+	}
+
+	/**
+	 * @return PEM private key matching the certificate
+	 */
+	public String getTlsKeyPath() {
+		return this.configValues.get(TLS_KEY);
+	}
+
+	/**
+	 * @return seconds a submitted comment blocks identical submissions
+	 */
+	public long getDedupWindow() {
+		return this.getLong(DEDUP_WINDOW, 3600L);
+	}
+
+	/**
+	 * @return number of recent submissions remembered for deduplication
+	 */
+	public int getDedupCapacity() {
+		return (int) Math.max(1L, this.getLong(DEDUP_CAPACITY, 65536L));
+	}
+
+	/**
+	 * @return JSON file with spam rules, null for the built-in ones
+	 */
+	public String getSpamRules() {
+		final String candidate = this.configValues.get(SPAM_RULES);
+		return (candidate == null || "".equals(candidate.trim())) ? null : candidate;
+	}
+
+	/**
+	 * @return file quarantined comments get appended to
+	 */
+	public String getSpamQuarantine() {
+		final String candidate = this.configValues.get(SPAM_QUARANTINE);
+		return (candidate == null || "".equals(candidate.trim()))
+				? this.getJournalDir() + "/quarantine.jsonl" : candidate;
+	}
+
+	/**
+	 * @return local checkout of the blog repository, null disables the read API
+	 */
+	public String getBlogRepoPath() {
+		final String candidate = this.configValues.get(BLOG_REPO_PATH);
+		return (candidate == null || "".equals(candidate.trim())) ? null : candidate;
+	}
+
+	/**
+	 * @return where comments get committed: bitbucket or local
+	 */
+	public String getStorageBackend() {
+		final String candidate = this.configValues.get(STORAGE_BACKEND);
+		return (candidate == null || "".equals(candidate.trim())) ? "bitbucket"
+				: candidate.trim().toLowerCase();
+	}
+
+	/**
+	 * @return bare git repository the local storage backend commits into
+	 */
+	public String getLocalRepoPath() {
+		final String candidate = this.configValues.get(LOCAL_REPO_PATH);
+		return (candidate == null || "".equals(candidate.trim())) ? "comments.git" : candidate;
+	}
+
+	/**
+	 * @return remote the local repository gets pushed to, null for no push
+	 */
+	public String getLocalGitRemote() {
+		final String candidate = this.configValues.get(LOCAL_GIT_REMOTE);
+		return (candidate == null || "".equals(candidate.trim())) ? null : candidate.trim();
+	}
+
+	/**
+	 * @return seconds between pushes of the local repository
+	 */
+	public long getLocalPushInterval() {
+		return Math.max(1L, this.getLong(LOCAL_PUSH_INTERVAL, 60L));
+	}
+
+	/**
+	 * @return failed calls in percent of all calls in the window that open the
+	 *         circuit breaker in front of Bitbucket
+	 */
+	public int getBreakerErrorPercent() {
+		return (int) Math.min(100L, Math.max(1L, this.getLong(BREAKER_ERROR_PERCENT, 50L)));
+	}
+
+	/**
+	 * @return seconds of calls the circuit breaker looks back on
+	 */
+	public int getBreakerWindow() {
+		return (int) Math.max(1L, this.getLong(BREAKER_WINDOW, 60L));
+	}
+
+	/**
+	 * @return seconds an open circuit breaker waits before it lets a probe
+	 *         through
+	 */
+	public long getBreakerOpenTime() {
+		return Math.max(1L, this.getLong(BREAKER_OPEN_TIME, 30L));
+	}
+
+	/**
+	 * @return comments waiting for storage held in memory, more go to disk
+	 */
+	public int getIngestQueueSize() {
+		return (int) Math.max(1L, this.getLong(INGEST_QUEUE_SIZE, 1000L));
+	}
+
+	/**
+	 * @return waiting comments from which new ones get a "delayed" answer
+	 */
+	public long getIngestDelayedDepth() {
+		return this.getLong(INGEST_DELAYED_DEPTH, 100L);
+	}
+
+	/**
+	 * @return waiting comments in memory and on disk from which new ones get
+	 *         turned away
+	 */
+	public long getIngestMaxBacklog() {
+		return this.getLong(INGEST_MAX_BACKLOG, 100000L);
+	}
+
+	/**
+	 * @return comments per second handed to storage while working off a
+	 *         backlog
+	 */
+	public int getIngestDrainRate() {
+		return (int) Math.max(1L, this.getLong(INGEST_DRAIN_RATE, 50L));
+	}
+
+	/**
+	 * @param host remote host
+	 * @return max HTTP/1.1 connections to the host, from HttpPoolSizes
+	 *         (host=size,...) or HttpPoolSize
+	 */
+	public int getHttpPoolSize(final String host) {
+		final String candidate = this.configValues.get(HTTP_POOL_SIZES);
+		if (candidate != null) {
+			for (final String entry : candidate.split(",")) {
+				final String[] hostSize = entry.trim().split("=");
+				if (hostSize.length == 2 && hostSize[0].trim().equalsIgnoreCase(host)) {
+					try {
+						return Math.max(1, Integer.parseInt(hostSize[1].trim()));
+					} catch (final NumberFormatException e) {
+						break;
+					}
+				}
+			}
+		}
+		return (int) Math.max(1L, this.getLong(HTTP_POOL_SIZE, 8L));
+	}
+
+	/**
+	 * @return ms to wait for an outbound connection
+	 */
+	public int getHttpConnectTimeout() {
+		return (int) Math.max(1L, this.getLong(HTTP_CONNECT_TIMEOUT, 5000L));
+	}
+
+	/**
+	 * @return seconds an unused outbound connection stays open
+	 */
+	public int getHttpIdleTimeout() {
+		return (int) Math.max(1L, this.getLong(HTTP_IDLE_TIMEOUT, 60L));
+	}
+
+	/**
+	 * @return seconds a DNS answer is cached at least
+	 */
+	public int getDnsCacheTtl() {
+		return (int) Math.max(0L, this.getLong(DNS_CACHE_TTL, 60L));
+	}
+
+	/**
+	 * @return port of the separate listener serving /metrics, 0 when the
+	 *         metrics are not served on a port of their own
+	 */
+	public int getMetricsPort() {
+		final long port = this.getLong(METRICS_PORT, 0L);
+		return port > 0L && port < 65536L ? (int) port : 0;
+	}
+
+	/**
+	 * @return bearer token a /metrics scrape has to send, null when none is
+	 *         configured
+	 */
+	public String getMetricsToken() {
+		final String candidate = this.configValues.get(METRICS_TOKEN);
+		return candidate == null || "".equals(candidate.trim()) ? null : candidate.trim();
+	}
+
+	private Endpoint getEndpoint(final String key) {
+		final String candidate = this.configValues.get(key);
+		return candidate == null || "".equals(candidate.trim()) ? null
+				: Endpoint.parse(candidate, null);
+	}
+
+	private long getLong(final String key, final long defaultValue) {
+		final String candidate = this.configValues.get(key);
+		if (candidate == null || "".equals(candidate.trim())) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(candidate.trim());
+		} catch (final NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Loads the configuration values from the environment
 	 * or elsewhere
 	 */
 	private void init() {
-		if (this.isInit) {
-			return;
-		}
-
-		final String portCandidate = System.getenv(PORT);
+		final String portCandidate = System.getProperty(PORT, System.getenv(PORT));
 		this.configValues.put(PORT, (portCandidate == null || "".equals(portCandidate)) ? "5000" : portCandidate);
 		this.addParam(CLIENT_SECRET);
 		this.addParam(CLIENT_TOKEN);
@@ -104,11 +574,62 @@ public enum Config {
 		this.addParam(OAUTH_URL);
 		this.addParam(PUSH_TOKEN);
 		this.addParam(PUSH_USER);
-		this.isInit = true;
+		this.addParam(BATCH_WINDOW);
+		this.addParam(BATCH_SIZE);
+		this.addParam(JOURNAL_DIR);
+		this.addParam(HTTP_INSTANCES);
+		this.addParam(RATE_LIMIT);
+		this.addParam(RATE_BURST);
+		this.addParam(MAX_IN_FLIGHT);
+		this.addParam(MAX_BODY_SIZE);
+		this.addParam(CORS_ORIGINS);
+		this.addParam(CORS_MAX_AGE);
+		this.addParam(TLS_CERT);
+		this.addParam(TLS_KEY);
+		this.addParam(DEDUP_WINDOW);
+		this.addParam(DEDUP_CAPACITY);
+		this.addParam(SPAM_RULES);
+		this.addParam(SPAM_QUARANTINE);
+		this.addParam(BLOG_REPO_PATH);
+		this.addParam(STORAGE_BACKEND);
+		this.addParam(LOCAL_REPO_PATH);
+		this.addParam(LOCAL_GIT_REMOTE);
+		this.addParam(LOCAL_PUSH_INTERVAL);
+		this.addParam(BITBUCKET_API);
+		this.addParam(PUSHOVER_API);
+		this.addParam(BREAKER_ERROR_PERCENT);
+		this.addParam(BREAKER_WINDOW);
+		this.addParam(BREAKER_OPEN_TIME);
+		this.addParam(INGEST_QUEUE_SIZE);
+		this.addParam(INGEST_DELAYED_DEPTH);
+		this.addParam(INGEST_MAX_BACKLOG);
+		this.addParam(INGEST_DRAIN_RATE);
+		this.addParam(HTTP_POOL_SIZE);
+		this.addParam(HTTP_POOL_SIZES);
+		this.addParam(HTTP_CONNECT_TIMEOUT);
+		this.addParam(HTTP_IDLE_TIMEOUT);
+		this.addParam(DNS_CACHE_TTL);
+		this.addParam(PUSH_DIGEST_WINDOW);
+		this.addParam(PUSH_RATE);
+		this.addParam(PUSH_BURST);
+		this.addParam(NOTIFY_WEBHOOK);
+		this.addParam(NTFY_URL);
+		this.addParam(NTFY_TOKEN);
+		this.addParam(SMTP_HOST);
+		this.addParam(SMTP_PORT);
+		this.addParam(SMTP_USER);
+		this.addParam(SMTP_PASSWORD);
+		this.addParam(MAIL_FROM);
+		this.addParam(MAIL_TO);
+		this.addParam(NOTIFY_QUEUE_SIZE);
+		this.addParam(NOTIFY_CONCURRENCY);
+		this.addParam(NOTIFY_TIMEOUT);
+		this.addParam(METRICS_PORT);
+		this.addParam(METRICS_TOKEN);
 	}
 
 	private void addParam(String clientToken) {
-		String candidate = System.getenv(clientToken);
+		String candidate = System.getProperty(clientToken, System.getenv(clientToken));
 		this.configValues.put(clientToken, candidate);
 	}
 	
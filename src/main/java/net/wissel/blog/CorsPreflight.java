@@ -0,0 +1,108 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * CORS for the comment route. Allowed origins sit in a hash set, the constant
+ * header names and values are encoded once. Preflights carry a max age, so a
+ * browser asks once per day instead of before every comment
+ *
+ * @author swissel
+ */
+public final class CorsPreflight {
+
+    private static final CharSequence ALLOW_ORIGIN =
+            HttpHeaders.createOptimized("Access-Control-Allow-Origin");
+    private static final CharSequence ALLOW_METHODS =
+            HttpHeaders.createOptimized("Access-Control-Allow-Methods");
+    private static final CharSequence ALLOW_HEADERS =
+            HttpHeaders.createOptimized("Access-Control-Allow-Headers");
+    private static final CharSequence MAX_AGE =
+            HttpHeaders.createOptimized("Access-Control-Max-Age");
+    private static final CharSequence METHODS = HttpHeaders.createOptimized("OPTIONS, POST");
+    private static final CharSequence HEADERS = HttpHeaders.createOptimized("Content-Type, Idempotency-Key");
+    private static final CharSequence ORIGIN = HttpHeaders.createOptimized("Origin");
+
+    /**
+     * @return preflight with origins and max age from {@link Config}
+     */
+    public static CorsPreflight fromConfig() {
+        return new CorsPreflight(Config.INSTANCE.getCorsOrigins(),
+                Config.INSTANCE.getCorsMaxAge());
+    }
+
+    private final Set<String> origins;
+    private final CharSequence maxAge;
+
+    /**
+     * @param origins allowed origins, e.g. https://wissel.net
+     * @param maxAgeSeconds how long browsers may cache the preflight
+     */
+    public CorsPreflight(final Collection<String> origins, final long maxAgeSeconds) {
+        this.origins = new HashSet<>(origins);
+        this.maxAge = HttpHeaders.createOptimized(String.valueOf(maxAgeSeconds));
+    }
+
+    /**
+     * Answers an OPTIONS request, the body is never read
+     *
+     * @param ctx Routing context
+     */
+    public void preflight(final RoutingContext ctx) {
+        final HttpServerResponse response = ctx.response();
+        if (this.addAllowOrigin(ctx)) {
+            response.putHeader(ALLOW_METHODS, METHODS)
+                    .putHeader(ALLOW_HEADERS, HEADERS)
+                    .putHeader(MAX_AGE, this.maxAge);
+        }
+        response.setStatusCode(204).end();
+    }
+
+    /**
+     * Adds the CORS headers to the actual response, also to early rejections
+     *
+     * @param ctx Routing context
+     */
+    public void addHeaders(final RoutingContext ctx) {
+        this.addAllowOrigin(ctx);
+        ctx.next();
+    }
+
+    /* The answer depends on the Origin, caches must keep them apart */
+    private boolean addAllowOrigin(final RoutingContext ctx) {
+        final HttpServerResponse response = ctx.response();
+        response.putHeader(HttpHeaders.VARY, ORIGIN);
+        final String origin = ctx.request().getHeader(HttpHeaders.ORIGIN);
+        if (origin != null && this.origins.contains(origin)) {
+            response.putHeader(ALLOW_ORIGIN, origin);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,254 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently submitted comments so double clicks and client retries
+ * don't run through the pipeline twice. Entries are 64 bit hashes in an open
+ * addressing table, next to a ring in insertion order. All entries live
+ * equally long, so the oldest entry is always the first to expire, and when
+ * the ring is full the oldest one makes room. Memory stays fixed, a few longs
+ * per entry and no objects.
+ *
+ * Shared by all web listener instances, methods are synchronized
+ *
+ * @author swissel
+ */
+public final class DedupIndex {
+
+    private static final long EMPTY = 0L;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static DedupIndex shared = null;
+
+    /**
+     * @return index sized and timed by {@link Config}
+     */
+    public static synchronized DedupIndex shared() {
+        if (shared == null) {
+            shared = new DedupIndex(Config.INSTANCE.getDedupCapacity(),
+                    TimeUnit.SECONDS.toNanos(Config.INSTANCE.getDedupWindow()));
+        }
+        return shared;
+    }
+
+    /**
+     * Key for a client supplied Idempotency-Key header
+     *
+     * @param idempotencyKey header value
+     * @return the hash to claim
+     */
+    public static long idempotencyKey(final String idempotencyKey) {
+        return hash(hash(FNV_OFFSET, "key"), idempotencyKey.trim());
+    }
+
+    /**
+     * Key for the content of a comment: same post, same author, same text
+     * after whitespace and line endings are normalized
+     *
+     * @param parentId the post
+     * @param eMail the author
+     * @param body the comment text
+     * @return the hash to claim
+     */
+    public static long contentKey(final String parentId, final String eMail, final String body) {
+        long h = hash(FNV_OFFSET, "content");
+        h = hash(h, parentId == null ? "" : parentId.trim());
+        h = hash(h, eMail == null ? "" : eMail.trim().toLowerCase());
+        return hashNormalized(h, body == null ? "" : body);
+    }
+
+    private static long hash(final long seed, final String value) {
+        long h = seed;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Separator, so "ab"+"c" and "a"+"bc" differ
+        return (h ^ 0xff) * FNV_PRIME;
+    }
+
+    /* Hashes the text with runs of whitespace as one space, trimmed */
+    private static long hashNormalized(final long seed, final String value) {
+        long h = seed;
+        boolean pendingSpace = false;
+        boolean started = false;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = started;
+                continue;
+            }
+            if (pendingSpace) {
+                h = (h ^ ' ') * FNV_PRIME;
+                pendingSpace = false;
+            }
+            h = (h ^ c) * FNV_PRIME;
+            started = true;
+        }
+        return h;
+    }
+
+    /* Spreads the FNV bits before masking them into a slot */
+    private static long mix(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private final long ttl;
+    private final int mask;
+    /* Hash table: key and the sequence number of its ring entry */
+    private final long[] keys;
+    private final long[] sequences;
+    /* Ring in insertion order, entry n sits at n % length */
+    private final long[] ringKeys;
+    private final long[] ringExpiries;
+    private long nextSequence = 0L;
+    private int size = 0;
+
+    /**
+     * @param capacity max number of entries kept
+     * @param ttlNanos how long an entry blocks duplicates
+     */
+    public DedupIndex(final int capacity, final long ttlNanos) {
+        this.ttl = ttlNanos;
+        final int entries = Math.max(1, capacity);
+        this.ringKeys = new long[entries];
+        this.ringExpiries = new long[entries];
+        // At most half full, keeps probe sequences short
+        final int slots = Integer.highestOneBit(Math.max(1, entries - 1)) * 4;
+        this.mask = slots - 1;
+        this.keys = new long[slots];
+        this.sequences = new long[slots];
+    }
+
+    /**
+     * Marks a key as seen unless it was seen within the time window
+     *
+     * @param key from {@link #idempotencyKey(String)} or
+     *        {@link #contentKey(String, String, String)}
+     * @return true when the key is new, false for a duplicate
+     */
+    public synchronized boolean claim(final long key) {
+        final long now = System.nanoTime();
+        this.expire(now);
+        final long k = key == EMPTY ? 1L : key;
+        if (this.find(k) >= 0) {
+            return false;
+        }
+        if (this.size == this.ringKeys.length) {
+            this.removeOldest();
+        }
+        final long sequence = this.nextSequence++;
+        final int position = (int) (sequence % this.ringKeys.length);
+        this.ringKeys[position] = k;
+        this.ringExpiries[position] = now + this.ttl;
+        this.size++;
+
+        int slot = (int) mix(k) & this.mask;
+        while (this.keys[slot] != EMPTY) {
+            slot = (slot + 1) & this.mask;
+        }
+        this.keys[slot] = k;
+        this.sequences[slot] = sequence;
+        return true;
+    }
+
+    /**
+     * Forgets a key again, e.g. when the comment couldn't be accepted after
+     * all. Its ring entry stays until it comes up and gets skipped
+     *
+     * @param key the key to forget
+     */
+    public synchronized void release(final long key) {
+        final int slot = this.find(key == EMPTY ? 1L : key);
+        if (slot >= 0) {
+            this.deleteSlot(slot);
+        }
+    }
+
+    /**
+     * @return number of ring entries, including released ones
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    private void expire(final long now) {
+        while (this.size > 0) {
+            final int position = (int) ((this.nextSequence - this.size) % this.ringKeys.length);
+            if (this.ringExpiries[position] - now > 0) {
+                return;
+            }
+            this.removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        final long sequence = this.nextSequence - this.size;
+        final long key = this.ringKeys[(int) (sequence % this.ringKeys.length)];
+        this.size--;
+        final int slot = this.find(key);
+        // A released key might have been claimed again with a newer entry
+        if (slot >= 0 && this.sequences[slot] == sequence) {
+            this.deleteSlot(slot);
+        }
+    }
+
+    private int find(final long key) {
+        int slot = (int) mix(key) & this.mask;
+        while (this.keys[slot] != EMPTY) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    /* Backward shift deletion, keeps linear probing intact without tombstones */
+    private void deleteSlot(final int start) {
+        int gap = start;
+        int slot = start;
+        while (true) {
+            slot = (slot + 1) & this.mask;
+            if (this.keys[slot] == EMPTY) {
+                break;
+            }
+            final int home = (int) mix(this.keys[slot]) & this.mask;
+            // Entry can move into the gap when its home isn't between gap and slot
+            if (((slot - home) & this.mask) >= ((slot - gap) & this.mask)) {
+                this.keys[gap] = this.keys[slot];
+                this.sequences[gap] = this.sequences[slot];
+                gap = slot;
+            }
+        }
+        this.keys[gap] = EMPTY;
+        this.sequences[gap] = 0L;
+    }
+}
@@ -0,0 +1,97 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Host, port, scheme and path of a remote API. Configured as URL, a bare host
+ * name means https on 443, so existing settings like OauthURL=bitbucket.org
+ * keep working
+ *
+ * @author swissel
+ */
+public final class Endpoint {
+
+    /**
+     * @param candidate configured value, can be null or blank
+     * @param defaultValue used when there is no candidate
+     * @return the endpoint
+     * @throws IllegalArgumentException when the value isn't a usable URL
+     */
+    public static Endpoint parse(final String candidate, final String defaultValue) {
+        final String value = (candidate == null || candidate.isBlank()) ? defaultValue
+                : candidate.trim();
+        final String url = value.contains("://") ? value : "https://" + value;
+        try {
+            final URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                throw new IllegalArgumentException("No host in " + value);
+            }
+            final boolean ssl = "https".equalsIgnoreCase(uri.getScheme());
+            final int port = uri.getPort() > 0 ? uri.getPort() : ssl ? 443 : 80;
+            final String path = (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/"
+                    : uri.getRawPath())
+                    + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+            return new Endpoint(uri.getHost(), port, ssl, path);
+        } catch (final URISyntaxException e) {
+            throw new IllegalArgumentException("Not an endpoint: " + value, e);
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean ssl;
+    private final String path;
+
+    private Endpoint(final String host, final int port, final boolean ssl, final String path) {
+        this.host = host;
+        this.port = port;
+        this.ssl = ssl;
+        this.path = path;
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public boolean isSsl() {
+        return this.ssl;
+    }
+
+    /**
+     * @return path and query of the URL, / when there was none
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    @Override
+    public String toString() {
+        return (this.ssl ? "https://" : "http://") + this.host + ":" + this.port;
+    }
+}
@@ -16,13 +16,8 @@
  */
 package net.wissel.blog;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.validator.routines.EmailValidator;
 import org.apache.commons.validator.routines.UrlValidator;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
 
 /**
  * HTML filter utility. Java 8 mods by Stephan
@@ -35,31 +30,23 @@ import org.apache.logging.log4j.Logger;
 
 public final class HTMLFilter {
 
-	private static final Character OPEN_TAG = Character.valueOf('<');
-	private static final Character CLOSE_TAG = Character.valueOf('>');
-	private static final Character AMPERSAND = Character.valueOf('&');
-	private static final Character SPACE = Character.valueOf(' ');
-	private static final Character SEMICOLON = Character.valueOf(';');
-	private static final Character CR = Character.valueOf('\r');
-	private static final Character LF = Character.valueOf('\n');
-	private static final Character QUOTE = Character.valueOf('"');
-
-	private static final Logger LOGGER = LogManager.getLogger(HTMLFilter.class);
-
-	private static final Map<Character, String> FILTER_CHARS = new HashMap<>();
-
-	static {
-		FILTER_CHARS.put(OPEN_TAG, "&lt;");
-		FILTER_CHARS.put(CLOSE_TAG, "&gt;");
-		FILTER_CHARS.put(AMPERSAND, "&amp;");
-		FILTER_CHARS.put(QUOTE, "&quot;");
-	}
+	private static final char OPEN_TAG = '<';
+	private static final char CLOSE_TAG = '>';
+	private static final char AMPERSAND = '&';
+	private static final char SPACE = ' ';
+	private static final char SEMICOLON = ';';
+	private static final char CR = '\r';
+	private static final char LF = '\n';
+	private static final char QUOTE = '"';
 
 	/**
 	 * Filter the specified message string for characters that are sensitive in
 	 * HTML. This avoids potential attacks caused by including JavaScript codes in
 	 * the request URL that is often reported in error messages.
 	 *
+	 * Single pass over the chars, unchanged input is returned as is. All filtered
+	 * characters are ASCII, so surrogate pairs pass through untouched.
+	 *
 	 * @param message The message string to be filtered
 	 */
 	public static String filter(String message) {
@@ -67,21 +54,25 @@ public final class HTMLFilter {
 		if (message == null) {
 			return (null);
 		}
-		final AtomicBoolean didFilter = new AtomicBoolean(false);
-		final StringBuilder result = new StringBuilder(message.length() + 50);
-
-		message.codePoints().mapToObj(char.class::cast).filter(c -> {
-			final boolean isFilterChar = FILTER_CHARS.containsKey(c);
-			if (isFilterChar) {
-				result.append(FILTER_CHARS.get(c));
-				didFilter.set(true);
-			}
-			return !isFilterChar;
-		}).forEach(result::append);
+		final int length = message.length();
+		int i = 0;
+		while (i < length && replacement(message.charAt(i)) == null) {
+			i++;
+		}
+		if (i == length) {
+			return message;
+		}
 
-		if (didFilter.get()) {
-			LOGGER.info("{}  -> {}", message, result);
+		final StringBuilder result = new StringBuilder(length + 50);
+		int copyFrom = 0;
+		for (; i < length; i++) {
+			final String replacement = replacement(message.charAt(i));
+			if (replacement != null) {
+				result.append(message, copyFrom, i).append(replacement);
+				copyFrom = i + 1;
+			}
 		}
+		result.append(message, copyFrom, length);
 
 		return (result.toString());
 
@@ -91,6 +82,9 @@ public final class HTMLFilter {
 	 * Gets a plain text equivalent of potentially HTML containing String Designed
 	 * for single line input fields, terminates on the first chr(10) or chr(13)
 	 *
+	 * Entities (up to ; or space) and tags are dropped. Single pass, unchanged
+	 * input is returned as is.
+	 *
 	 * @param message The message string to be stripped of HTML
 	 */
 	public static String strip(String message) {
@@ -99,35 +93,59 @@ public final class HTMLFilter {
 			return (null);
 		}
 
-		final AtomicBoolean ampersandMode = new AtomicBoolean(false);
-		final AtomicBoolean tagMode = new AtomicBoolean(false);
-		final AtomicBoolean done = new AtomicBoolean(false);
-		final StringBuilder result = new StringBuilder(message.length());
-
-		message.codePoints().mapToObj(char.class::cast).filter(c -> {
-			final boolean stopit = ampersandMode.get();
-			final boolean isAmpersandMode = stopit && !(c.equals(SEMICOLON) || c.equals(SPACE));
-			ampersandMode.set(isAmpersandMode);
-			return !stopit;
-		}).filter(c -> {
-			final boolean stopit = tagMode.get();
-			final boolean isTagMode = stopit && !c.equals(CLOSE_TAG);
-			tagMode.set(isTagMode);
-			return !stopit;
-		}).filter(c -> {
-			final boolean startAmpersand = c.equals(AMPERSAND);
-			ampersandMode.set(startAmpersand);
-			return !startAmpersand;
-		}).filter(c -> {
-			final boolean startTagMode = c.equals(OPEN_TAG);
-			tagMode.set(startTagMode);
-			return !startTagMode;
-		}).filter(c -> !done.getAndSet(c.equals(LF) || c.equals(CR))).forEach(result::append);
+		final int length = message.length();
+		int i = 0;
+		while (i < length && !isStripChar(message.charAt(i))) {
+			i++;
+		}
+		if (i == length) {
+			return message;
+		}
+
+		final StringBuilder result = new StringBuilder(length);
+		result.append(message, 0, i);
+		boolean ampersandMode = false;
+		boolean tagMode = false;
+		for (; i < length; i++) {
+			final char c = message.charAt(i);
+			if (ampersandMode) {
+				ampersandMode = !(c == SEMICOLON || c == SPACE);
+			} else if (tagMode) {
+				tagMode = c != CLOSE_TAG;
+			} else if (c == AMPERSAND) {
+				ampersandMode = true;
+			} else if (c == OPEN_TAG) {
+				tagMode = true;
+			} else if (c == LF || c == CR) {
+				break;
+			} else {
+				result.append(c);
+			}
+		}
 
 		return result.toString();
 
 	}
 
+	private static String replacement(final char c) {
+		switch (c) {
+			case OPEN_TAG:
+				return "&lt;";
+			case CLOSE_TAG:
+				return "&gt;";
+			case AMPERSAND:
+				return "&amp;";
+			case QUOTE:
+				return "&quot;";
+			default:
+				return null;
+		}
+	}
+
+	private static boolean isStripChar(final char c) {
+		return c == AMPERSAND || c == OPEN_TAG || c == CR || c == LF;
+	}
+
 	/**
 	 * Checks that a string looks like a valid eMail address
 	 *
@@ -0,0 +1,148 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+/**
+ * All outbound HTTP goes through here: one client per remote endpoint, created
+ * on first use and kept for the life of the Vert.x instance. Connections get
+ * reused across comments, and since TLS sessions are cached per client a
+ * reconnect resumes the session instead of doing a full handshake.
+ *
+ * TLS endpoints offer HTTP/2 through ALPN, one connection then multiplexes
+ * all requests. Servers without HTTP/2 get HTTP/1.1 with a pool of
+ * HttpPoolSize connections.
+ *
+ * @author swissel
+ */
+public final class HttpClients {
+
+    private static final String USER_AGENT = "CommentService 1.1";
+
+    private static final Logger LOGGER = LogManager.getLogger(HttpClients.class);
+    private static final Map<Vertx, HttpClients> MANAGERS = new ConcurrentHashMap<>();
+
+    /**
+     * One manager per Vert.x instance, shared by all verticles
+     *
+     * @param vertx the Vert.x instance
+     * @return the manager
+     */
+    public static HttpClients forVertx(final Vertx vertx) {
+        return MANAGERS.computeIfAbsent(vertx, HttpClients::new);
+    }
+
+    /**
+     * Connection counts of one endpoint's pool
+     */
+    public static final class PoolStats {
+        private final int maxPoolSize;
+        private final AtomicInteger open = new AtomicInteger();
+        private final AtomicLong opened = new AtomicLong();
+
+        PoolStats(final int maxPoolSize) {
+            this.maxPoolSize = maxPoolSize;
+        }
+
+        /**
+         * @return configured HTTP/1.1 pool size
+         */
+        public int getMaxPoolSize() {
+            return this.maxPoolSize;
+        }
+
+        /**
+         * @return connections currently open
+         */
+        public int getOpen() {
+            return this.open.get();
+        }
+
+        /**
+         * @return connections opened since start, each one a handshake
+         */
+        public long getOpened() {
+            return this.opened.get();
+        }
+    }
+
+    private final Vertx vertx;
+    private final Map<String, WebClient> clients = new ConcurrentHashMap<>();
+
+    private HttpClients(final Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    /**
+     * @param endpoint the remote API
+     * @return the shared client for it
+     */
+    public WebClient client(final Endpoint endpoint) {
+        return this.clients.computeIfAbsent(endpoint.toString(), key -> this.create(endpoint));
+    }
+
+    private WebClient create(final Endpoint endpoint) {
+        final Config config = Config.INSTANCE;
+        final int poolSize = config.getHttpPoolSize(endpoint.getHost());
+        final int idleTimeout = config.getHttpIdleTimeout();
+        final WebClientOptions options = new WebClientOptions()
+                .setUserAgent(USER_AGENT)
+                .setDefaultHost(endpoint.getHost())
+                .setDefaultPort(endpoint.getPort())
+                .setSsl(endpoint.isSsl())
+                .setKeepAlive(true)
+                .setKeepAliveTimeout(idleTimeout)
+                .setMaxPoolSize(poolSize)
+                .setConnectTimeout(config.getHttpConnectTimeout())
+                .setIdleTimeout(idleTimeout)
+                .setIdleTimeoutUnit(TimeUnit.SECONDS);
+        if (endpoint.isSsl()) {
+            // h2 gets offered first, ALPN falls back to HTTP/1.1 if the server declines
+            options.setProtocolVersion(HttpVersion.HTTP_2)
+                    .setUseAlpn(true)
+                    .setHttp2KeepAliveTimeout(idleTimeout);
+        }
+
+        final PoolStats stats = new PoolStats(poolSize);
+        final HttpClient httpClient = this.vertx.createHttpClient(options);
+        httpClient.connectionHandler(connection -> {
+            stats.open.incrementAndGet();
+            stats.opened.incrementAndGet();
+            connection.closeHandler(v -> stats.open.decrementAndGet());
+        });
+        Metrics.INSTANCE.httpClientPool(endpoint.getHost() + ":" + endpoint.getPort(), stats);
+        LOGGER.info("HTTP client for {}, pool size {}", endpoint, poolSize);
+        return WebClient.wrap(httpClient, options);
+    }
+}
@@ -0,0 +1,100 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+/**
+ * How many comments wait for storage and if storage takes any right now.
+ * {@link CommentStore} keeps it current, the web listeners read it to answer
+ * "accepted, delayed" or to turn comments away before reading them
+ *
+ * @author swissel
+ */
+public final class IngestBacklog {
+
+    private static IngestBacklog shared = null;
+
+    /**
+     * One backlog for the store and all web listener instances
+     *
+     * @return the shared instance
+     */
+    public static synchronized IngestBacklog shared() {
+        if (shared == null) {
+            shared = new IngestBacklog(Config.INSTANCE.getIngestDelayedDepth(),
+                    Config.INSTANCE.getIngestMaxBacklog());
+            Metrics.INSTANCE.ingestBacklog(shared);
+        }
+        return shared;
+    }
+
+    private final long delayedDepth;
+    private final long maxBacklog;
+    private volatile int memory = 0;
+    private volatile long disk = 0L;
+    private volatile boolean available = true;
+
+    private IngestBacklog(final long delayedDepth, final long maxBacklog) {
+        this.delayedDepth = delayedDepth;
+        this.maxBacklog = maxBacklog;
+    }
+
+    /**
+     * Called by the store whenever it looked at its queues
+     *
+     * @param memory comments waiting in memory
+     * @param disk comments spilled to disk
+     * @param available false while the storage circuit breaker is open
+     */
+    public void update(final int memory, final long disk, final boolean available) {
+        this.memory = memory;
+        this.disk = disk;
+        this.available = available;
+    }
+
+    /**
+     * @return comments waiting in memory
+     */
+    public int getMemory() {
+        return this.memory;
+    }
+
+    /**
+     * @return comments spilled to disk
+     */
+    public long getDisk() {
+        return this.disk;
+    }
+
+    /**
+     * @return true when a new comment won't be stored right away
+     */
+    public boolean isDelayed() {
+        return !this.available || this.memory + this.disk >= this.delayedDepth;
+    }
+
+    /**
+     * @return true when new comments should be turned away
+     */
+    public boolean isFull() {
+        return this.memory + this.disk >= this.maxBacklog;
+    }
+}
@@ -0,0 +1,182 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Overflow of the ingest queue on disk, one comment per line. Appends get
+ * buffered and written by {@link #flush()}, {@link #take(int)} reads them back
+ * in order. File access runs as ordered blocking code, so writes and reads
+ * never overtake each other. Once everything was read back the file gets
+ * truncated.
+ *
+ * The file only lives as long as the process: every spilled comment is in the
+ * journal as accepted, a restart replays it from there, so a leftover file
+ * gets deleted on start.
+ *
+ * Not thread safe, use it from the context of the verticle that created it.
+ *
+ * @author swissel
+ */
+public final class IngestSpill {
+
+    private static final Logger LOGGER = LogManager.getLogger(IngestSpill.class);
+
+    private final Vertx vertx;
+    private final Path file;
+    private List<String> unwritten = new ArrayList<>();
+    private long size = 0L;
+    private boolean reading = false;
+    /* Only touched by the blocking code */
+    private long readOffset = 0L;
+
+    /**
+     * @param vertx the Vert.x instance running the file access
+     * @param file the spill file, gets deleted when it exists
+     */
+    public IngestSpill(final Vertx vertx, final Path file) {
+        this.vertx = vertx;
+        this.file = file;
+        vertx.executeBlocking(promise -> {
+            try {
+                Files.deleteIfExists(file);
+                promise.complete();
+            } catch (final IOException e) {
+                promise.fail(e);
+            }
+        }, true).onFailure(err -> LOGGER.error("Could not reset spill file {}", file, err));
+    }
+
+    /**
+     * @return comments on disk or about to be written
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * @return true when nothing is spilled
+     */
+    public boolean isEmpty() {
+        return this.size == 0L;
+    }
+
+    /**
+     * @param comment comment to park on disk
+     */
+    public void append(final JsonObject comment) {
+        this.unwritten.add(comment.encode());
+        this.size++;
+    }
+
+    /**
+     * Writes buffered appends
+     */
+    public void flush() {
+        if (this.unwritten.isEmpty()) {
+            return;
+        }
+        final List<String> lines = this.unwritten;
+        this.unwritten = new ArrayList<>();
+        this.vertx.executeBlocking(promise -> {
+            try {
+                final Path parent = this.file.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                Files.write(this.file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+                promise.complete();
+            } catch (final IOException e) {
+                promise.fail(e);
+            }
+        }, true).onFailure(err -> {
+            // Still in the journal, they come back with the next restart
+            LOGGER.error("Lost {} spilled comments until restart", lines.size(), err);
+            this.size -= lines.size();
+        });
+    }
+
+    /**
+     * Reads the oldest spilled comments back, one read at a time
+     *
+     * @param max most comments to return
+     * @return the comments, empty while another read is running
+     */
+    public Future<List<JsonObject>> take(final int max) {
+        if (this.reading || this.isEmpty()) {
+            return Future.succeededFuture(List.of());
+        }
+        this.reading = true;
+        this.flush();
+        return this.vertx.<List<JsonObject>>executeBlocking(promise -> {
+            try {
+                promise.complete(this.read(max));
+            } catch (final IOException e) {
+                promise.fail(e);
+            }
+        }, true).onComplete(ar -> {
+            this.reading = false;
+            if (ar.succeeded()) {
+                this.size -= ar.result().size();
+            } else {
+                LOGGER.error("Could not read spill file {}", this.file, ar.cause());
+            }
+        });
+    }
+
+    private List<JsonObject> read(final int max) throws IOException {
+        final List<JsonObject> result = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            channel.position(this.readOffset);
+            final BufferedReader reader = new BufferedReader(
+                    Channels.newReader(channel, StandardCharsets.UTF_8));
+            String line;
+            while (result.size() < max && (line = reader.readLine()) != null) {
+                // Encoded JSON has no raw line breaks, so this is the exact length
+                this.readOffset += line.getBytes(StandardCharsets.UTF_8).length + 1;
+                result.add(new JsonObject(line));
+            }
+            if (this.readOffset >= channel.size()) {
+                channel.truncate(0L);
+                this.readOffset = 0L;
+            }
+        }
+        return result;
+    }
+}
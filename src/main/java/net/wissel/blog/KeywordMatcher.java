@@ -0,0 +1,180 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick matcher for many keywords at once, case insensitive. The
+ * automaton gets compiled into a dense transition table over the characters
+ * the keywords use, so scanning a text is one table lookup per character, no
+ * matter how many keywords there are. Keywords only count as whole words: a
+ * keyword starting or ending with a letter needs a non-letter or the end of
+ * the text there, so "specialist" doesn't match "cialis". Immutable, safe to
+ * share between threads
+ *
+ * @author swissel
+ */
+public final class KeywordMatcher {
+
+    /* Per match: length, weight, 1 when the keyword starts with a letter,
+       1 when it ends with one */
+    private static final int MATCH_FIELDS = 4;
+    private static final int[] NO_MATCHES = new int[0];
+
+    private final int alphabetSize;
+    /* char -> column in the table, 0 for characters no keyword uses */
+    private final Map<Character, Integer> alphabet;
+    private final int[] asciiColumns = new int[128];
+    /* state * alphabetSize + column -> next state */
+    private final int[] transitions;
+    /* Keywords ending in a state, suffixes included, MATCH_FIELDS ints each */
+    private final int[][] matches;
+
+    /**
+     * Compiles the automaton
+     *
+     * @param keywords keyword to weight, keywords get lower cased
+     */
+    public KeywordMatcher(final Map<String, Integer> keywords) {
+        this.alphabet = new HashMap<>();
+        keywords.keySet().forEach(keyword -> keyword.toLowerCase().chars()
+                .forEach(c -> this.alphabet.computeIfAbsent((char) c,
+                        ch -> this.alphabet.size() + 1)));
+        this.alphabetSize = this.alphabet.size() + 1;
+        this.alphabet.forEach((c, column) -> {
+            if (c < 128) {
+                this.asciiColumns[c] = column;
+            }
+        });
+
+        // Trie first, growing lists while we don't know the state count
+        final List<int[]> gotos = new ArrayList<>();
+        final List<int[]> output = new ArrayList<>();
+        gotos.add(new int[this.alphabetSize]);
+        output.add(NO_MATCHES);
+        keywords.forEach((keyword, weight) -> {
+            if (keyword.isEmpty()) {
+                return;
+            }
+            final String lower = keyword.toLowerCase();
+            int state = 0;
+            for (final char c : lower.toCharArray()) {
+                final int column = this.column(c);
+                if (gotos.get(state)[column] == 0) {
+                    gotos.get(state)[column] = gotos.size();
+                    gotos.add(new int[this.alphabetSize]);
+                    output.add(NO_MATCHES);
+                }
+                state = gotos.get(state)[column];
+            }
+            output.set(state, concat(output.get(state), new int[] {lower.length(), weight,
+                    Character.isLetter(lower.charAt(0)) ? 1 : 0,
+                    Character.isLetter(lower.charAt(lower.length() - 1)) ? 1 : 0}));
+        });
+
+        // Breadth first: fill the failure links into the table, turning it into a DFA
+        final int states = gotos.size();
+        this.transitions = new int[states * this.alphabetSize];
+        this.matches = new int[states][];
+        final int[] failure = new int[states];
+        final ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int column = 0; column < this.alphabetSize; column++) {
+            final int next = gotos.get(0)[column];
+            this.transitions[column] = next;
+            if (next != 0) {
+                queue.add(next);
+            }
+        }
+        this.matches[0] = output.get(0);
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            this.matches[state] = concat(output.get(state), this.matches[failure[state]]);
+            for (int column = 0; column < this.alphabetSize; column++) {
+                final int next = gotos.get(state)[column];
+                final int fallback = this.transitions[failure[state] * this.alphabetSize + column];
+                if (next != 0) {
+                    failure[next] = fallback;
+                    this.transitions[state * this.alphabetSize + column] = next;
+                    queue.add(next);
+                } else {
+                    this.transitions[state * this.alphabetSize + column] = fallback;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sums the weights of all whole word keyword occurrences, overlapping
+     * ones included
+     *
+     * @param text what to scan, can be null
+     * @return total weight, 0 when nothing matched
+     */
+    public int score(final CharSequence text) {
+        if (text == null) {
+            return 0;
+        }
+        int state = 0;
+        int total = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = this.transitions[state * this.alphabetSize
+                    + this.column(Character.toLowerCase(text.charAt(i)))];
+            final int[] found = this.matches[state];
+            for (int m = 0; m < found.length; m += MATCH_FIELDS) {
+                final int start = i + 1 - found[m];
+                if ((found[m + 2] == 0 || start == 0
+                        || !Character.isLetter(text.charAt(start - 1)))
+                        && (found[m + 3] == 0 || i + 1 == text.length()
+                                || !Character.isLetter(text.charAt(i + 1)))) {
+                    total += found[m + 1];
+                }
+            }
+        }
+        return total;
+    }
+
+    private static int[] concat(final int[] first, final int[] second) {
+        if (second.length == 0) {
+            return first;
+        }
+        if (first.length == 0) {
+            return second;
+        }
+        final int[] result = new int[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private int column(final char c) {
+        if (c < 128) {
+            return this.asciiColumns[c];
+        }
+        final Integer column = this.alphabet.get(c);
+        return column == null ? 0 : column;
+    }
+}
@@ -0,0 +1,276 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jgit.api.FetchCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.PushCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+/**
+ * Commits comments into a local bare git repository, no network involved.
+ * Branches pile up locally and get pushed to LocalGitRemote, when set, on a
+ * schedule: one push for everything committed since the last one. Pull
+ * requests are up to the remote, here they complete right away.
+ *
+ * New branches start from the main branch of the blog: with LocalGitRemote
+ * its HEAD gets fetched each push round, and nothing is committed before the
+ * first fetch worked, so pushed branches always share the blog's history.
+ * Without a remote LocalRepoPath has to be a clone of the blog repository.
+ *
+ * All git work runs on one worker thread, in order
+ *
+ * @author swissel
+ */
+public class LocalGitSink implements CommentSink {
+
+    private static final String MAIN_BRANCH = "master";
+    /* Where the HEAD of LocalGitRemote gets fetched to, never pushed */
+    private static final String REMOTE_MAIN = Constants.R_REMOTES + "blog/main";
+    private static final Logger LOGGER = LogManager.getLogger(LocalGitSink.class);
+
+    private final Repository repository;
+    private final WorkerExecutor worker;
+    private final AtomicBoolean unpushed = new AtomicBoolean(false);
+    private final String remote;
+    /* Only touched on the worker */
+    private boolean mainFetched = false;
+
+    LocalGitSink(final Vertx vertx) {
+        this.worker = vertx.createSharedWorkerExecutor("local-git-sink", 1);
+        final File gitDir = new File(Config.INSTANCE.getLocalRepoPath());
+        try {
+            this.repository = new FileRepositoryBuilder().setGitDir(gitDir).setBare().build();
+            if (!this.repository.getObjectDatabase().exists()) {
+                this.repository.create(true);
+                LOGGER.info("Created bare repository {}", gitDir.getAbsolutePath());
+            }
+        } catch (final IOException e) {
+            throw new IllegalStateException("No git repository at " + gitDir, e);
+        }
+        this.remote = Config.INSTANCE.getLocalGitRemote();
+        if (this.remote != null) {
+            vertx.setPeriodic(Config.INSTANCE.getLocalPushInterval() * 1000L,
+                    id -> this.worker.executeBlocking(promise -> {
+                        this.fetchMain();
+                        this.push();
+                        promise.complete();
+                    }, true));
+        } else if (this.mainTip() == null) {
+            LOGGER.warn("No {} branch in {}, comment branches won't share the blog's history."
+                    + " Make LocalRepoPath a clone of the blog repository", MAIN_BRANCH,
+                    gitDir.getAbsolutePath());
+        }
+    }
+
+    @Override
+    public Future<Void> commit(final String branch, final String author, final String message,
+            final Map<String, String> files) {
+        return this.worker.executeBlocking(promise -> {
+            try {
+                this.commitFiles(branch, author, message, files);
+                this.unpushed.set(true);
+                promise.complete();
+            } catch (final IOException | RuntimeException e) {
+                promise.fail(new SinkException(e.getMessage(), 0, -1L));
+            }
+        }, true);
+    }
+
+    @Override
+    public Future<Void> openPullRequest(final String branch, final String title) {
+        LOGGER.info("Branch {} ready for review: {}", branch, title);
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<Boolean> hasBranch(final String branch) {
+        return this.worker.executeBlocking(promise -> {
+            try {
+                promise.complete(this.repository.exactRef(Constants.R_HEADS + branch) != null);
+            } catch (final IOException e) {
+                promise.fail(new SinkException(e.getMessage(), 0, -1L));
+            }
+        }, true);
+    }
+
+    @Override
+    public Future<Boolean> hasPullRequest(final String branch) {
+        // Nothing gets opened here, so asking again is free
+        return Future.succeededFuture(false);
+    }
+
+    private void commitFiles(final String branch, final String author, final String message,
+            final Map<String, String> files) throws IOException {
+        final String ref = Constants.R_HEADS + branch;
+        final ObjectId branchTip = this.repository.resolve(ref);
+        if (branchTip == null && this.remote != null && !this.mainFetched
+                && !this.fetchMain()) {
+            throw new IOException("Main branch of the remote not fetched yet, no branch " + branch);
+        }
+        final ObjectId parent = branchTip != null ? branchTip : this.mainTip();
+
+        try (ObjectInserter inserter = this.repository.newObjectInserter();
+                ObjectReader reader = this.repository.newObjectReader();
+                RevWalk walk = new RevWalk(reader)) {
+            final DirCache index;
+            if (parent == null) {
+                index = DirCache.newInCore();
+            } else {
+                final RevCommit parentCommit = walk.parseCommit(parent);
+                index = DirCache.read(reader, parentCommit.getTree());
+            }
+            final DirCacheEditor editor = index.editor();
+            for (final Map.Entry<String, String> file : files.entrySet()) {
+                final ObjectId blob = inserter.insert(Constants.OBJ_BLOB,
+                        file.getValue().getBytes(StandardCharsets.UTF_8));
+                final String path = file.getKey().startsWith("/") ? file.getKey().substring(1)
+                        : file.getKey();
+                editor.add(new DirCacheEditor.PathEdit(path) {
+                    @Override
+                    public void apply(final DirCacheEntry entry) {
+                        entry.setFileMode(FileMode.REGULAR_FILE);
+                        entry.setObjectId(blob);
+                    }
+                });
+            }
+            editor.finish();
+
+            final PersonIdent ident = toIdent(author);
+            final CommitBuilder commit = new CommitBuilder();
+            commit.setTreeId(index.writeTree(inserter));
+            if (parent != null) {
+                commit.setParentId(parent);
+            }
+            commit.setAuthor(ident);
+            commit.setCommitter(ident);
+            commit.setMessage(message);
+            final ObjectId commitId = inserter.insert(commit);
+            inserter.flush();
+
+            final RefUpdate update = this.repository.updateRef(ref);
+            update.setNewObjectId(commitId);
+            update.setExpectedOldObjectId(branchTip == null ? ObjectId.zeroId() : branchTip);
+            update.setRefLogMessage("comment: " + message, false);
+            final RefUpdate.Result result = update.update(walk);
+            if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD) {
+                throw new IOException("Branch " + branch + " not updated: " + result);
+            }
+        }
+    }
+
+    /* Fetched main of the remote, or the local main branch without a remote */
+    private ObjectId mainTip() {
+        try {
+            return this.repository.resolve(
+                    this.remote != null ? REMOTE_MAIN : Constants.R_HEADS + MAIN_BRANCH);
+        } catch (final IOException e) {
+            LOGGER.error("Main branch not readable", e);
+            return null;
+        }
+    }
+
+    /**
+     * Brings the HEAD of the remote into REMOTE_MAIN
+     *
+     * @return true when it is there, a stale copy from an earlier round
+     *         counts
+     */
+    private boolean fetchMain() {
+        try (Git git = Git.wrap(this.repository)) {
+            final FetchCommand fetch = git.fetch().setRemote(this.remote)
+                    .setRefSpecs(new RefSpec("+" + Constants.HEAD + ":" + REMOTE_MAIN));
+            fetch.setCredentialsProvider(credentials(this.remote));
+            fetch.call();
+            this.mainFetched = this.repository.resolve(REMOTE_MAIN) != null;
+        } catch (final GitAPIException | IOException | URISyntaxException
+                | RuntimeException e) {
+            LOGGER.error("Fetching the main branch failed", e);
+        }
+        return this.mainFetched;
+    }
+
+    private void push() {
+        if (!this.unpushed.getAndSet(false)) {
+            return;
+        }
+        try (Git git = Git.wrap(this.repository)) {
+            final PushCommand push = git.push().setRemote(this.remote).setPushAll();
+            final URIish uri = new URIish(this.remote);
+            push.setCredentialsProvider(credentials(this.remote));
+            push.call();
+            LOGGER.info("Pushed comment branches to {}", uri.setPass(null));
+        } catch (final GitAPIException | URISyntaxException | RuntimeException e) {
+            // Next round tries again
+            this.unpushed.set(true);
+            LOGGER.error("Push of comment branches failed", e);
+        }
+    }
+
+    private static CredentialsProvider credentials(final String remote)
+            throws URISyntaxException {
+        final URIish uri = new URIish(remote);
+        return uri.getUser() == null ? null
+                : new UsernamePasswordCredentialsProvider(uri.getUser(), uri.getPass());
+    }
+
+    /* "Name <mail>" or just a mail address */
+    private static PersonIdent toIdent(final String author) {
+        final int open = author == null ? -1 : author.indexOf('<');
+        if (open >= 0 && author.indexOf('>', open) > open) {
+            return new PersonIdent(author.substring(0, open).replace("\"", "").trim(),
+                    author.substring(open + 1, author.indexOf('>', open)).trim());
+        }
+        final String who = author == null ? "anonymous" : author.trim();
+        return new PersonIdent(who, who);
+    }
+}
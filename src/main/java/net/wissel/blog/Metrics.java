@@ -0,0 +1,478 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryContext;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Prometheus metrics for the pipeline. All meters get registered upfront, the
+ * hot path only looks them up in fixed arrays and maps, so measuring doesn't
+ * allocate tag collections per request
+ *
+ * @author swissel
+ */
+public final class Metrics {
+
+    public static final String ROUTE_COMMENT = "comment_post";
+    public static final String ROUTE_CORS = "cors_preflight";
+    public static final String ROUTE_COMMENT_GET = "comment_get";
+    public static final String ROUTE_WEBFINGER = "webfinger";
+    public static final String ROUTE_STATIC = "static";
+    public static final String ROUTE_METRICS = "metrics";
+
+    public static final String STAGE_COMMIT = "commit";
+    public static final String STAGE_PULLREQUEST = "pullrequest";
+    public static final String STAGE_RECONCILE = "reconcile";
+
+    public static final String RECONCILE_FOUND = "found";
+    public static final String RECONCILE_MISSING = "missing";
+
+    public static final String REJECT_BODY_SIZE = "body_size";
+    public static final String REJECT_RATE = "rate";
+    public static final String REJECT_IN_FLIGHT = "in_flight";
+    public static final String REJECT_BACKLOG = "backlog";
+
+    public static final String DUPLICATE_IDEMPOTENCY_KEY = "idempotency_key";
+    public static final String DUPLICATE_CONTENT = "content";
+
+    public static final String SPAM_ACCEPT = "accept";
+    public static final String SPAM_QUARANTINE = "quarantine";
+    public static final String SPAM_REJECT = "reject";
+
+    public static final String NOTIFY_SINGLE = "single";
+    public static final String NOTIFY_DIGEST = "digest";
+    public static final String NOTIFY_THROTTLED = "throttled";
+    public static final String NOTIFY_FAILED = "failed";
+
+    private static final String[] ROUTES = {ROUTE_COMMENT, ROUTE_CORS, ROUTE_COMMENT_GET,
+            ROUTE_WEBFINGER, ROUTE_STATIC, ROUTE_METRICS};
+    private static final String[] STAGES = {STAGE_COMMIT, STAGE_PULLREQUEST, STAGE_RECONCILE};
+    private static final String[] RETRIED_STAGES = {STAGE_COMMIT, STAGE_PULLREQUEST};
+    private static final String[] RECONCILE_OUTCOMES = {RECONCILE_FOUND, RECONCILE_MISSING};
+    private static final String[] REJECT_REASONS = {REJECT_BODY_SIZE, REJECT_RATE,
+            REJECT_IN_FLIGHT, REJECT_BACKLOG};
+    private static final String[] DUPLICATE_KEYS = {DUPLICATE_IDEMPOTENCY_KEY,
+            DUPLICATE_CONTENT};
+    private static final String[] SPAM_OUTCOMES = {SPAM_ACCEPT, SPAM_QUARANTINE, SPAM_REJECT};
+    private static final String[] NOTIFY_OUTCOMES = {NOTIFY_SINGLE, NOTIFY_DIGEST,
+            NOTIFY_THROTTLED, NOTIFY_FAILED};
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+    /* Status codes Bitbucket failures get counted by, 0 is a network error */
+    private static final int[] FAILURE_CODES = {0, 400, 401, 403, 404, 409, 422, 429, 500, 502,
+            503, 504};
+    private static final String[] QUEUES = {Parameters.MESSAGE_NEW_COMMENT,
+            Parameters.MESSAGE_PULLREQUEST, Parameters.MESSAGE_PUSH_COMMENT};
+    private static final Duration[] LATENCY_BUCKETS = {Duration.ofMillis(5),
+            Duration.ofMillis(10), Duration.ofMillis(25), Duration.ofMillis(50),
+            Duration.ofMillis(100), Duration.ofMillis(250), Duration.ofMillis(500),
+            Duration.ofSeconds(1), Duration.ofMillis(2500), Duration.ofSeconds(5),
+            Duration.ofSeconds(10)};
+
+    /* Declared after the arrays above, the constructor needs them */
+    public static final Metrics INSTANCE = new Metrics();
+
+    private static final class QueueDepth {
+        final AtomicInteger depth = new AtomicInteger();
+        volatile boolean consumed = false;
+    }
+
+    private final PrometheusMeterRegistry registry =
+            new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    /* route -> timers by status class */
+    private final Map<String, Timer[]> routeTimers = new HashMap<>();
+    /* stage -> success, failure */
+    private final Map<String, Timer[]> bitbucketTimers = new HashMap<>();
+    /* stage -> counters in order of FAILURE_CODES plus one for everything else */
+    private final Map<String, Counter[]> bitbucketFailures = new HashMap<>();
+    private final Map<String, Counter> retryExhausted = new HashMap<>();
+    /* stage -> found, missing */
+    private final Map<String, Counter[]> reconciled = new HashMap<>();
+    private final Map<String, QueueDepth> queueDepths = new HashMap<>();
+    private final Map<String, Counter> admissionRejects = new HashMap<>();
+    private final Map<String, Counter> duplicates = new HashMap<>();
+    private final Map<String, Counter> spamOutcomes = new HashMap<>();
+    /* channel -> counters in order of NOTIFY_OUTCOMES, plus covered events */
+    private final Map<String, Counter[]> notifications = new ConcurrentHashMap<>();
+    private final Timer oauthSuccess;
+    private final Timer oauthFailure;
+    private boolean eventBusTracked = false;
+
+    private Metrics() {
+        for (final String route : ROUTES) {
+            final Timer[] timers = new Timer[STATUS_CLASSES.length];
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                timers[i] = this.latencyTimer("comment_http_requests", "HTTP requests by route")
+                        .tag("route", route).tag("status", STATUS_CLASSES[i])
+                        .register(this.registry);
+            }
+            this.routeTimers.put(route, timers);
+        }
+
+        for (final String stage : STAGES) {
+            this.bitbucketTimers.put(stage, new Timer[] {
+                    this.latencyTimer("comment_bitbucket_requests", "Bitbucket API calls")
+                            .tag("stage", stage).tag("outcome", "success")
+                            .register(this.registry),
+                    this.latencyTimer("comment_bitbucket_requests", "Bitbucket API calls")
+                            .tag("stage", stage).tag("outcome", "failure")
+                            .register(this.registry)});
+            final Counter[] failures = new Counter[FAILURE_CODES.length + 1];
+            for (int i = 0; i <= FAILURE_CODES.length; i++) {
+                final String code = i == FAILURE_CODES.length ? "other"
+                        : FAILURE_CODES[i] == 0 ? "io" : String.valueOf(FAILURE_CODES[i]);
+                failures[i] = Counter.builder("comment_bitbucket_failures")
+                        .description("Failed Bitbucket API calls by status code")
+                        .tag("stage", stage).tag("code", code)
+                        .register(this.registry);
+            }
+            this.bitbucketFailures.put(stage, failures);
+        }
+
+        for (final String stage : RETRIED_STAGES) {
+            this.retryExhausted.put(stage, Counter.builder("comment_retry_exhausted")
+                    .description("Messages given up after the last retry")
+                    .tag("stage", stage)
+                    .register(this.registry));
+            final Counter[] outcomes = new Counter[RECONCILE_OUTCOMES.length];
+            for (int i = 0; i < RECONCILE_OUTCOMES.length; i++) {
+                outcomes[i] = Counter.builder("comment_reconciled")
+                        .description("Retries checked against the repository first")
+                        .tag("stage", stage).tag("outcome", RECONCILE_OUTCOMES[i])
+                        .register(this.registry);
+            }
+            this.reconciled.put(stage, outcomes);
+        }
+
+        for (final String address : QUEUES) {
+            final QueueDepth queue = new QueueDepth();
+            Gauge.builder("comment_eventbus_pending", queue.depth, AtomicInteger::get)
+                    .description("Messages sent but not yet picked up by the consumer")
+                    .tag("address", address)
+                    .register(this.registry);
+            this.queueDepths.put(address, queue);
+        }
+
+        for (final String reason : REJECT_REASONS) {
+            this.admissionRejects.put(reason, Counter.builder("comment_admission_rejected")
+                    .description("Comment requests turned away before reading the body")
+                    .tag("reason", reason)
+                    .register(this.registry));
+        }
+
+        for (final String key : DUPLICATE_KEYS) {
+            this.duplicates.put(key, Counter.builder("comment_duplicates")
+                    .description("Resubmitted comments not sent down the pipeline again")
+                    .tag("key", key)
+                    .register(this.registry));
+        }
+
+        for (final String outcome : SPAM_OUTCOMES) {
+            this.spamOutcomes.put(outcome, Counter.builder("comment_spam_verdicts")
+                    .description("Comments by spam filter outcome")
+                    .tag("outcome", outcome)
+                    .register(this.registry));
+        }
+
+        this.oauthSuccess = this.latencyTimer("comment_oauth_fetch", "OAuth token requests")
+                .tag("outcome", "success").register(this.registry);
+        this.oauthFailure = this.latencyTimer("comment_oauth_fetch", "OAuth token requests")
+                .tag("outcome", "failure").register(this.registry);
+    }
+
+    /**
+     * Handler to put in front of a route, times the request until the response
+     * ended
+     *
+     * @param route one of the ROUTE_ constants
+     * @return the handler
+     */
+    public Handler<RoutingContext> routeTimer(final String route) {
+        final Timer[] timers = this.routeTimers.get(route);
+        return ctx -> {
+            final long start = System.nanoTime();
+            ctx.addEndHandler(v -> {
+                final int statusClass = ctx.response().getStatusCode() / 100 - 1;
+                timers[Math.max(0, Math.min(timers.length - 1, statusClass))]
+                        .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            });
+            ctx.next();
+        };
+    }
+
+    /**
+     * Counts pending messages on the tracked addresses, once per Vert.x
+     *
+     * @param vertx the Vert.x instance
+     */
+    public synchronized void trackEventBus(final Vertx vertx) {
+        if (this.eventBusTracked) {
+            return;
+        }
+        this.eventBusTracked = true;
+        final EventBus eb = vertx.eventBus();
+        eb.addOutboundInterceptor(dc -> this.countQueue(dc, 1));
+        eb.addInboundInterceptor(dc -> this.countQueue(dc, -1));
+    }
+
+    /**
+     * Tells the metrics that a consumer listens on the address, only then
+     * pending messages get counted
+     *
+     * @param address event bus address
+     */
+    public void consuming(final String address) {
+        final QueueDepth queue = this.queueDepths.get(address);
+        if (queue != null) {
+            queue.consumed = true;
+        }
+    }
+
+    /**
+     * @param nanos duration of the token request
+     * @param success did we get a token
+     */
+    public void oauthFetch(final long nanos, final boolean success) {
+        (success ? this.oauthSuccess : this.oauthFailure).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records a Bitbucket call
+     *
+     * @param stage STAGE_COMMIT or STAGE_PULLREQUEST
+     * @param nanos duration of the call
+     * @param statusCode HTTP status, 0 when the call failed on the network
+     */
+    public void bitbucketCall(final String stage, final long nanos, final int statusCode) {
+        final boolean success = statusCode >= 200 && statusCode < 300;
+        this.bitbucketTimers.get(stage)[success ? 0 : 1].record(nanos, TimeUnit.NANOSECONDS);
+        if (!success) {
+            final Counter[] failures = this.bitbucketFailures.get(stage);
+            int index = FAILURE_CODES.length;
+            for (int i = 0; i < FAILURE_CODES.length; i++) {
+                if (FAILURE_CODES[i] == statusCode) {
+                    index = i;
+                    break;
+                }
+            }
+            failures[index].increment();
+        }
+    }
+
+    /**
+     * Exposes the size of a retry queue
+     *
+     * @param stage STAGE_COMMIT or STAGE_PULLREQUEST
+     * @param retries the scheduler holding the retries
+     */
+    public void retryQueue(final String stage, final RetryScheduler<?> retries) {
+        Gauge.builder("comment_retry_pending", retries, RetryScheduler::size)
+                .description("Messages waiting for their next attempt")
+                .tag("stage", stage)
+                .register(this.registry);
+    }
+
+    /**
+     * Exposes the connection pool of an outbound HTTP client
+     *
+     * @param host remote host and port
+     * @param stats connection counts of the pool
+     */
+    public void httpClientPool(final String host, final HttpClients.PoolStats stats) {
+        Gauge.builder("comment_http_client_connections", stats, HttpClients.PoolStats::getOpen)
+                .description("Open outbound connections")
+                .tag("host", host)
+                .register(this.registry);
+        Gauge.builder("comment_http_client_pool_max", stats,
+                HttpClients.PoolStats::getMaxPoolSize)
+                .description("Outbound HTTP/1.1 pool size")
+                .tag("host", host)
+                .register(this.registry);
+        FunctionCounter.builder("comment_http_client_connects", stats,
+                HttpClients.PoolStats::getOpened)
+                .description("Outbound connections opened, each one a handshake")
+                .tag("host", host)
+                .register(this.registry);
+    }
+
+    /**
+     * Registers the counters of a notification channel and exposes its queue
+     *
+     * @param channel name of the notifier
+     * @param notifications the channel
+     */
+    public void notificationChannel(final String channel,
+            final NotificationChannel notifications) {
+        this.notifications.computeIfAbsent(channel, c -> {
+            final Counter[] counters = new Counter[NOTIFY_OUTCOMES.length + 1];
+            for (int i = 0; i < NOTIFY_OUTCOMES.length; i++) {
+                counters[i] = Counter.builder("comment_notifications")
+                        .description("Notifications sent or held back, by outcome")
+                        .tag("channel", channel).tag("outcome", NOTIFY_OUTCOMES[i])
+                        .register(this.registry);
+            }
+            counters[NOTIFY_OUTCOMES.length] = Counter.builder("comment_notification_events")
+                    .description("Comments and failures covered by sent notifications")
+                    .tag("channel", channel)
+                    .register(this.registry);
+            return counters;
+        });
+        Gauge.builder("comment_notification_queue", notifications,
+                NotificationChannel::getQueued)
+                .description("Digests waiting for delivery")
+                .tag("channel", channel)
+                .register(this.registry);
+        Gauge.builder("comment_notification_in_flight", notifications,
+                NotificationChannel::getInFlight)
+                .description("Notifications being delivered")
+                .tag("channel", channel)
+                .register(this.registry);
+    }
+
+    /**
+     * Exposes the state of a circuit breaker: 0 closed, 1 open, 2 half open
+     *
+     * @param name name of the breaker
+     * @param breaker the breaker
+     */
+    public void circuitBreaker(final String name, final CircuitBreaker breaker) {
+        Gauge.builder("comment_circuit_state", breaker, b -> b.getState().ordinal())
+                .description("Circuit breaker state, 0 closed, 1 open, 2 half open")
+                .tag("name", name)
+                .register(this.registry);
+    }
+
+    /**
+     * Exposes the comments waiting for storage
+     *
+     * @param backlog the shared backlog
+     */
+    public void ingestBacklog(final IngestBacklog backlog) {
+        Gauge.builder("comment_ingest_backlog", backlog, IngestBacklog::getMemory)
+                .description("Comments waiting for storage")
+                .tag("where", "memory")
+                .register(this.registry);
+        Gauge.builder("comment_ingest_backlog", backlog, IngestBacklog::getDisk)
+                .description("Comments waiting for storage")
+                .tag("where", "disk")
+                .register(this.registry);
+    }
+
+    /**
+     * @param stage STAGE_COMMIT or STAGE_PULLREQUEST
+     */
+    public void retryExhausted(final String stage) {
+        this.retryExhausted.get(stage).increment();
+    }
+
+    /**
+     * @param stage STAGE_COMMIT or STAGE_PULLREQUEST
+     * @param found did the earlier attempt get through
+     */
+    public void reconciled(final String stage, final boolean found) {
+        this.reconciled.get(stage)[found ? 0 : 1].increment();
+    }
+
+    /**
+     * @param reason one of the REJECT_ constants
+     */
+    public void admissionRejected(final String reason) {
+        this.admissionRejects.get(reason).increment();
+    }
+
+    /**
+     * @param key DUPLICATE_IDEMPOTENCY_KEY or DUPLICATE_CONTENT
+     */
+    public void duplicate(final String key) {
+        this.duplicates.get(key).increment();
+    }
+
+    /**
+     * @param outcome one of the SPAM_ constants
+     */
+    public void spamOutcome(final String outcome) {
+        this.spamOutcomes.get(outcome).increment();
+    }
+
+    /**
+     * @param channel name of the notifier
+     * @param events comments and failures the notification covered
+     */
+    public void notificationSent(final String channel, final int events) {
+        final Counter[] counters = this.notifications.get(channel);
+        if (counters != null) {
+            counters[events == 1 ? 0 : 1].increment();
+            counters[NOTIFY_OUTCOMES.length].increment(events);
+        }
+    }
+
+    /**
+     * @param channel name of the notifier
+     * @param throttled true for a 429, the events wait for the next digest
+     */
+    public void notificationFailed(final String channel, final boolean throttled) {
+        final Counter[] counters = this.notifications.get(channel);
+        if (counters != null) {
+            counters[throttled ? 2 : 3].increment();
+        }
+    }
+
+    /**
+     * @return all metrics in Prometheus text format
+     */
+    public String scrape() {
+        return this.registry.scrape();
+    }
+
+    private Timer.Builder latencyTimer(final String name, final String description) {
+        return Timer.builder(name)
+                .description(description)
+                .serviceLevelObjectives(LATENCY_BUCKETS)
+                .minimumExpectedValue(LATENCY_BUCKETS[0])
+                .maximumExpectedValue(LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1]);
+    }
+
+    private void countQueue(final DeliveryContext<Object> dc, final int delta) {
+        final QueueDepth queue = this.queueDepths.get(dc.message().address());
+        if (queue != null && queue.consumed) {
+            if (queue.depth.addAndGet(delta) < 0) {
+                queue.depth.set(0);
+            }
+        }
+        dc.next();
+    }
+}
@@ -0,0 +1,146 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.ArrayDeque;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+
+/**
+ * Delivers notifications to one {@link Notifier}, independent of all other
+ * channels: its own {@link NotificationDigest} with rate limit, a bounded queue
+ * of digests waiting for delivery, a limit of sends in flight and a timeout
+ * per send. A send that times out counts as failed, but keeps its slot until
+ * the notifier gives up too. A slow or broken channel fills its own queue;
+ * once full, the digest keeps collecting events and tries again a window
+ * later.
+ *
+ * Not thread safe, use it from the context of the verticle that created it.
+ *
+ * @author swissel
+ */
+public class NotificationChannel {
+
+    private static final Logger LOGGER = LogManager.getLogger(NotificationChannel.class);
+
+    private static final class Delivery {
+        final NotificationDigest.Digest digest;
+        final Promise<Void> done = Promise.promise();
+
+        Delivery(final NotificationDigest.Digest digest) {
+            this.digest = digest;
+        }
+    }
+
+    private final Vertx vertx;
+    private final Notifier notifier;
+    private final NotificationDigest digest;
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    private final int queueSize;
+    private final int concurrency;
+    private final long timeout;
+    private int inFlight = 0;
+
+    /**
+     * @param vertx Vert.x instance running timers
+     * @param notifier the channel
+     * @param queueSize digests waiting for delivery at most
+     * @param concurrency sends in flight at most
+     * @param timeout ms after which a send counts as failed
+     */
+    public NotificationChannel(final Vertx vertx, final Notifier notifier, final int queueSize,
+            final int concurrency, final long timeout) {
+        this.vertx = vertx;
+        this.notifier = notifier;
+        this.queueSize = Math.max(1, queueSize);
+        this.concurrency = Math.max(1, concurrency);
+        this.timeout = Math.max(1L, timeout);
+        this.digest = new NotificationDigest(vertx, notifier.getName(),
+                Config.INSTANCE.getPushDigestWindow() * 1000L,
+                Config.INSTANCE.getPushRatePerHour(), Config.INSTANCE.getPushBurst(),
+                this::enqueue);
+        Metrics.INSTANCE.notificationChannel(notifier.getName(), this);
+    }
+
+    /**
+     * @param event comment or failure to notify about
+     */
+    public void add(final CommentEnvelope event) {
+        this.digest.add(event);
+    }
+
+    /**
+     * @return digests waiting for delivery
+     */
+    public int getQueued() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return sends in flight
+     */
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    private Future<Void> enqueue(final NotificationDigest.Digest next) {
+        if (this.queue.size() >= this.queueSize) {
+            return Future.failedFuture(
+                    new SinkException(this.notifier.getName() + " queue full", 0, -1L));
+        }
+        final Delivery delivery = new Delivery(next);
+        this.queue.add(delivery);
+        this.drain();
+        return delivery.done.future();
+    }
+
+    private void drain() {
+        while (this.inFlight < this.concurrency && !this.queue.isEmpty()) {
+            final Delivery delivery = this.queue.poll();
+            this.inFlight++;
+            // The digest hears about a timeout right away, the slot stays taken
+            // until the send is really over, so stalled sends can't pile up
+            final long timer = this.vertx.setTimer(this.timeout, id -> delivery.done.tryFail(
+                    new SinkException(this.notifier.getName() + " timed out", 0, -1L)));
+            Future<Void> sent;
+            try {
+                sent = this.notifier.send(delivery.digest, this.timeout);
+            } catch (final RuntimeException e) {
+                LOGGER.error("Notifier {} failed", this.notifier.getName(), e);
+                sent = Future.failedFuture(new SinkException(e.getMessage(), 0, -1L));
+            }
+            sent.onComplete(res -> {
+                this.vertx.cancelTimer(timer);
+                this.inFlight--;
+                if (res.succeeded()) {
+                    delivery.done.tryComplete();
+                } else {
+                    delivery.done.tryFail(res.cause());
+                }
+                this.drain();
+            });
+        }
+    }
+}
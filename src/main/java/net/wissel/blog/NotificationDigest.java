@@ -0,0 +1,283 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+/**
+ * Coalesces notifications. The first event after a quiet spell goes out right
+ * away and opens a window. Events arriving while the window is open get folded
+ * into one digest ("12 new comments, 3 failures"), sent when the window ends
+ * and opening the next one. A window without events ends the digesting.
+ *
+ * Every send takes a token from a bucket, and a 429 pauses sending for as long
+ * as the remote asks. Events held back stay in the digest, so a spam wave or an
+ * outage costs a handful of notifications, not one per comment.
+ *
+ * Not thread safe, use it from the context of the verticle that created it.
+ *
+ * @author swissel
+ */
+public class NotificationDigest {
+
+    /* Pause after a 429 that didn't say for how long */
+    private static final long THROTTLE_PAUSE = TimeUnit.HOURS.toMillis(1);
+
+    private static final Logger LOGGER = LogManager.getLogger(NotificationDigest.class);
+
+    /**
+     * What one notification reports: a single event or a digest of many
+     */
+    public static final class Digest {
+        /* Names listed in a digest, the rest are "others" */
+        private static final int MAX_NAMES = 5;
+        private static final int MAX_MESSAGE = 100;
+        private static final Pattern CONTROL = Pattern.compile("\\p{Cntrl}");
+
+        private final Set<String> commentors = new LinkedHashSet<>();
+        private CommentEnvelope first = null;
+        private String lastFailure = null;
+        private boolean moreCommentors = false;
+        private int events = 0;
+        private int comments = 0;
+        private int failures = 0;
+
+        void add(final CommentEnvelope event) {
+            if (this.first == null) {
+                this.first = event;
+            }
+            this.events++;
+            if (event.getFailure() == null) {
+                this.comments += event.getComments().size();
+            } else {
+                this.failures += event.getComments().size();
+                this.lastFailure = event.getFailure();
+            }
+            event.getComments().forEach(
+                    comment -> this.addCommentor(comment.getString("Commentor", "Anonymous")));
+        }
+
+        /* Folds a later digest into this one */
+        void addAll(final Digest later) {
+            if (this.first == null) {
+                this.first = later.first;
+            }
+            this.events += later.events;
+            this.comments += later.comments;
+            this.failures += later.failures;
+            if (later.lastFailure != null) {
+                this.lastFailure = later.lastFailure;
+            }
+            later.commentors.forEach(this::addCommentor);
+            this.moreCommentors |= later.moreCommentors;
+        }
+
+        /**
+         * @return number of events in the digest
+         */
+        public int getEvents() {
+            return this.events;
+        }
+
+        /**
+         * @return number of comments notified as new
+         */
+        public int getCommentCount() {
+            return this.comments;
+        }
+
+        /**
+         * @return number of comments given up on
+         */
+        public int getFailureCount() {
+            return this.failures;
+        }
+
+        /**
+         * @return the first event, the whole story when there is only one
+         */
+        public CommentEnvelope getFirst() {
+            return this.first;
+        }
+
+        /**
+         * @return "Comment from ..." for a single event, the counts otherwise.
+         *         One line, control characters in names become blanks so it
+         *         can go into a mail subject
+         */
+        public String getTitle() {
+            if (this.events == 1) {
+                return "Comment from "
+                        + CONTROL.matcher(this.first.getCommentors()).replaceAll(" ");
+            }
+            final StringBuilder title = new StringBuilder();
+            if (this.comments > 0) {
+                title.append(this.comments).append(this.comments == 1 ? " new comment"
+                        : " new comments");
+            }
+            if (this.failures > 0) {
+                title.append(title.length() > 0 ? ", " : "").append(this.failures)
+                        .append(this.failures == 1 ? " failure" : " failures");
+            }
+            return title.toString();
+        }
+
+        /**
+         * @return comment or failure of a single event, commentors and the
+         *         last failure of a digest, at most 100 characters each
+         */
+        public String getMessage() {
+            if (this.events == 1) {
+                return truncate(this.first.getFailure() != null ? this.first.getFailure()
+                        : this.first.getComment().getString("Body", ""));
+            }
+            final String from = "From " + String.join(", ", this.commentors)
+                    + (this.moreCommentors ? " and others" : "");
+            return this.lastFailure == null ? truncate(from)
+                    : truncate(from) + "\nLast failure: " + truncate(this.lastFailure);
+        }
+
+        private void addCommentor(final String commentor) {
+            if (this.commentors.size() < MAX_NAMES) {
+                this.commentors.add(commentor);
+            } else if (!this.commentors.contains(commentor)) {
+                this.moreCommentors = true;
+            }
+        }
+
+        private static String truncate(final String text) {
+            return text.substring(0, Math.min(MAX_MESSAGE, text.length()));
+        }
+    }
+
+    private final Vertx vertx;
+    private final String name;
+    private final long window;
+    private final double tokensPerNano;
+    private final double burst;
+    private final TokenBucket bucket;
+    private final Function<Digest, Future<Void>> sender;
+    private Digest pending = null;
+    private boolean windowOpen = false;
+    private long pausedUntil = 0L;
+
+    /**
+     * @param vertx Vert.x instance running the window timers
+     * @param name channel name for logs and metrics
+     * @param window digest window in ms
+     * @param perHour notifications per hour once the burst is used up
+     * @param burst notifications that may go out back to back
+     * @param sender delivers a digest, fails with a {@link SinkException}
+     *        carrying status and Retry-After when it can
+     */
+    public NotificationDigest(final Vertx vertx, final String name, final long window,
+            final long perHour, final int burst, final Function<Digest, Future<Void>> sender) {
+        this.vertx = vertx;
+        this.name = name;
+        this.window = Math.max(1L, window);
+        this.tokensPerNano = (double) Math.max(1L, perHour) / TimeUnit.HOURS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.bucket = new TokenBucket(this.burst, System.nanoTime());
+        this.sender = sender;
+    }
+
+    /**
+     * Sends the event right away when no window is open, otherwise it waits
+     * for the digest
+     *
+     * @param event comment or failure to notify about
+     */
+    public void add(final CommentEnvelope event) {
+        if (this.pending == null) {
+            this.pending = new Digest();
+        }
+        this.pending.add(event);
+        if (!this.windowOpen) {
+            this.windowOpen = true;
+            this.flush();
+        }
+    }
+
+    private void flush() {
+        if (this.pending == null) {
+            this.windowOpen = false;
+            return;
+        }
+        final long now = System.nanoTime();
+        long wait = Math.max(0L, this.pausedUntil - now);
+        if (wait == 0L) {
+            wait = this.bucket.tryAcquire(now, this.tokensPerNano, this.burst);
+        }
+        if (wait > 0L) {
+            this.vertx.setTimer(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(wait)),
+                    id -> this.flush());
+            return;
+        }
+        final Digest digest = this.pending;
+        this.pending = null;
+        this.vertx.setTimer(this.window, id -> this.flush());
+        this.sender.apply(digest).onComplete(res -> {
+            if (res.succeeded()) {
+                Metrics.INSTANCE.notificationSent(this.name, digest.getEvents());
+                LOGGER.info("{} notified about {} events", this.name, digest.getEvents());
+            } else {
+                this.failed(digest, res.cause());
+            }
+        });
+    }
+
+    private void failed(final Digest digest, final Throwable cause) {
+        final int status =
+                cause instanceof SinkException ? ((SinkException) cause).getStatusCode() : 0;
+        if (status != 0 && status != 429 && status < 500) {
+            // Retrying won't help, bad token or message
+            Metrics.INSTANCE.notificationFailed(this.name, false);
+            LOGGER.error("Dropped {} notification about {} events", this.name,
+                    digest.getEvents(), cause);
+            return;
+        }
+        long delay = SinkException.retryAfterOf(cause);
+        if (delay < 0L) {
+            delay = status == 429 ? THROTTLE_PAUSE : this.window;
+        }
+        Metrics.INSTANCE.notificationFailed(this.name, status == 429);
+        LOGGER.warn("{} notification failed ({}), holding {} events for {}s", this.name,
+                cause.getMessage(), digest.getEvents(), TimeUnit.MILLISECONDS.toSeconds(delay));
+        this.pausedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        if (this.pending != null) {
+            digest.addAll(this.pending);
+        }
+        this.pending = digest;
+        if (!this.windowOpen) {
+            this.windowOpen = true;
+            this.flush();
+        }
+    }
+}
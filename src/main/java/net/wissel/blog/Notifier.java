@@ -0,0 +1,50 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import io.vertx.core.Future;
+
+/**
+ * A channel notifications about comments go out on: Pushover, a webhook, ntfy
+ * or mail. Implementations only talk to their remote, the
+ * {@link NotificationChannel} around them takes care of digesting, rate
+ * limits, queueing, concurrency and timeouts
+ *
+ * @author swissel
+ */
+public interface Notifier {
+
+    /**
+     * @return channel name for logs and metrics
+     */
+    String getName();
+
+    /**
+     * @param digest what to notify about
+     * @param timeout ms the remote gets, the send has to end by then: the
+     *        channel reports a failure after that, but its slot stays taken
+     *        until the returned future completes
+     * @return succeeds once delivered, fails with a {@link SinkException}
+     *         carrying status and Retry-After when there are any
+     */
+    Future<Void> send(NotificationDigest.Digest digest, long timeout);
+}
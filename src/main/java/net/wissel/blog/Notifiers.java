@@ -0,0 +1,142 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.web.client.HttpResponse;
+
+/**
+ * Picks the {@link Notifier}s that are configured: Pushover with PushToken and
+ * PushUser, a webhook with NotifyWebhookURL, ntfy with NtfyURL and mail with
+ * SmtpHost and MailTo
+ *
+ * @author swissel
+ */
+public final class Notifiers {
+
+    public static final String PUSHOVER = "pushover";
+    public static final String WEBHOOK = "webhook";
+    public static final String NTFY = "ntfy";
+    public static final String SMTP = "smtp";
+
+    /* Pushover sends the end of the quota period as epoch seconds */
+    private static final String LIMIT_RESET = "X-Limit-App-Reset";
+
+    /**
+     * @param vertx the Vert.x instance
+     * @return all configured notifiers, can be empty
+     */
+    public static List<Notifier> create(final Vertx vertx) {
+        final Config config = Config.INSTANCE;
+        final List<Notifier> result = new ArrayList<>();
+        if (config.getPushToken() != null && config.getPushUser() != null) {
+            result.add(new PushoverNotifier(vertx));
+        }
+        if (config.getNotifyWebhook() != null) {
+            result.add(new WebhookNotifier(vertx));
+        }
+        if (config.getNtfyTopic() != null) {
+            result.add(new NtfyNotifier(vertx));
+        }
+        if (config.getSmtpHost() != null && config.getMailTo() != null) {
+            result.add(new SmtpNotifier(vertx));
+        }
+        return result;
+    }
+
+    /**
+     * @return where the comments can be looked at: the Bitbucket repository,
+     *         or LocalGitRemote without credentials for the local backend;
+     *         null when that remote is no web URL
+     */
+    static String repositoryLink() {
+        if (!CommentSinks.LOCAL.equals(Config.INSTANCE.getStorageBackend())) {
+            return "https://bitbucket.org/" + Config.INSTANCE.getRepositoryURL() + "/src";
+        }
+        final String remote = Config.INSTANCE.getLocalGitRemote();
+        if (remote == null || !remote.startsWith("http")) {
+            return null;
+        }
+        try {
+            final URI uri = new URI(remote);
+            final String path = uri.getPath() == null ? "" : uri.getPath().replaceAll("\\.git$", "");
+            return new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), path, null, null)
+                    .toString();
+        } catch (final URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return label for {@link #repositoryLink()}
+     */
+    static String repositoryLinkTitle() {
+        return CommentSinks.LOCAL.equals(Config.INSTANCE.getStorageBackend())
+                ? "See the repository"
+                : "See in bitbucket";
+    }
+
+    /**
+     * Turns the answer of a HTTP notifier into its outcome
+     *
+     * @param name the notifier
+     * @param res result of the request
+     * @return succeeded for 2xx, otherwise failed with a {@link SinkException}
+     *         carrying status and Retry-After (or Pushover's quota reset)
+     */
+    static Future<Void> outcome(final String name,
+            final AsyncResult<HttpResponse<Buffer>> res) {
+        if (res.failed()) {
+            return Future.failedFuture(new SinkException(res.cause().getMessage(), 0, -1L));
+        }
+        final HttpResponse<Buffer> response = res.result();
+        if (response.statusCode() / 100 == 2) {
+            return Future.succeededFuture();
+        }
+        return Future.failedFuture(new SinkException(name + " answered " + response.statusCode(),
+                response.statusCode(), retryAfter(response)));
+    }
+
+    private static long retryAfter(final HttpResponse<Buffer> response) {
+        final long retryAfter = RetryScheduler.parseRetryAfter(response.getHeader("Retry-After"));
+        final String reset = response.getHeader(LIMIT_RESET);
+        if (retryAfter >= 0 || reset == null) {
+            return retryAfter;
+        }
+        try {
+            return Math.max(0L, Long.parseLong(reset.trim()) * 1000L - System.currentTimeMillis());
+        } catch (final NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private Notifiers() {
+        // Static methods only
+    }
+}
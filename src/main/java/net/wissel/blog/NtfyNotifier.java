@@ -0,0 +1,99 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpRequest;
+
+/**
+ * Publishes notifications to the ntfy topic at NtfyURL. Goes through ntfy's
+ * JSON API on the server root with the topic in the body, so titles with line
+ * breaks or umlauts don't have to survive HTTP headers. Sends NtfyToken as
+ * bearer token when set
+ *
+ * @author swissel
+ */
+public class NtfyNotifier implements Notifier {
+
+    private final Vertx vertx;
+    private final Endpoint server;
+    private final String root;
+    private final String topic;
+    private final String token;
+
+    /**
+     * @param vertx Vert.x instance the shared HTTP client belongs to
+     */
+    public NtfyNotifier(final Vertx vertx) {
+        this(vertx, Config.INSTANCE.getNtfyTopic(), Config.INSTANCE.getNtfyToken());
+    }
+
+    NtfyNotifier(final Vertx vertx, final Endpoint topicUrl, final String token) {
+        this.vertx = vertx;
+        this.server = topicUrl;
+        this.token = token;
+        // https://ntfy.sh/comments publishes as {"topic":"comments"} to https://ntfy.sh/
+        final String path = topicUrl.getPath();
+        final int query = path.indexOf('?');
+        final String trimmed = (query < 0 ? path : path.substring(0, query)).replaceAll("/+$", "");
+        final int slash = trimmed.lastIndexOf('/');
+        this.root = slash < 0 ? "/" : trimmed.substring(0, slash + 1);
+        this.topic = trimmed.substring(slash + 1);
+    }
+
+    @Override
+    public String getName() {
+        return Notifiers.NTFY;
+    }
+
+    @Override
+    public Future<Void> send(final NotificationDigest.Digest digest, final long timeout) {
+        final HttpRequest<Buffer> request = HttpClients.forVertx(this.vertx).client(this.server)
+                .post(this.server.getPort(), this.server.getHost(), this.root)
+                .ssl(this.server.isSsl())
+                .timeout(timeout);
+        if (this.token != null) {
+            request.bearerTokenAuthentication(this.token);
+        }
+        return request.sendJsonObject(this.payload(digest))
+                .transform(res -> Notifiers.outcome(this.getName(), res));
+    }
+
+    JsonObject payload(final NotificationDigest.Digest digest) {
+        final boolean failed = digest.getFailureCount() > 0;
+        final JsonObject payload = new JsonObject()
+                .put("topic", this.topic)
+                .put("title", digest.getTitle())
+                .put("message", digest.getMessage())
+                .put("tags", new JsonArray().add(failed ? "warning" : "speech_balloon"))
+                .put("priority", failed ? 4 : 3);
+        final String link = Notifiers.repositoryLink();
+        if (link != null) {
+            payload.put("click", link);
+        }
+        return payload;
+    }
+}
@@ -40,7 +40,6 @@ import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 
 /**
  * @author stw
@@ -58,18 +57,23 @@ public class OauthHelper {
   }
 
   /**
-   * Creates a manual Session to retrieve an access token
+   * Retrieves an access token, served from the shared cache when still valid
    *
-   * @param result
    * @param vertx
    * @return Future with TOken
    */
   public static Future<String> getAccessToken(final Vertx vertx) {
+    return AccessTokenCache.forVertx(vertx).getAccessToken();
+  }
+
+  /**
+   * Creates a manual Session to retrieve an access token
+   *
+   * @param wc the client to use
+   * @return Future with the token response, containing at least the token
+   */
+  static Future<JsonObject> requestToken(final WebClient wc) {
     return Future.future(result -> {
-      final WebClientOptions options =
-          new WebClientOptions().setUserAgent("CommentService 1.0.4").setSsl(true)
-              .setKeepAlive(true);
-      final WebClient wc = WebClient.create(vertx, options);
       final String accessBasic = Base64.getEncoder().encodeToString(
           (Config.INSTANCE.getClientToken() + ":" + Config.INSTANCE.getClientSecret()).getBytes());
       final MultiMap form = MultiMap.caseInsensitiveMultiMap();
@@ -77,19 +81,24 @@ public class OauthHelper {
       form.set("scope", "");
       form.set("client_id", Config.INSTANCE.getClientToken());
 
-      wc.post(443, Config.INSTANCE.getOauthURL(), OauthHelper.TOKEN_PATH).ssl(true)
+      final Endpoint idp = Config.INSTANCE.getOauthEndpoint();
+      final long start = System.nanoTime();
+      wc.post(idp.getPort(), idp.getHost(), OauthHelper.TOKEN_PATH).ssl(idp.isSsl())
           .putHeader("Content-Type", "application/x-www-form-urlencoded")
           .putHeader("Authorization", "Basic " + accessBasic).sendForm(form, res -> {
+            Metrics.INSTANCE.oauthFetch(System.nanoTime() - start,
+                res.succeeded() && res.result().statusCode() == 200);
             if (res.failed()) {
               OauthHelper.LOGGER.error("Failed to obtain OAuth token:", res.cause());
               result.fail(res.cause());
             } else {
               try {
                 final JsonObject authJson = res.result().bodyAsJsonObject();
-                if (authJson.containsKey(OauthHelper.TOKEN_NAME)) {
-                  result.complete(authJson.getString(OauthHelper.TOKEN_NAME));
+                if (authJson != null && authJson.containsKey(OauthHelper.TOKEN_NAME)) {
+                  result.complete(authJson);
                 } else {
-                  result.fail("HTTP did not contain access token:" + authJson.encode());
+                  result.fail("HTTP did not contain access token:"
+                      + (authJson == null ? "empty body" : authJson.encode()));
                 }
               } catch (final Exception e) {
                 OauthHelper.LOGGER.error(e.getMessage(), e);
@@ -23,6 +23,8 @@ package net.wissel.blog;
 
 public class Parameters {
 	public static final String SUCCESS_MESSAGE = "You comment has been received, it will appear after review";
+	public static final String DELAYED_MESSAGE = "You comment has been received, it will take a little longer than usual to show up for review";
+	public static final String BUSY_MESSAGE = "We have too many comments waiting right now, please try again later";
 	public static final String FAILURE_MESSAGE = "Something went wrong, we are sooo sorry";
 	public static final String HTTP_REFERER = "Referer";
 	public static final String HTTP_CLIENTIP = "ClientIP";
@@ -40,6 +42,7 @@ public class Parameters {
 	public static final String MESSAGE_NEW_COMMENT = "comment.new";
 	public static final String MESSAGE_PUSH_COMMENT = "comment.pushnotification";
 	public static final String MESSAGE_PULLREQUEST = "comment.pullrequest";
+	public static final String MESSAGE_JOURNAL = "comment.journal";
 	public static final String CREATED = "created";
 	public static final String IMPORT_DATE_FORMAT = "MMMM dd, yyyy HH:mm:ss a";
 
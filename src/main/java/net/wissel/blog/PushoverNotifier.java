@@ -0,0 +1,70 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Notifies via the Pushover message API, needs PushToken and PushUser
+ *
+ * @author swissel
+ */
+public class PushoverNotifier implements Notifier {
+
+    private final Vertx vertx;
+    private final Endpoint api;
+
+    /**
+     * @param vertx Vert.x instance the shared HTTP client belongs to
+     */
+    public PushoverNotifier(final Vertx vertx) {
+        this.vertx = vertx;
+        this.api = Config.INSTANCE.getPushoverApi();
+    }
+
+    @Override
+    public String getName() {
+        return Notifiers.PUSHOVER;
+    }
+
+    @Override
+    public Future<Void> send(final NotificationDigest.Digest digest, final long timeout) {
+        final JsonObject body = new JsonObject()
+                .put("token", Config.INSTANCE.getPushToken())
+                .put("user", Config.INSTANCE.getPushUser())
+                .put("title", digest.getTitle())
+                .put("message", digest.getMessage());
+        final String link = Notifiers.repositoryLink();
+        if (link != null) {
+            body.put("url", link).put("url_title", Notifiers.repositoryLinkTitle());
+        }
+        return HttpClients.forVertx(this.vertx).client(this.api)
+                .post(this.api.getPort(), this.api.getHost(), Parameters.HTTP_PUSHAPI)
+                .ssl(this.api.isSsl())
+                .timeout(timeout)
+                .putHeader("Content-Type", "application/json")
+                .sendJsonObject(body)
+                .transform(res -> Notifiers.outcome(this.getName(), res));
+    }
+}
@@ -0,0 +1,166 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import io.vertx.core.Vertx;
+
+/**
+ * Schedules retries with exponential backoff and jitter on a hashed timing
+ * wheel. A tick only looks at one slot of the wheel, so thousands of waiting
+ * items don't get scanned on every tick. Items that are due get released at a
+ * limited rate per tick, so fresh work arriving on the event bus always runs
+ * ahead of retries.
+ *
+ * Not thread safe, use it from the context of the verticle that created it.
+ *
+ * @author swissel
+ * @param <T> the type of item to retry
+ */
+public class RetryScheduler<T> {
+
+    private static final long TICK = 100L;
+    private static final int WHEEL_SIZE = 512;
+    /* Max items handed back per tick */
+    private static final int RELEASE_PER_TICK = 5;
+
+    /**
+     * Interprets a Retry-After header, which is either seconds or a HTTP date
+     *
+     * @param headerValue the header, can be null
+     * @return delay in milliseconds or -1 when there was no usable value
+     */
+    public static long parseRetryAfter(final String headerValue) {
+        if (headerValue == null || headerValue.isBlank()) {
+            return -1L;
+        }
+        try {
+            return Math.max(0L, Long.parseLong(headerValue.trim()) * 1000L);
+        } catch (final NumberFormatException e) {
+            // Not seconds, try the date
+        }
+        try {
+            final ZonedDateTime when =
+                    ZonedDateTime.parse(headerValue.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0L, when.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (final DateTimeParseException e) {
+            return -1L;
+        }
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        long rounds;
+
+        Entry(final T item, final long rounds) {
+            this.item = item;
+            this.rounds = rounds;
+        }
+    }
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Consumer<T> onDue;
+    private final List<ArrayDeque<Entry<T>>> wheel;
+    private final ArrayDeque<T> ready = new ArrayDeque<>();
+    private int cursor = 0;
+    private int pending = 0;
+
+    /**
+     * @param vertx Vert.x instance driving the wheel
+     * @param baseDelay delay in ms for the first retry
+     * @param maxDelay upper limit for the backoff in ms
+     * @param onDue called with every item that is due again
+     */
+    public RetryScheduler(final Vertx vertx, final long baseDelay, final long maxDelay,
+            final Consumer<T> onDue) {
+        this(baseDelay, maxDelay, onDue);
+        vertx.setPeriodic(TICK, id -> this.tick());
+    }
+
+    /* Turned by the caller, one tick() per 100 ms */
+    RetryScheduler(final long baseDelay, final long maxDelay, final Consumer<T> onDue) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.onDue = onDue;
+        this.wheel = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Schedules an item for another attempt
+     *
+     * @param item what to retry
+     * @param attempt number of the upcoming retry, starting at 1
+     * @param retryAfter delay the server asked for in ms, -1 if none
+     */
+    public void schedule(final T item, final int attempt, final long retryAfter) {
+        final long delay = retryAfter >= 0 ? retryAfter : this.backoff(attempt);
+        final long ticks = Math.max(1L, (delay + TICK - 1) / TICK);
+        final int slot = (int) ((this.cursor + ticks) % WHEEL_SIZE);
+        this.wheel.get(slot).add(new Entry<>(item, (ticks - 1) / WHEEL_SIZE));
+        this.pending++;
+    }
+
+    /**
+     * @return number of items waiting for their retry
+     */
+    public int size() {
+        return this.pending;
+    }
+
+    /* Exponential backoff with equal jitter */
+    private long backoff(final int attempt) {
+        final int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        final long ceiling = Math.min(this.maxDelay, this.baseDelay << shift);
+        final long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    void tick() {
+        this.cursor = (this.cursor + 1) % WHEEL_SIZE;
+        final Iterator<Entry<T>> slot = this.wheel.get(this.cursor).iterator();
+        while (slot.hasNext()) {
+            final Entry<T> entry = slot.next();
+            if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                slot.remove();
+                this.ready.add(entry.item);
+            }
+        }
+        for (int i = 0; i < RELEASE_PER_TICK && !this.ready.isEmpty(); i++) {
+            this.pending--;
+            this.onDue.accept(this.ready.poll());
+        }
+    }
+}
@@ -27,6 +27,7 @@ import org.apache.logging.log4j.Logger;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
+import io.vertx.core.dns.AddressResolverOptions;
 
 /**
  * @author stw
@@ -61,7 +62,10 @@ public class Runner {
 			}
 		};
 
-		final VertxOptions options = new VertxOptions();
+		// Outbound calls go to a handful of hosts, no need to ask DNS every time
+		final VertxOptions options = new VertxOptions()
+				.setAddressResolverOptions(new AddressResolverOptions()
+						.setCacheMinTimeToLive(Config.INSTANCE.getDnsCacheTtl()));
 		if (Runner.isDebug(debugMode)) {
 			options.setBlockedThreadCheckInterval(1000 * 60 * 60L);
 		}
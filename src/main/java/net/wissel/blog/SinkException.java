@@ -0,0 +1,68 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+/**
+ * A {@link CommentSink} call failed
+ *
+ * @author swissel
+ */
+public class SinkException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfter;
+
+    /**
+     * @param message what went wrong
+     * @param statusCode HTTP status or 0 when there was none
+     * @param retryAfter delay in ms the remote asked for, -1 if none
+     */
+    public SinkException(final String message, final int statusCode, final long retryAfter) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return HTTP status or 0 when there was none
+     */
+    public int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * @return delay in ms the remote asked for, -1 if none
+     */
+    public long getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    /**
+     * @param cause any failure from a sink future
+     * @return delay in ms the remote asked for, -1 if none
+     */
+    public static long retryAfterOf(final Throwable cause) {
+        return cause instanceof SinkException ? ((SinkException) cause).getRetryAfter() : -1L;
+    }
+}
@@ -0,0 +1,103 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.util.concurrent.TimeUnit;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.ext.mail.MailClient;
+import io.vertx.ext.mail.MailConfig;
+import io.vertx.ext.mail.MailMessage;
+import io.vertx.ext.mail.SMTPException;
+
+/**
+ * Mails notifications from MailFrom to MailTo through the server at SmtpHost,
+ * logging in with SmtpUser and SmtpPassword when set
+ *
+ * @author swissel
+ */
+public class SmtpNotifier implements Notifier {
+
+    private final Vertx vertx;
+    private final MailClient client;
+
+    /**
+     * @param vertx Vert.x instance the mail client runs on
+     */
+    public SmtpNotifier(final Vertx vertx) {
+        this.vertx = vertx;
+        final Config config = Config.INSTANCE;
+        final MailConfig mailConfig = new MailConfig()
+                .setHostname(config.getSmtpHost())
+                .setPort(config.getSmtpPort())
+                .setSsl(config.getSmtpPort() == 465)
+                .setMaxPoolSize(Math.max(1, config.getNotifyConcurrency()))
+                .setConnectTimeout(config.getHttpConnectTimeout())
+                // Stalled connections get closed instead of blocking the pool
+                .setIdleTimeout((int) Math.max(1L, config.getNotifyTimeout()))
+                .setIdleTimeoutUnit(TimeUnit.MILLISECONDS)
+                .setKeepAlive(true);
+        if (config.getSmtpUser() != null) {
+            mailConfig.setUsername(config.getSmtpUser()).setPassword(config.getSmtpPassword());
+        }
+        this.client = MailClient.createShared(vertx, mailConfig, Notifiers.SMTP);
+    }
+
+    @Override
+    public String getName() {
+        return Notifiers.SMTP;
+    }
+
+    @Override
+    public Future<Void> send(final NotificationDigest.Digest digest, final long timeout) {
+        final String link = Notifiers.repositoryLink();
+        final MailMessage message = new MailMessage()
+                .setFrom(Config.INSTANCE.getMailFrom())
+                .setTo(Config.INSTANCE.getMailTo())
+                .setSubject(digest.getTitle())
+                .setText(link == null ? digest.getMessage()
+                        : digest.getMessage() + "\n\n" + link);
+        // The mail client doesn't fail a send whose connection stalls, so we do
+        final Promise<Void> sent = Promise.promise();
+        final long timer = this.vertx.setTimer(timeout, id -> sent.tryFail(
+                new SinkException(this.getName() + " timed out", 0, -1L)));
+        this.client.sendMail(message).onComplete(res -> {
+            this.vertx.cancelTimer(timer);
+            if (res.succeeded()) {
+                sent.tryComplete();
+            } else {
+                sent.tryFail(
+                        new SinkException(res.cause().getMessage(), status(res.cause()), -1L));
+            }
+        });
+        return sent.future();
+    }
+
+    /* Permanent SMTP errors like an unknown recipient won't go away by retrying */
+    private static int status(final Throwable cause) {
+        if (cause instanceof SMTPException) {
+            return ((SMTPException) cause).isPermanent() ? 400 : 503;
+        }
+        return 0;
+    }
+}
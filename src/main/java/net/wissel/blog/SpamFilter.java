@@ -0,0 +1,308 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Scores comments before anything leaves the house: weighted keywords,
+ * too many links, the same word over and over and the recent history of the
+ * sender's IP and eMail. The score decides if a comment goes into the
+ * pipeline, into the quarantine file or gets turned away.
+ *
+ * Rules come from a JSON file (SpamRules) or the built-in spam-rules.json
+ * and get reloaded when the file changes
+ *
+ * @author swissel
+ */
+public final class SpamFilter {
+
+    /**
+     * What happens to a comment
+     */
+    public enum Outcome {
+        ACCEPT(Metrics.SPAM_ACCEPT), QUARANTINE(Metrics.SPAM_QUARANTINE), REJECT(
+                Metrics.SPAM_REJECT);
+
+        private final String tag;
+
+        Outcome(final String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static final String BUILT_IN_RULES = "spam-rules.json";
+    private static final long WATCH_INTERVAL = 10_000L;
+    /* Strikes older than that are forgiven */
+    private static final long STRIKE_MEMORY = TimeUnit.HOURS.toMillis(24);
+    private static final long EVICTION_INTERVAL = 600_000L;
+    private static final int MAX_STRIKES = 3;
+
+    private static final Logger LOGGER = LogManager.getLogger(SpamFilter.class);
+    private static SpamFilter shared = null;
+
+    /**
+     * One filter for all web listener instances, reputation is shared
+     *
+     * @param vertx runs the rule reload and the reputation cleanup
+     * @return the filter
+     */
+    public static synchronized SpamFilter shared(final Vertx vertx) {
+        if (shared == null) {
+            shared = new SpamFilter(vertx, Config.INSTANCE.getSpamRules(),
+                    Path.of(Config.INSTANCE.getSpamQuarantine()));
+        }
+        return shared;
+    }
+
+    /**
+     * Compiled rules, replaced as a whole on reload
+     */
+    private static final class Rules {
+        final KeywordMatcher keywords;
+        final int quarantineScore;
+        final int rejectScore;
+        final int freeLinks;
+        final int linkScore;
+        final double repeatRatio;
+        final int repeatMinTokens;
+        final int repeatScore;
+        final int reputationScore;
+
+        Rules(final JsonObject json) {
+            final Map<String, Integer> weights = new HashMap<>();
+            json.getJsonObject("keywords", new JsonObject()).forEach(entry -> weights
+                    .put(entry.getKey(), ((Number) entry.getValue()).intValue()));
+            this.keywords = new KeywordMatcher(weights);
+            this.quarantineScore = json.getInteger("quarantineScore", 5);
+            this.rejectScore = json.getInteger("rejectScore", 12);
+            this.freeLinks = json.getInteger("freeLinks", 2);
+            this.linkScore = json.getInteger("linkScore", 3);
+            this.repeatRatio = json.getDouble("repeatRatio", 0.3);
+            this.repeatMinTokens = json.getInteger("repeatMinTokens", 8);
+            this.repeatScore = json.getInteger("repeatScore", 4);
+            this.reputationScore = json.getInteger("reputationScore", 2);
+        }
+    }
+
+    private static final class Reputation {
+        int strikes = 0;
+        volatile long lastStrike = 0L;
+    }
+
+    private final Vertx vertx;
+    private final String rulesFile;
+    private final Path quarantineFile;
+    private final Object quarantineLock = new Object();
+    private final AtomicReference<Rules> rules = new AtomicReference<>();
+    private final ConcurrentHashMap<String, Reputation> reputations = new ConcurrentHashMap<>();
+    private long rulesModified = -1L;
+
+    private SpamFilter(final Vertx vertx, final String rulesFile, final Path quarantineFile) {
+        this.vertx = vertx;
+        this.rulesFile = rulesFile;
+        this.quarantineFile = quarantineFile;
+        this.rules.set(new Rules(this.loadBuiltIn()));
+        if (rulesFile != null) {
+            this.reloadIfChanged();
+            vertx.setPeriodic(WATCH_INTERVAL, id -> vertx.executeBlocking(promise -> {
+                this.reloadIfChanged();
+                promise.complete();
+            }, false));
+        }
+        vertx.setPeriodic(EVICTION_INTERVAL, id -> this.evictForgiven());
+    }
+
+    /**
+     * Scores a comment and decides its fate. Quarantine and reject count as
+     * strike for the IP and the eMail
+     *
+     * @param comment the validated comment
+     * @param clientIP where it came from
+     * @return what to do with it
+     */
+    public Outcome judge(final BlogComment comment, final String clientIP) {
+        final Rules current = this.rules.get();
+        final String ipKey = "ip:" + clientIP;
+        final String mailKey = "mail:" + String.valueOf(comment.eMail).trim().toLowerCase();
+        final long now = System.currentTimeMillis();
+
+        int score = current.keywords.score(comment.Body)
+                + current.keywords.score(comment.Commentor)
+                + current.keywords.score(comment.webSite);
+        score += Math.max(0, countLinks(comment.Body) - current.freeLinks) * current.linkScore;
+        if (isRepetitive(comment.Body, current)) {
+            score += current.repeatScore;
+        }
+        score += (this.strikes(ipKey, now) + this.strikes(mailKey, now))
+                * current.reputationScore;
+
+        final Outcome outcome = score >= current.rejectScore ? Outcome.REJECT
+                : score >= current.quarantineScore ? Outcome.QUARANTINE : Outcome.ACCEPT;
+        if (outcome != Outcome.ACCEPT) {
+            this.strike(ipKey, now);
+            this.strike(mailKey, now);
+            LOGGER.info("Comment from {} on {} scored {}: {}", clientIP, comment.parentId, score,
+                    outcome);
+        }
+        Metrics.INSTANCE.spamOutcome(outcome.tag);
+        return outcome;
+    }
+
+    /**
+     * Appends a comment to the quarantine file for a human to look at, one
+     * JSON object per line
+     *
+     * @param comment the comment as received
+     */
+    public void quarantine(final JsonObject comment) {
+        final String line = comment.encode() + "\n";
+        this.vertx.executeBlocking(promise -> {
+            synchronized (this.quarantineLock) {
+                try {
+                    final Path parent = this.quarantineFile.toAbsolutePath().getParent();
+                    if (parent != null) {
+                        Files.createDirectories(parent);
+                    }
+                    Files.writeString(this.quarantineFile, line, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (final IOException e) {
+                    LOGGER.error("Could not quarantine comment", e);
+                }
+            }
+            promise.complete();
+        }, false);
+    }
+
+    /* http://, https:// and bare www. each count as a link */
+    static int countLinks(final String text) {
+        if (text == null) {
+            return 0;
+        }
+        int links = 0;
+        for (int i = text.indexOf("://"); i >= 0; i = text.indexOf("://", i + 3)) {
+            links++;
+        }
+        for (int i = text.indexOf("www."); i >= 0; i = text.indexOf("www.", i + 4)) {
+            if (i == 0 || text.charAt(i - 1) != '/') {
+                links++;
+            }
+        }
+        return links;
+    }
+
+    /* One word making up a large part of a longer text */
+    private static boolean isRepetitive(final String text, final Rules current) {
+        if (text == null) {
+            return false;
+        }
+        final Map<String, Integer> counts = new HashMap<>();
+        int tokens = 0;
+        int max = 0;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (i - start >= 3) {
+                    tokens++;
+                    max = Math.max(max,
+                            counts.merge(text.substring(start, i).toLowerCase(), 1, Integer::sum));
+                }
+                start = -1;
+            }
+        }
+        return tokens >= current.repeatMinTokens && max >= current.repeatRatio * tokens;
+    }
+
+    private int strikes(final String key, final long now) {
+        final Reputation reputation = this.reputations.get(key);
+        if (reputation == null || now - reputation.lastStrike > STRIKE_MEMORY) {
+            return 0;
+        }
+        synchronized (reputation) {
+            return Math.min(MAX_STRIKES, reputation.strikes);
+        }
+    }
+
+    private void strike(final String key, final long now) {
+        final Reputation reputation = this.reputations.computeIfAbsent(key, k -> new Reputation());
+        synchronized (reputation) {
+            if (now - reputation.lastStrike > STRIKE_MEMORY) {
+                reputation.strikes = 0;
+            }
+            reputation.strikes++;
+            reputation.lastStrike = now;
+        }
+    }
+
+    private void evictForgiven() {
+        final long cutoff = System.currentTimeMillis() - STRIKE_MEMORY;
+        this.reputations.values().removeIf(reputation -> reputation.lastStrike < cutoff);
+    }
+
+    private synchronized void reloadIfChanged() {
+        final Path path = Path.of(this.rulesFile);
+        try {
+            if (!Files.isRegularFile(path)) {
+                return;
+            }
+            final long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == this.rulesModified) {
+                return;
+            }
+            this.rules.set(new Rules(new JsonObject(Files.readString(path))));
+            this.rulesModified = modified;
+            LOGGER.info("Spam rules loaded from {}", path);
+        } catch (final IOException | RuntimeException e) {
+            // Keeps the rules we have
+            LOGGER.error("Could not load spam rules from {}", path, e);
+        }
+    }
+
+    private JsonObject loadBuiltIn() {
+        try (InputStream in =
+                SpamFilter.class.getClassLoader().getResourceAsStream(BUILT_IN_RULES)) {
+            if (in != null) {
+                return new JsonObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOGGER.error("Built-in spam rules unreadable", e);
+        }
+        return new JsonObject();
+    }
+}
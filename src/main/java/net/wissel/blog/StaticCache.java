@@ -0,0 +1,293 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Serves the webroot from memory. Files, their build time .gz/.br variants
+ * and ETags get loaded once from the classpath, the variant gets picked by
+ * Accept-Encoding. Only files listed in the manifest written by
+ * {@link StaticPrecompressor} are known, everything else goes to the next
+ * handler
+ *
+ * @author swissel
+ */
+public final class StaticCache implements Handler<RoutingContext> {
+
+    /* File list written at build time */
+    public static final String MANIFEST = "static.manifest";
+
+    private static final String WEBROOT = "webroot";
+    private static final CharSequence BR = HttpHeaders.createOptimized("br");
+    private static final CharSequence GZIP = HttpHeaders.createOptimized("gzip");
+    private static final CharSequence VARY_VALUE = HttpHeaders.ACCEPT_ENCODING;
+    /* Pages and .well-known files change without changing their name */
+    private static final CharSequence SHORT_CACHE =
+            HttpHeaders.createOptimized("public, max-age=300");
+    private static final CharSequence IMMUTABLE =
+            HttpHeaders.createOptimized("public, max-age=31536000, immutable");
+
+    private static final Logger LOGGER = LogManager.getLogger(StaticCache.class);
+    private static StaticCache shared = null;
+    private static boolean loaded = false;
+
+    /**
+     * Loads the webroot once for all web listener instances
+     *
+     * @return the cache or null when the build didn't produce a manifest
+     */
+    public static synchronized StaticCache shared() {
+        if (!loaded) {
+            loaded = true;
+            try {
+                shared = load();
+            } catch (final IOException e) {
+                LOGGER.error("Static files not cached", e);
+            }
+        }
+        return shared;
+    }
+
+    private static final class Variant {
+        final Buffer body;
+        final String etag;
+        final CharSequence encoding;
+
+        Variant(final byte[] content, final String etag, final CharSequence encoding) {
+            this.body = Buffer.buffer(content);
+            this.etag = etag;
+            this.encoding = encoding;
+        }
+    }
+
+    private static final class Entry {
+        final CharSequence contentType;
+        final CharSequence cacheControl;
+        final Variant identity;
+        final Variant gzip;
+        final Variant brotli;
+
+        Entry(final CharSequence contentType, final CharSequence cacheControl,
+                final Variant identity, final Variant gzip, final Variant brotli) {
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+
+        Variant pick(final String acceptEncoding) {
+            if (acceptEncoding != null) {
+                if (this.brotli != null && accepts(acceptEncoding, "br")) {
+                    return this.brotli;
+                }
+                if (this.gzip != null && accepts(acceptEncoding, "gzip")) {
+                    return this.gzip;
+                }
+            }
+            return this.identity;
+        }
+    }
+
+    private static StaticCache load() throws IOException {
+        final byte[] manifest = readResource(MANIFEST);
+        if (manifest == null) {
+            LOGGER.info("No {} in webroot, static files served from the classpath", MANIFEST);
+            return null;
+        }
+        final Map<String, Entry> entries = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(manifest), StandardCharsets.UTF_8))) {
+            String path;
+            while ((path = reader.readLine()) != null) {
+                if (path.isBlank()) {
+                    continue;
+                }
+                final byte[] raw = readResource(path.substring(1));
+                if (raw == null) {
+                    continue;
+                }
+                final String etag = etagOf(raw);
+                final byte[] gz = readResource(path.substring(1) + ".gz");
+                final byte[] br = readResource(path.substring(1) + ".br");
+                entries.put(path, new Entry(contentType(path), cacheControl(path),
+                        new Variant(raw, quote(etag), HttpHeaders.IDENTITY),
+                        gz == null ? null : new Variant(gz, quote(etag + "-gz"), GZIP),
+                        br == null ? null : new Variant(br, quote(etag + "-br"), BR)));
+            }
+        }
+        LOGGER.info("{} static files cached", entries.size());
+        return new StaticCache(entries);
+    }
+
+    private static byte[] readResource(final String name) throws IOException {
+        try (InputStream in = StaticCache.class.getClassLoader()
+                .getResourceAsStream(WEBROOT + "/" + name)) {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    /* Accept-Encoding lists codings, q=0 rules one out */
+    static boolean accepts(final String acceptEncoding, final String coding) {
+        for (final String part : acceptEncoding.split(",")) {
+            final String[] params = part.split(";");
+            if (!params[0].trim().equalsIgnoreCase(coding)) {
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (final NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static String etagOf(final byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String quote(final String etag) {
+        return "\"" + etag + "\"";
+    }
+
+    private static CharSequence cacheControl(final String path) {
+        return path.endsWith(".html") || path.startsWith("/.well-known/") ? SHORT_CACHE : IMMUTABLE;
+    }
+
+    private static CharSequence contentType(final String path) {
+        final String extension = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        final String type;
+        switch (extension) {
+            case "html":
+                type = "text/html; charset=utf-8";
+                break;
+            case "css":
+                type = "text/css; charset=utf-8";
+                break;
+            case "js":
+                type = "text/javascript; charset=utf-8";
+                break;
+            case "json":
+                type = "application/json";
+                break;
+            case "svg":
+                type = "image/svg+xml";
+                break;
+            case "png":
+                type = "image/png";
+                break;
+            case "jpg":
+            case "jpeg":
+                type = "image/jpeg";
+                break;
+            case "ico":
+                type = "image/x-icon";
+                break;
+            case "woff2":
+                type = "font/woff2";
+                break;
+            case "txt":
+                type = "text/plain; charset=utf-8";
+                break;
+            default:
+                type = path.startsWith("/.well-known/") ? "application/json"
+                        : "application/octet-stream";
+        }
+        return HttpHeaders.createOptimized(type);
+    }
+
+    private final Map<String, Entry> entries;
+
+    private StaticCache(final Map<String, Entry> entries) {
+        this.entries = entries;
+    }
+
+    @Override
+    public void handle(final RoutingContext ctx) {
+        final HttpMethod method = ctx.request().method();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            ctx.next();
+            return;
+        }
+        String path = ctx.normalizedPath();
+        if (path.endsWith("/")) {
+            path = path + "index.html";
+        }
+        final Entry entry = this.entries.get(path);
+        if (entry == null) {
+            ctx.next();
+            return;
+        }
+
+        final Variant variant = entry.pick(ctx.request().getHeader(HttpHeaders.ACCEPT_ENCODING));
+        final HttpServerResponse response = ctx.response()
+                .putHeader(HttpHeaders.CONTENT_TYPE, entry.contentType)
+                .putHeader(HttpHeaders.CACHE_CONTROL, entry.cacheControl)
+                .putHeader(HttpHeaders.VARY, VARY_VALUE)
+                .putHeader(HttpHeaders.ETAG, variant.etag);
+        // identity keeps the server from compressing files that didn't shrink
+        response.putHeader(HttpHeaders.CONTENT_ENCODING, variant.encoding);
+        final String ifNoneMatch = ctx.request().getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null && ifNoneMatch.contains(variant.etag)) {
+            response.setStatusCode(304).end();
+            return;
+        }
+        if (method == HttpMethod.HEAD) {
+            response.putHeader(HttpHeaders.CONTENT_LENGTH, String.valueOf(variant.body.length()))
+                    .end();
+            return;
+        }
+        response.end(variant.body);
+    }
+}
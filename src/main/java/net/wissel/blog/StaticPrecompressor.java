@@ -0,0 +1,114 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+/**
+ * Build step, runs in process-classes: writes .gz and .br variants next to
+ * every file in the webroot and a manifest listing the files, so
+ * {@link StaticCache} can load them from the classpath. Not used at runtime,
+ * brotli4j is a provided dependency
+ *
+ * @author swissel
+ */
+public final class StaticPrecompressor {
+
+    /* Variants that don't save at least that many bytes are not worth it */
+    private static final int MIN_SAVING = 64;
+
+    /**
+     * @param args webroot directory in the build output
+     * @throws IOException when files can't be read or written
+     */
+    public static void main(final String[] args) throws IOException {
+        final Path webroot = Path.of(args.length > 0 ? args[0] : "target/classes/webroot");
+        if (!Files.isDirectory(webroot)) {
+            System.out.println("No webroot at " + webroot + ", nothing to compress");
+            return;
+        }
+        Brotli4jLoader.ensureAvailability();
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(webroot)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(p -> !isVariant(p))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        final StringBuilder manifest = new StringBuilder();
+        for (final Path file : files) {
+            final byte[] raw = Files.readAllBytes(file);
+            writeIfSmaller(file, ".gz", raw, gzip(raw));
+            writeIfSmaller(file, ".br", raw, Encoder.compress(raw,
+                    new Encoder.Parameters().setQuality(11)));
+            manifest.append('/')
+                    .append(webroot.relativize(file).toString().replace('\\', '/'))
+                    .append('\n');
+        }
+        Files.writeString(webroot.resolve(StaticCache.MANIFEST), manifest.toString(),
+                StandardCharsets.UTF_8);
+        System.out.println("Precompressed " + files.size() + " files in " + webroot);
+    }
+
+    private static boolean isVariant(final Path p) {
+        final String name = p.getFileName().toString();
+        return name.endsWith(".gz") || name.endsWith(".br") || name.equals(StaticCache.MANIFEST);
+    }
+
+    private static void writeIfSmaller(final Path file, final String suffix, final byte[] raw,
+            final byte[] compressed) throws IOException {
+        final Path target = file.resolveSibling(file.getFileName() + suffix);
+        if (compressed.length + MIN_SAVING < raw.length) {
+            Files.write(target, compressed);
+        } else {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static byte[] gzip(final byte[] raw) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out) {
+            {
+                this.def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gz.write(raw);
+        }
+        return out.toByteArray();
+    }
+
+    private StaticPrecompressor() {
+        // Build tool only
+    }
+}
@@ -0,0 +1,67 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+/**
+ * Classic token bucket, refilled by elapsed time on access
+ *
+ * @author swissel
+ */
+final class TokenBucket {
+    private double tokens;
+    private long lastRefill;
+    private volatile long lastSeen;
+
+    /**
+     * @param tokens tokens available right away
+     * @param now current System.nanoTime()
+     */
+    TokenBucket(final double tokens, final long now) {
+        this.tokens = tokens;
+        this.lastRefill = now;
+        this.lastSeen = now;
+    }
+
+    /**
+     * @param now current System.nanoTime()
+     * @param perNano refill rate
+     * @param burst most tokens the bucket holds
+     * @return 0 when a token was taken, otherwise nanos until the next one
+     */
+    synchronized long tryAcquire(final long now, final double perNano, final double burst) {
+        this.tokens = Math.min(burst, this.tokens + (now - this.lastRefill) * perNano);
+        this.lastRefill = now;
+        this.lastSeen = now;
+        if (this.tokens >= 1.0) {
+            this.tokens -= 1.0;
+            return 0L;
+        }
+        return (long) Math.ceil((1.0 - this.tokens) / perNano);
+    }
+
+    /**
+     * @return System.nanoTime() of the last access
+     */
+    long getLastSeen() {
+        return this.lastSeen;
+    }
+}
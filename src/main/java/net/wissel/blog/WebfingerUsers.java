@@ -0,0 +1,234 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Mastodon users for the webfinger route. The JRD document of every user is
+ * fixed, so it gets rendered once when users.json is loaded, together with a
+ * strong ETag. The file is checked for changes periodically, a new snapshot
+ * replaces the old one atomically, so web listener instances never see a half
+ * loaded user list
+ *
+ * @author swissel
+ */
+public final class WebfingerUsers {
+
+    /**
+     * Rendered webfinger reply of one user
+     */
+    public static final class Webfinger {
+        private final Buffer body;
+        private final String etag;
+
+        Webfinger(final Buffer body, final String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+
+        /**
+         * @return JRD document, don't modify
+         */
+        public Buffer getBody() {
+            return this.body;
+        }
+
+        /**
+         * @return quoted strong ETag of the body
+         */
+        public String getEtag() {
+            return this.etag;
+        }
+    }
+
+    private static final String DOCKER_FILE_NAME = "/opt/activityPub/users.json";
+    /* How often users.json gets checked for changes */
+    private static final long WATCH_INTERVAL = 10_000L;
+    private static final Logger LOGGER = LogManager.getLogger(WebfingerUsers.class);
+    private static final AtomicReference<Map<String, Webfinger>> USERS =
+            new AtomicReference<>(Collections.emptyMap());
+    /* Source of the current snapshot, only touched by load() */
+    private static Path loadedPath = null;
+    private static long loadedModified = -1L;
+    private static boolean watching = false;
+
+    /**
+     * @return current users, never null
+     */
+    public static Map<String, Webfinger> current() {
+        return USERS.get();
+    }
+
+    /**
+     * Loads users.json from the docker secret or the location in
+     * ACTIVITY_USERS
+     *
+     * @return true when users were loaded
+     */
+    public static synchronized boolean load() {
+        final Optional<Path> pathCandidate = findUserFile();
+
+        if (pathCandidate.isPresent()) {
+            final Path path = pathCandidate.get();
+            try {
+                final long modified = Files.getLastModifiedTime(path).toMillis();
+                final String raw = Files.readString(path);
+                if (raw != null && !raw.isBlank()) {
+                    final JsonObject users = new JsonObject(raw);
+                    final Map<String, Webfinger> snapshot = new HashMap<>();
+                    users.stream()
+                            .filter(entry -> entry.getValue() instanceof JsonObject)
+                            .forEach(entry -> snapshot.put(entry.getKey(),
+                                    render((JsonObject) entry.getValue())));
+                    USERS.set(Collections.unmodifiableMap(snapshot));
+                    loadedPath = path;
+                    loadedModified = modified;
+                    LOGGER.info("Webfinger config with {} users loaded from {}", snapshot.size(),
+                            path);
+                    return true;
+                }
+                LOGGER.error("JSON file was empty");
+            } catch (final IOException | RuntimeException e) {
+                // Keeps the previous snapshot
+                LOGGER.error("Could not load webfinger users from {}", path, e);
+            }
+        } else {
+            LOGGER.error("File {} not found, no webfinger URL loaded",
+                    pathCandidate.orElse(Path.of("unavailable")));
+        }
+        return false;
+    }
+
+    /**
+     * Checks users.json for changes every few seconds and reloads it, once
+     * per JVM
+     *
+     * @param vertx the Vert.x instance running the checks
+     */
+    public static synchronized void watch(final Vertx vertx) {
+        if (watching) {
+            return;
+        }
+        watching = true;
+        vertx.setPeriodic(WATCH_INTERVAL, id -> vertx.executeBlocking(promise -> {
+            if (changed()) {
+                load();
+            }
+            promise.complete();
+        }, false));
+    }
+
+    private static synchronized boolean changed() {
+        final Optional<Path> path = findUserFile();
+        if (path.isEmpty()) {
+            return false;
+        }
+        try {
+            return !path.get().equals(loadedPath)
+                    || Files.getLastModifiedTime(path.get()).toMillis() != loadedModified;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    private static Webfinger render(final JsonObject j) {
+        final String userid = j.getString("userid", "johndoe");
+        final String domain = j.getString("domain", "unknown");
+        final JsonObject result = new JsonObject();
+
+        result.put("subject", "acct:" + userid + "@" + domain);
+        result.put("aliases", new JsonArray()
+                .add("https://" + domain + "/@" + userid)
+                .add("https://" + domain + "/users/" + userid))
+                .put("links", new JsonArray()
+                        .add(new JsonObject()
+                                .put("rel", "http://webfinger.net/rel/profile-page")
+                                .put("type", "text/html")
+                                .put("href", "https://" + domain + "/@" + userid))
+                        .add(new JsonObject()
+                                .put("rel", "self")
+                                .put("type", "application/activity+json")
+                                .put("href", "https://" + domain + "/users/" + userid))
+                        .add(new JsonObject()
+                                .put("rel", "http://ostatus.org/schema/1.0/subscribe")
+                                .put("template",
+                                        "https://" + domain + "/authorize_interaction?uri={uri}")));
+
+        final Buffer body = result.toBuffer();
+        return new Webfinger(body, etagOf(body.getBytes()));
+    }
+
+    private static String etagOf(final byte[] content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+        } catch (final NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Optional<Path> findUserFile() {
+        Optional<Path> pathCandidate = getUserFilePath(DOCKER_FILE_NAME);
+        if (!pathCandidate.isPresent()) {
+            pathCandidate = getUserFilePath(System.getenv("ACTIVITY_USERS"));
+        }
+        return pathCandidate;
+    }
+
+    private static Optional<Path> getUserFilePath(final String fileName) {
+        if (fileName == null) {
+            return Optional.empty();
+        }
+        try {
+            final File sourceFile = new File(fileName);
+            if (sourceFile.exists() && sourceFile.isFile()) {
+                return Optional.ofNullable(sourceFile.toPath());
+            }
+        } catch (final Exception e) {
+            LOGGER.error(e);
+        }
+        return Optional.empty();
+    }
+
+    private WebfingerUsers() {
+        // Static methods only
+    }
+}
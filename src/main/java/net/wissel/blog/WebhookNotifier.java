@@ -0,0 +1,68 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Posts notifications as JSON to NotifyWebhookURL: title, message, the
+ * number of events, comments and failures and a link to the repository
+ *
+ * @author swissel
+ */
+public class WebhookNotifier implements Notifier {
+
+    private final Vertx vertx;
+    private final Endpoint target;
+
+    /**
+     * @param vertx Vert.x instance the shared HTTP client belongs to
+     */
+    public WebhookNotifier(final Vertx vertx) {
+        this.vertx = vertx;
+        this.target = Config.INSTANCE.getNotifyWebhook();
+    }
+
+    @Override
+    public String getName() {
+        return Notifiers.WEBHOOK;
+    }
+
+    @Override
+    public Future<Void> send(final NotificationDigest.Digest digest, final long timeout) {
+        final JsonObject body = new JsonObject()
+                .put("title", digest.getTitle())
+                .put("message", digest.getMessage())
+                .put("events", digest.getEvents())
+                .put("comments", digest.getCommentCount())
+                .put("failures", digest.getFailureCount())
+                .put("url", Notifiers.repositoryLink());
+        return HttpClients.forVertx(this.vertx).client(this.target)
+                .post(this.target.getPort(), this.target.getHost(), this.target.getPath())
+                .ssl(this.target.isSsl())
+                .timeout(timeout)
+                .sendJsonObject(body)
+                .transform(res -> Notifiers.outcome(this.getName(), res));
+    }
+}
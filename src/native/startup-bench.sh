@@ -0,0 +1,81 @@
+#!/usr/bin/env bash
+# Cold start and memory of the JVM image against the native image, as seen
+# when scaling up from zero: time from docker run to the first answered
+# request, then resident memory once the service handled some traffic.
+#
+# Usage: src/native/startup-bench.sh [runs] [jvm image] [native image]
+# Build the images first: mvn package and mvn -Pnative package
+set -euo pipefail
+
+RUNS=${1:-10}
+JVM_IMAGE=${2:-ghcr.io/stwissel/blog-comments-public:latest}
+NATIVE_IMAGE=${3:-ghcr.io/stwissel/blog-comments-public:native}
+PORT=${BENCH_PORT:-18181}
+REQUESTS=${BENCH_REQUESTS:-300}
+RESULTS=$(mktemp)
+trap 'rm -f "${RESULTS}"' EXIT
+
+now_ms() {
+    date +%s%3N
+}
+
+# Resident set of the container's main process in MB, cgroup usage if we
+# can't see the process
+rss_mb() {
+    local pid
+    pid=$(docker inspect -f '{{.State.Pid}}' "$1")
+    if [ -r "/proc/${pid}/status" ]; then
+        awk '/VmRSS/ { printf "%.1f", $2 / 1024 }' "/proc/${pid}/status"
+    else
+        docker stats --no-stream --format '{{.MemUsage}}' "$1" | awk '{ print $1 }'
+    fi
+}
+
+# Comments and reads at steady pace, nothing leaves the container
+traffic() {
+    local i
+    for i in $(seq 1 "${REQUESTS}"); do
+        curl -s -o /dev/null -X POST -H 'Content-Type: application/json' \
+            -d "{\"Commentor\":\"Bench ${i}\",\"eMail\":\"bench${i}@example.com\",\"Body\":\"Startup benchmark comment number ${i}, nothing to see.\",\"parentId\":\"bench/post\"}" \
+            "http://127.0.0.1:${PORT}/blogcomments/bench"
+        curl -s -o /dev/null "http://127.0.0.1:${PORT}/"
+    done
+}
+
+measure() {
+    local label=$1 image=$2 run start id ttfr
+    for run in $(seq 1 "${RUNS}"); do
+        start=$(now_ms)
+        id=$(docker run -d --rm -p "${PORT}:8080" \
+            -e JournalDir=/tmp/journal -e HttpInstances=1 \
+            -e StorageBackend=local -e LocalRepoPath=/tmp/comments.git \
+            -e RateLimitPerMinute=1000000 -e RateLimitBurst=100000 "${image}")
+        until curl -s -o /dev/null "http://127.0.0.1:${PORT}/"; do
+            sleep 0.005
+        done
+        ttfr=$(( $(now_ms) - start ))
+        local idle
+        idle=$(rss_mb "${id}")
+        traffic
+        sleep 3
+        echo "${label} ${ttfr} ${idle} $(rss_mb "${id}")" | tee -a "${RESULTS}"
+        docker stop -t 2 "${id}" > /dev/null
+    done
+}
+
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { print (NR % 2) ? v[(NR + 1) / 2] : (v[NR / 2] + v[NR / 2 + 1]) / 2 }'
+}
+
+echo "image ttfr_ms rss_idle_mb rss_steady_mb"
+measure jvm "${JVM_IMAGE}"
+measure native "${NATIVE_IMAGE}"
+
+echo
+printf '%-8s %18s %18s %18s\n' image "first request ms" "idle RSS MB" "steady RSS MB"
+for label in jvm native; do
+    printf '%-8s %18s %18s %18s\n' "${label}" \
+        "$(awk -v l="${label}" '$1 == l { print $2 }' "${RESULTS}" | median)" \
+        "$(awk -v l="${label}" '$1 == l { print $3 }' "${RESULTS}" | median)" \
+        "$(awk -v l="${label}" '$1 == l { print $4 }' "${RESULTS}" | median)"
+done
@@ -0,0 +1,53 @@
+#!/usr/bin/env bash
+# Runs the load test harness under the GraalVM tracing agent and merges what
+# the service touched by reflection, resources, proxies and JNI into the
+# native image configuration. Run it after changes to the pipeline and commit
+# the updated files. Needs GraalVM for JDK 17 as JAVA_HOME.
+set -euo pipefail
+cd "$(dirname "$0")/../.."
+
+: "${JAVA_HOME:?needs GraalVM for JDK 17 as JAVA_HOME}"
+CONFIG_DIR=src/main/resources/META-INF/native-image/net.wissel.blog/commentservice
+PORT=${TRACE_PORT:-18090}
+WORK=$(mktemp -d)
+trap 'rm -rf "${WORK}"' EXIT
+
+mvn -B -q -Ploadtest test-compile dependency:build-classpath \
+    -Dmdep.outputFile=target/loadtest.classpath
+CP="target/test-classes:target/classes:$(cat target/loadtest.classpath)"
+AGENT="-agentlib:native-image-agent=config-merge-dir=${CONFIG_DIR},caller-filter-file=src/native/agent-filter.json"
+
+# A published comment, so reading comments gets traced too
+mkdir -p "${WORK}/blog/src/comments/2023/07"
+cat > "${WORK}/blog/src/comments/2023/07/agent.json" <<'JSON'
+{"commentId":"agent","parentId":"loadtest/post-1","Commentor":"Agent","Body":"Traced",
+ "created":"July 14, 2023 10:15:00 AM","markdown":true}
+JSON
+
+# The routes the load generator doesn't use
+reads() {
+    sleep 10
+    for path in / /index.html /blogcomments/loadtest/post-1 \
+        "/.well-known/webfinger?resource=acct:stephan@wissel.net"; do
+        curl -s -o /dev/null -H 'Accept-Encoding: br, gzip' "http://127.0.0.1:${PORT}${path}" || true
+    done
+    curl -s -o /dev/null -H 'Authorization: Bearer trace' "http://127.0.0.1:${PORT}/metrics" || true
+    curl -s -o /dev/null -X OPTIONS -H 'Origin: https://wissel.net' \
+        -H 'Access-Control-Request-Method: POST' "http://127.0.0.1:${PORT}/blogcomments/x" || true
+}
+
+run() {
+    reads &
+    "${JAVA_HOME}/bin/java" "${AGENT}" -DPORT="${PORT}" -DBlogRepoPath="${WORK}/blog" -DMetricsToken=trace \
+        -Dloadtest.rates=5,20 -Dloadtest.duration=10 -Dloadtest.drain=20 "$@" \
+        -cp "${CP}" net.wissel.blog.LoadGenerator
+    wait
+}
+
+# Bitbucket sink, OAuth and Pushover stand-ins
+run -DJournalDir="${WORK}/journal-bitbucket"
+# Local git sink, pull requests never reach the stand-in, so don't wait long
+run -DJournalDir="${WORK}/journal-local" -DStorageBackend=local \
+    -DLocalRepoPath="${WORK}/comments.git" -Dloadtest.drain=5
+
+echo "Updated native image configuration in ${CONFIG_DIR}"
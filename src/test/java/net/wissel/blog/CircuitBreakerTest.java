@@ -0,0 +1,156 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+/**
+ * State changes of the circuit breaker
+ *
+ * @author swissel
+ */
+class CircuitBreakerTest {
+
+    private static final long OPEN_TIME = 100L;
+    private static final AtomicInteger BREAKERS = new AtomicInteger();
+
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker("test-" + BREAKERS.incrementAndGet(), 60, 50, OPEN_TIME);
+    }
+
+    private static Future<Void> failWith(final CircuitBreaker breaker, final int status) {
+        return breaker.call(() -> Future.failedFuture(new SinkException("boom", status, -1L)));
+    }
+
+    private static Future<Void> succeed(final CircuitBreaker breaker) {
+        return breaker.call(Future::succeededFuture);
+    }
+
+    private static void open(final CircuitBreaker breaker) {
+        for (int i = 0; i < 10; i++) {
+            failWith(breaker, 503);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void needsEnoughCallsBeforeOpening() {
+        final CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 9; i++) {
+            failWith(breaker, 500);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        failWith(breaker, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void errorRateBelowThresholdKeepsItClosed() {
+        final CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 20; i++) {
+            succeed(breaker);
+            if (i % 3 == 0) {
+                failWith(breaker, 429);
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void clientErrorsDontCount() {
+        final CircuitBreaker breaker = breaker();
+        for (int i = 0; i < 20; i++) {
+            failWith(breaker, 404);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void openBreakerDoesntCall() {
+        final CircuitBreaker breaker = breaker();
+        open(breaker);
+        final AtomicInteger calls = new AtomicInteger();
+        final Future<Void> result = breaker.call(() -> {
+            calls.incrementAndGet();
+            return Future.succeededFuture();
+        });
+        assertEquals(0, calls.get());
+        assertInstanceOf(CircuitBreaker.OpenException.class, result.cause());
+        assertTrue(((SinkException) result.cause()).getRetryAfter() > 0);
+        assertFalse(breaker.isAvailable());
+    }
+
+    @Test
+    void oneProbeAtATimeThenClosed() throws InterruptedException {
+        final CircuitBreaker breaker = breaker();
+        open(breaker);
+        Thread.sleep(OPEN_TIME + 50L);
+        assertTrue(breaker.isAvailable());
+
+        final Promise<Void> probe = Promise.promise();
+        breaker.call(probe::future);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertInstanceOf(CircuitBreaker.OpenException.class, succeed(breaker).cause());
+        probe.complete();
+
+        assertTrue(succeed(breaker).succeeded());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(succeed(breaker).succeeded());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedProbeOpensTwiceAsLong() throws InterruptedException {
+        final CircuitBreaker breaker = breaker();
+        open(breaker);
+        Thread.sleep(OPEN_TIME + 50L);
+        failWith(breaker, 502);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(OPEN_TIME + 50L);
+        assertFalse(breaker.isAvailable());
+        Thread.sleep(OPEN_TIME);
+        assertTrue(breaker.isAvailable());
+    }
+
+    @Test
+    void probeThatThrowsIsRecorded() throws InterruptedException {
+        final CircuitBreaker breaker = breaker();
+        open(breaker);
+        Thread.sleep(OPEN_TIME + 50L);
+        final Future<Void> result = breaker.call(() -> {
+            throw new IllegalStateException("no token");
+        });
+        assertInstanceOf(IllegalStateException.class, result.cause());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(2 * OPEN_TIME + 50L);
+        // Not stuck waiting for a probe that never reports back
+        assertTrue(breaker.isAvailable());
+        assertTrue(succeed(breaker).succeeded());
+    }
+}
@@ -0,0 +1,218 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Restarts of the journal: what comes back into the pipeline, what a torn
+ * write at the end costs and how big records fit
+ *
+ * @author swissel
+ */
+class CommentJournalTest {
+
+    @TempDir
+    Path journalDir;
+
+    private Vertx vertx;
+    private final List<CommentEnvelope> newComments = new CopyOnWriteArrayList<>();
+    private final List<CommentEnvelope> pullRequests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startVertx() {
+        this.vertx = Vertx.vertx();
+        CommentEnvelope.registerCodec(this.vertx.eventBus());
+        this.vertx.eventBus().<CommentEnvelope>consumer(Parameters.MESSAGE_NEW_COMMENT,
+                m -> this.newComments.add(m.body()));
+        this.vertx.eventBus().<CommentEnvelope>consumer(Parameters.MESSAGE_PULLREQUEST,
+                m -> this.pullRequests.add(m.body()));
+    }
+
+    @AfterEach
+    void stopVertx() throws Exception {
+        await(this.vertx.close());
+    }
+
+    private static <T> T await(final Future<T> future) throws Exception {
+        return future.toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+    }
+
+    private String deploy() throws Exception {
+        return await(this.vertx.deployVerticle(new CommentJournal(this.journalDir),
+                new DeploymentOptions().setWorker(true)));
+    }
+
+    private void record(final String commentId, final String state, final JsonObject comment)
+            throws Exception {
+        await(CommentJournal.record(this.vertx.eventBus(), commentId, state, comment));
+    }
+
+    private static JsonObject comment(final String commentId, final String branch) {
+        final JsonObject comment = new JsonObject()
+                .put(Parameters.ID_COMMENT, commentId)
+                .put("Body", "Body of " + commentId);
+        return branch == null ? comment : comment.put(CommentEnvelope.BRANCH, branch);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(this.journalDir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void awaitReplay(final int newCount, final int pullRequestCount)
+            throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (this.newComments.size() >= newCount
+                    && this.pullRequests.size() >= pullRequestCount) {
+                break;
+            }
+            Thread.sleep(50L);
+        }
+        // Anything beyond the expected would show up now
+        Thread.sleep(200L);
+        assertEquals(newCount, this.newComments.size());
+        assertEquals(pullRequestCount, this.pullRequests.size());
+    }
+
+    /* Writes a record whose second half never made it to disk */
+    private static void appendTornRecord(final Path segment, final JsonObject entry)
+            throws IOException {
+        final byte[] record = entry.toBuffer().getBytes();
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            long position = 0L;
+            while (true) {
+                header.clear();
+                channel.read(header, position);
+                final int length = header.getInt(0);
+                if (length <= 0) {
+                    break;
+                }
+                position += 8 + length;
+            }
+            final ByteBuffer torn = ByteBuffer.allocate(8 + record.length / 2);
+            torn.putInt(record.length).putInt((int) crc.getValue())
+                    .put(record, 0, record.length / 2).flip();
+            channel.write(torn, position);
+        }
+    }
+
+    @Test
+    void replaysOpenCommentsWhereTheyLeftOff() throws Exception {
+        final String first = this.deploy();
+        this.record("c1", CommentJournal.STATE_ACCEPTED, comment("c1", null));
+        this.record("c2", CommentJournal.STATE_ACCEPTED, comment("c2", null));
+        this.record("c2", CommentJournal.STATE_DONE, null);
+        this.record("c3", CommentJournal.STATE_ACCEPTED, comment("c3", null));
+        this.record("c3", CommentJournal.STATE_COMMITTING, comment("c3", "comment-c3"));
+        this.record("c4", CommentJournal.STATE_STORED, comment("c4", "comment-c4"));
+        await(this.vertx.undeploy(first));
+        final List<Path> before = this.segments();
+        assertEquals(1, before.size());
+        appendTornRecord(before.get(0), new JsonObject()
+                .put(Parameters.ID_COMMENT, "c5")
+                .put(CommentJournal.STATE, CommentJournal.STATE_ACCEPTED)
+                .put(CommentJournal.COMMENT, comment("c5", null)));
+
+        this.deploy();
+        awaitReplay(2, 1);
+        final Map<String, CommentEnvelope> replayed = this.newComments.stream()
+                .collect(Collectors.toMap(CommentEnvelope::getCommentId, e -> e));
+        assertEquals(0, replayed.get("c1").getAttempt());
+        // Might have been committed before the crash, the store checks first
+        assertEquals(1, replayed.get("c3").getAttempt());
+        assertEquals("comment-c3", replayed.get("c3").getBranch());
+        assertEquals("c4", this.pullRequests.get(0).getCommentId());
+        assertEquals(1, this.pullRequests.get(0).getAttempt());
+
+        // Compacted into a fresh segment, the old one is gone
+        final List<Path> after = this.segments();
+        assertEquals(1, after.size());
+        assertNotEquals(before.get(0), after.get(0));
+    }
+
+    @Test
+    void keepsWritingAfterATornRecord() throws Exception {
+        final String first = this.deploy();
+        this.record("c1", CommentJournal.STATE_ACCEPTED, comment("c1", null));
+        await(this.vertx.undeploy(first));
+        appendTornRecord(this.segments().get(0), new JsonObject()
+                .put(Parameters.ID_COMMENT, "c2")
+                .put(CommentJournal.STATE, CommentJournal.STATE_ACCEPTED));
+
+        final String second = this.deploy();
+        this.record("c1", CommentJournal.STATE_DONE, null);
+        this.record("c3", CommentJournal.STATE_ACCEPTED, comment("c3", null));
+        await(this.vertx.undeploy(second));
+        this.newComments.clear();
+
+        this.deploy();
+        awaitReplay(1, 0);
+        assertEquals("c3", this.newComments.get(0).getCommentId());
+    }
+
+    @Test
+    void recordLargerThanASegmentGetsRoom() throws Exception {
+        final String first = this.deploy();
+        final String body = "x".repeat(17 * 1024 * 1024);
+        this.record("big", CommentJournal.STATE_ACCEPTED,
+                new JsonObject().put(Parameters.ID_COMMENT, "big").put("Body", body));
+        this.record("small", CommentJournal.STATE_ACCEPTED, comment("small", null));
+        await(this.vertx.undeploy(first));
+
+        this.deploy();
+        awaitReplay(2, 0);
+        final CommentEnvelope big = this.newComments.stream()
+                .filter(e -> "big".equals(e.getCommentId())).findFirst().orElseThrow();
+        assertEquals(body.length(), big.getComment().getString("Body").length());
+        assertTrue(Files.size(this.segments().get(0)) > body.length());
+    }
+}
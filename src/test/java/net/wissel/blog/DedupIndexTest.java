@@ -0,0 +1,140 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Claims, releases and expiry of the dedup index, also once the ring has
+ * wrapped around a few times
+ *
+ * @author swissel
+ */
+class DedupIndexTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    void secondClaimIsADuplicate() {
+        final DedupIndex index = new DedupIndex(16, HOUR);
+        assertTrue(index.claim(42L));
+        assertFalse(index.claim(42L));
+        assertTrue(index.claim(43L));
+    }
+
+    @Test
+    void releasedKeyCanBeClaimedAgain() {
+        final DedupIndex index = new DedupIndex(16, HOUR);
+        assertTrue(index.claim(42L));
+        index.release(42L);
+        assertTrue(index.claim(42L));
+        assertFalse(index.claim(42L));
+    }
+
+    @Test
+    void keysExpireAfterTheWindow() throws InterruptedException {
+        final DedupIndex index = new DedupIndex(16, TimeUnit.MILLISECONDS.toNanos(50L));
+        assertTrue(index.claim(42L));
+        assertFalse(index.claim(42L));
+        Thread.sleep(100L);
+        assertTrue(index.claim(42L));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void oldestKeysMakeRoomWhenFull() {
+        final DedupIndex index = new DedupIndex(4, HOUR);
+        for (long key = 1; key <= 10; key++) {
+            assertTrue(index.claim(key));
+        }
+        assertEquals(4, index.size());
+        for (long key = 10; key >= 7; key--) {
+            assertFalse(index.claim(key), "key " + key);
+        }
+        assertTrue(index.claim(6L));
+    }
+
+    @Test
+    void reclaimedKeySurvivesItsOldRingEntry() {
+        final DedupIndex index = new DedupIndex(4, HOUR);
+        assertTrue(index.claim(1L));
+        index.release(1L);
+        assertTrue(index.claim(1L));
+        assertTrue(index.claim(2L));
+        assertTrue(index.claim(3L));
+        // Pushes out the released entry of 1, not the live one
+        assertTrue(index.claim(4L));
+        assertFalse(index.claim(1L));
+    }
+
+    @Test
+    void keyZeroWorks() {
+        final DedupIndex index = new DedupIndex(4, HOUR);
+        assertTrue(index.claim(0L));
+        assertFalse(index.claim(0L));
+        index.release(0L);
+        assertTrue(index.claim(0L));
+    }
+
+    /*
+     * Random claims and releases on a small key range, so probe sequences
+     * collide and deletions shift entries back, against a plain model of
+     * the ring
+     */
+    @Test
+    void matchesModelAcrossManyWrapArounds() {
+        final int capacity = 64;
+        final DedupIndex index = new DedupIndex(capacity, HOUR);
+        final Map<Long, Long> live = new HashMap<>();
+        final ArrayDeque<long[]> ring = new ArrayDeque<>();
+        final Random random = new Random(4711L);
+        long sequence = 0L;
+        for (int i = 0; i < 200_000; i++) {
+            final long key = 1L + random.nextInt(300);
+            if (random.nextInt(4) == 0) {
+                index.release(key);
+                live.remove(key);
+                continue;
+            }
+            final boolean expected = !live.containsKey(key);
+            if (expected) {
+                if (ring.size() == capacity) {
+                    final long[] oldest = ring.poll();
+                    live.remove(oldest[0], oldest[1]);
+                }
+                ring.add(new long[] {key, sequence});
+                live.put(key, sequence);
+                sequence++;
+            }
+            assertEquals(expected, index.claim(key), "operation " + i + ", key " + key);
+        }
+        assertEquals(ring.size(), index.size());
+    }
+}
@@ -0,0 +1,77 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Keywords of the built-in spam rules only count as whole words
+ *
+ * @author swissel
+ */
+class KeywordMatcherTest {
+
+    private static KeywordMatcher builtIn() throws IOException {
+        try (InputStream in = KeywordMatcherTest.class.getClassLoader()
+                .getResourceAsStream("spam-rules.json")) {
+            final JsonObject keywords = new JsonObject(
+                    new String(in.readAllBytes(), StandardCharsets.UTF_8))
+                            .getJsonObject("keywords");
+            final Map<String, Integer> weights = new HashMap<>();
+            keywords.forEach(entry -> weights.put(entry.getKey(), (Integer) entry.getValue()));
+            return new KeywordMatcher(weights);
+        }
+    }
+
+    @Test
+    void wordsContainingKeywordsDontCount() throws IOException {
+        final KeywordMatcher matcher = builtIn();
+        assertEquals(0, matcher.score("I am a specialist in Java"));
+        assertEquals(0, matcher.score("Socialist ideas"));
+        assertEquals(0, matcher.score("aiding and abetting"));
+        assertEquals(0, matcher.score("pornography of violence"));
+    }
+
+    @Test
+    void wholeWordsCount() throws IOException {
+        final KeywordMatcher matcher = builtIn();
+        assertEquals(12, matcher.score("cialis"));
+        assertEquals(12, matcher.score("Buy CIALIS, now!"));
+        assertEquals(4, matcher.score("sports betting."));
+        assertEquals(24, matcher.score("viagra/cialis"));
+        assertEquals(6, matcher.score("Best poker online"));
+    }
+
+    @Test
+    void keywordsWithPunctuationMatchInsideWords() throws IOException {
+        final KeywordMatcher matcher = builtIn();
+        assertEquals(8, matcher.score("see[url=http://x]"));
+        assertEquals(4, matcher.score("x<a href='y'>"));
+    }
+}
@@ -0,0 +1,94 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Commentor names end up in the ntfy title, whatever they contain
+ *
+ * @author swissel
+ */
+class NtfyNotifierTest {
+
+    private static Vertx vertx;
+    private static HttpServer server;
+    private static CompletableFuture<JsonObject> published;
+    private static String publishedPath;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        vertx = Vertx.vertx();
+        server = vertx.createHttpServer().requestHandler(request -> {
+            publishedPath = request.path();
+            request.body().onSuccess(body -> {
+                published.complete(body.toJsonObject());
+                request.response().end("{}");
+            });
+        }).listen(0).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterAll
+    static void stopServer() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private static JsonObject publish(final String commentor) throws Exception {
+        published = new CompletableFuture<>();
+        final NtfyNotifier notifier = new NtfyNotifier(vertx,
+                Endpoint.parse("http://127.0.0.1:" + server.actualPort() + "/blog-comments",
+                        null),
+                null);
+        final NotificationDigest.Digest digest = new NotificationDigest.Digest();
+        digest.add(CommentEnvelope.of(new JsonObject()
+                .put("Commentor", commentor)
+                .put("Body", "Nice post")));
+        notifier.send(digest, 5000L).toCompletionStage().toCompletableFuture()
+                .get(10, TimeUnit.SECONDS);
+        return published.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void lineBreakInNameIsDelivered() throws Exception {
+        final JsonObject body = publish("Eve\nX-Injected: yes");
+        assertEquals("/", publishedPath);
+        assertEquals("blog-comments", body.getString("topic"));
+        assertEquals("Comment from Eve X-Injected: yes", body.getString("title"));
+        assertFalse(body.getString("title").contains("\n"));
+        assertEquals("Nice post", body.getString("message"));
+    }
+
+    @Test
+    void nonAsciiNameSurvives() throws Exception {
+        final JsonObject body = publish("Grüße aus Köln 日本");
+        assertEquals("Comment from Grüße aus Köln 日本", body.getString("title"));
+    }
+}
@@ -0,0 +1,124 @@
+/** ========================================================================= *
+ * Copyright (C)  2017, 2023 Stephan Wissel                                   *
+ *                            All rights reserved.                            *
+ *                                                                            *
+ *  @author     Stephan H. Wissel (stw) <stephan@wissel.net>                  *
+ *                                       @notessensei                         *
+ * @version     1.0                                                           *
+ * ========================================================================== *
+ *                                                                            *
+ * Licensed under the  Apache License, Version 2.0  (the "License").  You may *
+ * not use this file except in compliance with the License.  You may obtain a *
+ * copy of the License at <http://www.apache.org/licenses/LICENSE-2.0>.       *
+ *                                                                            *
+ * Unless  required  by applicable  law or  agreed  to  in writing,  software *
+ * distributed under the License is distributed on an  "AS IS" BASIS, WITHOUT *
+ * WARRANTIES OR  CONDITIONS OF ANY KIND, either express or implied.  See the *
+ * License for the  specific language  governing permissions  and limitations *
+ * under the License.                                                         *
+ *                                                                            *
+ * ========================================================================== *
+ */
+package net.wissel.blog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Timing wheel of the retry scheduler, turned by hand: one tick is 100 ms
+ *
+ * @author swissel
+ */
+class RetrySchedulerTest {
+
+    private final List<String> due = new ArrayList<>();
+    private final RetryScheduler<String> scheduler =
+            new RetryScheduler<>(1000L, 8000L, this.due::add);
+
+    /* @return the tick the item came due on, -1 when it didn't within max */
+    private int ticksUntilDue(final String item, final int max) {
+        for (int tick = 1; tick <= max; tick++) {
+            this.scheduler.tick();
+            if (this.due.contains(item)) {
+                return tick;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    void retryAfterIsRoundedUpToTicks() {
+        this.scheduler.schedule("now", 1, 0L);
+        assertEquals(1, this.ticksUntilDue("now", 10));
+        this.scheduler.schedule("later", 1, 250L);
+        assertEquals(3, this.ticksUntilDue("later", 10));
+        assertEquals(0, this.scheduler.size());
+    }
+
+    @Test
+    void delaysLongerThanTheWheelWaitFullRounds() {
+        // Two full rounds of 512 slots plus 10
+        this.scheduler.schedule("far", 1, (2 * 512 + 10) * 100L);
+        this.scheduler.schedule("near", 1, 100L);
+        assertEquals(2 * 512 + 10, this.ticksUntilDue("far", 3 * 512));
+        assertEquals(List.of("near", "far"), this.due);
+    }
+
+    @Test
+    void cursorWrapsAroundTheWheel() {
+        for (int i = 0; i < 500; i++) {
+            this.scheduler.tick();
+        }
+        // Lands in a slot behind the cursor, after the wrap
+        this.scheduler.schedule("wrapped", 1, 3000L);
+        assertEquals(30, this.ticksUntilDue("wrapped", 600));
+    }
+
+    @Test
+    void releasesAFewItemsPerTick() {
+        for (int i = 0; i < 12; i++) {
+            this.scheduler.schedule("item-" + i, 1, 100L);
+        }
+        this.scheduler.tick();
+        assertEquals(5, this.due.size());
+        this.scheduler.tick();
+        assertEquals(10, this.due.size());
+        this.scheduler.tick();
+        assertEquals(12, this.due.size());
+        assertEquals(0, this.scheduler.size());
+    }
+
+    @Test
+    void backoffGrowsWithJitterUpToTheLimit() {
+        for (int i = 0; i < 50; i++) {
+            this.scheduler.schedule("first", 1, -1L);
+            final int first = this.ticksUntilDue("first", 100);
+            assertTrue(first >= 5 && first <= 10, "first retry after " + first + " ticks");
+            this.due.clear();
+
+            this.scheduler.schedule("late", 20, -1L);
+            final int late = this.ticksUntilDue("late", 100);
+            assertTrue(late >= 40 && late <= 80, "late retry after " + late + " ticks");
+            this.due.clear();
+        }
+    }
+
+    @Test
+    void parsesRetryAfterHeaders() {
+        assertEquals(120_000L, RetryScheduler.parseRetryAfter(" 120 "));
+        assertEquals(0L, RetryScheduler.parseRetryAfter("-5"));
+        assertEquals(-1L, RetryScheduler.parseRetryAfter(null));
+        assertEquals(-1L, RetryScheduler.parseRetryAfter("soon"));
+        final String inAMinute = DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(60));
+        final long delay = RetryScheduler.parseRetryAfter(inAMinute);
+        assertTrue(delay > 55_000L && delay <= 60_000L, "delay " + delay);
+        assertEquals(0L, RetryScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}